@@ -35,7 +35,10 @@ Package controller {
 
 import java.io.FileInputStream;
 import java.security.Security;
+import keytool.cli.CommandLine;
 import keytool.controller.Controller;
+import keytool.model.ExpiryScanner;
+import keytool.model.KeyStoreSnapshot;
 import keytool.model.MTCertificate;
 import keytool.model.MTPrivateKey;
 import keytool.model.Model;
@@ -43,16 +46,38 @@ import keytool.view.View;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 @SuppressWarnings("unused")
 public class Keytool {
+	/* Une recherche des expirations par heure */
+	private static final long EXPIRY_SCAN_PERIOD = 60 * 60 * 1000;
+
     public static void main(String[] args) {
 		// FIXME : l'ajouter au bon endroit
 		Security.addProvider(new BouncyCastleProvider());
     	
+		// Avec des arguments : mode ligne de commande, sans charger AWT ni Swing
+		if(args.length > 0) {
+			System.setProperty("java.awt.headless", "true");
+			System.exit(CommandLine.run(args));
+		}
+		startGui();
+    }
+
+    /**
+     * Create the view and its controller
+     */
+    private static void startGui() {
         Model model;
 		try {
 			model = new Model();
 			View view = new View(model);
 	        
 			Controller controller = new Controller(model, view);
+			// Les certificats à renouveler sont signalés sur la sortie d'erreur
+			new ExpiryScanner(model).start(EXPIRY_SCAN_PERIOD, new ExpiryScanner.Alert() {
+				public void expiring(KeyStoreSnapshot.Entry entry, boolean expired) {
+					System.err.println((expired ? "Certificat expiré : " : "Certificat à renouveler : ")
+							+entry.getAlias()+" ("+entry.getNotAfter()+")");
+				}
+			});
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
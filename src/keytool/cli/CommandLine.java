@@ -0,0 +1,714 @@
+package keytool.cli;
+
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.security.auth.x500.X500Principal;
+
+import keytool.model.AlgorithmBenchmark;
+import keytool.model.BulkExporter;
+import keytool.model.BulkImporter;
+import keytool.model.CertificateAuthority;
+import keytool.model.ChainValidator;
+import keytool.model.EntryType;
+import keytool.model.ExpiryScanner;
+import keytool.model.FormatBenchmark;
+import keytool.model.IdentityGenerator;
+import keytool.model.KeyAlgorithm;
+import keytool.model.KeyPairPool;
+import keytool.model.KeyStoreConverter;
+import keytool.model.KeyStoreDiff;
+import keytool.model.KeyStoreFormat;
+import keytool.model.KeyStoreSnapshot;
+import keytool.model.MTCertificate;
+import keytool.model.MTPrivateKey;
+import keytool.model.Model;
+import keytool.model.ModelException;
+import keytool.model.ModelStress;
+
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * Headless front end of the Keytool, working directly on the Model.
+ * It never loads the view, so it runs without any display and without the Swing startup.
+ *
+ * A keystore is opened (or created if the file does not exist), the command is run,
+ * and the keystore is saved once if it has been modified. The batch command runs a
+ * whole script of commands, one per line, with the same single open and save.
+ * @author Michaël Muré & Théophile Helleboid
+ *
+ */
+public class CommandLine {
+	/** Exit status when every command succeeded */
+	public static final int STATUS_OK = 0;
+	/** Exit status when at least one command failed */
+	public static final int STATUS_ERROR = 1;
+	/** Exit status of a wrong usage */
+	public static final int STATUS_USAGE = 2;
+
+	private final Model model;
+	private final PrintStream out;
+	private final PrintStream err;
+	private boolean modified;
+	private int errors;
+	/* Gardé d'une commande à l'autre d'un script, avec ses résultats */
+	private ChainValidator validator;
+	/* Expirations cherchées pendant le script, pour stats */
+	private ExpiryScanner scanner;
+
+	/**
+	 * Create a front end over an initialized model
+	 * @param model the opened keystore
+	 * @param out stream of the results
+	 * @param err stream of the errors
+	 */
+	public CommandLine(Model model, PrintStream out, PrintStream err) {
+		this.model = model;
+		this.out = out;
+		this.err = err;
+	}
+
+	/**
+	 * Run the command line of the program
+	 * @param args -keystore file [-storepass password] [-storetype format] command [arguments]
+	 * @return the exit status
+	 */
+	public static int run(String[] args) {
+		String path = null;
+		char[] password = null;
+		KeyStoreFormat format = null;
+		int i = 0;
+		for(; i < args.length && args[i].startsWith("-"); i += 2) {
+			if(i + 1 >= args.length) {
+				usage(System.err);
+				return STATUS_USAGE;
+			}
+			if(args[i].equals("-keystore"))
+				path = args[i + 1];
+			else if(args[i].equals("-storepass"))
+				password = args[i + 1].toCharArray();
+			else if(args[i].equals("-storetype")) {
+				try {
+					format = KeyStoreFormat.of(args[i + 1]);
+				} catch (ModelException e) {
+					System.err.println(e.getMessage());
+					return STATUS_USAGE;
+				}
+			} else {
+				System.err.println("Option inconnue : "+args[i]);
+				usage(System.err);
+				return STATUS_USAGE;
+			}
+		}
+		List<String> command = Arrays.asList(args).subList(i, args.length);
+		if(path == null || command.isEmpty()) {
+			usage(System.err);
+			return STATUS_USAGE;
+		}
+		if(password == null) {
+			Console console = System.console();
+			if(console == null) {
+				System.err.println("Pas de console pour lire le mot de passe : utiliser -storepass");
+				return STATUS_USAGE;
+			}
+			password = console.readPassword("Mot de passe du keystore : ");
+		}
+
+		try {
+			Model model = new Model();
+			if(new File(path).exists()) {
+				// Sans -storetype, le format est reconnu d'après le fichier
+				model.openKeyStore(path, password, format, null);
+			} else {
+				model.newKeyStore(password, format == null ? KeyStoreFormat.DEFAULT : format);
+			}
+			CommandLine cli = new CommandLine(model, System.out, System.err);
+			if(command.get(0).equals("batch")) {
+				if(command.size() != 2)
+					throw new ModelException("Usage : batch <fichier|->");
+				cli.runScript(command.get(1));
+			} else {
+				cli.execute(command);
+			}
+			if(cli.isModified())
+				model.saveAs(path);
+			return cli.getErrorCount() > 0 ? STATUS_ERROR : STATUS_OK;
+		} catch (ModelException e) {
+			System.err.println(e.getMessage());
+			return STATUS_ERROR;
+		}
+	}
+
+	/**
+	 * Print the usage of the command line
+	 * @param out stream to print on
+	 */
+	public static void usage(PrintStream out) {
+		out.println("Usage : keytool -keystore <fichier> [-storepass <mot de passe>] [-storetype <format>] <commande>");
+		out.println("Formats : jceks (par défaut), jks, pkcs12, bks ; reconnu à l'ouverture d'un fichier");
+		out.println("Commandes :");
+		out.println("  list");
+		out.println("  find <subject|issuer|ski|aki|fingerprint> <valeur>, find serial <émetteur> <numéro>");
+		out.println("                                      cherche les entrées par certificat (valeurs hexadécimales)");
+		out.println("  create <alias> <sujet> [<algorithme> <taille>]");
+		out.println("                                      crée une clé privée (RSA 1024 par défaut) et son certificat");
+		out.println("  generate <alias> <sujet> <nombre> [<algorithme> <taille>]");
+		out.println("                                      crée des clés numérotées en parallèle, ex. dev-%04d \"CN=dev-%04d\"");
+		out.println("  createca <alias> <sujet> [<algorithme> <taille>]");
+		out.println("                                      crée une clé privée d'autorité de certification");
+		out.println("  sign <alias-ca> <csr|répertoire|-> <certificat|répertoire|-> [<jours>]");
+		out.println("                                      signe des requêtes PKCS#10 avec la clé d'une autorité");
+		out.println("  import <alias> <certificat> [<clé>] importe un certificat (sauf s'il est déjà présent), ou une clé privée");
+		out.println("  importdir <répertoire>              importe les clés et certificats d'une arborescence");
+		out.println("  export <alias> <fichier>            exporte une clé, ou un certificat");
+		out.println("  exportall <pem|der|tar> <cible> [-keys] [<alias>...]");
+		out.println("                                      exporte des certificats (et des clés) en une fois");
+		out.println("  exportcert <alias> <fichier>        exporte le certificat d'une entrée");
+		out.println("  verify [<alias|fichier|répertoire>...]");
+		out.println("                                      valide les chaînes jusqu'aux racines du keystore (tout par défaut)");
+		out.println("  diff <keystore> <mot de passe>      différences avec un autre keystore (+ ajoutée, - supprimée, ~ modifiée)");
+		out.println("  merge <keystore> <mot de passe> [keep|replace|rename]");
+		out.println("                                      copie les entrées de l'autre keystore, les conflits selon la politique");
+		out.println("  convert <fichier> <format> <mot de passe>");
+		out.println("                                      enregistre une copie du keystore dans un autre format");
+		out.println("  duplicates                          certificats présents sous plusieurs alias, par empreinte SHA-256");
+		out.println("  expiry [<jours>]                    certificats expirés ou expirant dans les jours (30 par défaut)");
+		out.println("  delete <alias>");
+		out.println("  stats                               métriques du cache des clés et du pool de paires");
+		out.println("  bench [<itérations>]                débit de génération, signature et vérification par algorithme");
+		out.println("  benchformats                        durées de conversion, d'écriture et d'ouverture par format");
+		out.println("  stress [<threads> <secondes>]       lectures, écritures, lots et enregistrements concurrents (8 threads, 10 s)");
+		out.println("  batch <fichier|->                   exécute une commande par ligne");
+	}
+
+	/**
+	 * @return the number of errors reported : failed lines of a script, files not imported
+	 */
+	public int getErrorCount() {
+		return errors;
+	}
+
+	/**
+	 * @return whether or not a command has modified the keystore
+	 */
+	public boolean isModified() {
+		return modified;
+	}
+
+	/**
+	 * Run a script of commands, one per line, as one batch of modifications.
+	 * A failed command is reported with its line number and does not stop the script.
+	 * The empty lines and the lines starting with # are ignored.
+	 * @param path of the script, - for the standard input
+	 * @return the number of failed commands
+	 * @throws ModelException if the script cannot be read
+	 */
+	public int runScript(String path) throws ModelException {
+		final BufferedReader in;
+		try {
+			if(path.equals("-"))
+				in = new BufferedReader(new InputStreamReader(System.in));
+			else
+				in = new BufferedReader(new FileReader(path));
+		} catch (FileNotFoundException e) {
+			throw new ModelException("Fichier non trouvé :"+path);
+		}
+		final int[] failed = new int[1];
+		try {
+			model.runBatch(new Model.Batch() {
+				public void run(Model model) throws ModelException {
+					failed[0] = runScript(in);
+				}
+			});
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// rien à faire
+			}
+		}
+		return failed[0];
+	}
+
+	/**
+	 * Run the commands read from a stream, one per line
+	 * @param in the script
+	 * @return the number of failed commands
+	 * @throws ModelException if the script cannot be read
+	 */
+	public int runScript(BufferedReader in) throws ModelException {
+		int failed = 0;
+		int number = 0;
+		try {
+			String line;
+			while((line = in.readLine()) != null) {
+				number++;
+				line = line.trim();
+				if(line.length() == 0 || line.startsWith("#"))
+					continue;
+				try {
+					List<String> command = tokenize(line);
+					if(command.get(0).equals("batch"))
+						throw new ModelException("Commande batch imbriquée");
+					execute(command);
+				} catch (ModelException e) {
+					err.println("Ligne "+number+" : "+e.getMessage());
+					errors++;
+					failed++;
+				}
+			}
+		} catch (IOException e) {
+			throw new ModelException("Problème d'entrée/sortie : "+e.getMessage());
+		}
+		return failed;
+	}
+
+	/**
+	 * Run one command
+	 * @param command name of the command followed by its arguments
+	 * @throws ModelException
+	 */
+	public void execute(List<String> command) throws ModelException {
+		String name = command.get(0);
+		List<String> args = command.subList(1, command.size());
+		if(name.equals("list")) {
+			checkArguments(name, args, 0, 0);
+			list();
+		} else if(name.equals("find")) {
+			checkArguments(name, args, 2, 3);
+			for(KeyStoreSnapshot.Entry entry : find(args))
+				out.println(entry.getAlias()+"\t"+entry.getType());
+		} else if(name.equals("create")) {
+			if(args.size() != 2 && args.size() != 4)
+				throw new ModelException("Nombre d'arguments incorrect pour "+name);
+			KeyAlgorithm algorithm = args.size() == 4 ? KeyAlgorithm.of(args.get(2), number(args.get(3))) : KeyAlgorithm.DEFAULT;
+			new MTPrivateKey(args.get(1), algorithm).addToKeyStore(model, args.get(0));
+			modified = true;
+		} else if(name.equals("createca")) {
+			if(args.size() != 2 && args.size() != 4)
+				throw new ModelException("Nombre d'arguments incorrect pour "+name);
+			KeyAlgorithm algorithm = args.size() == 4 ? KeyAlgorithm.of(args.get(2), number(args.get(3))) : KeyAlgorithm.DEFAULT;
+			new MTPrivateKey(args.get(1), algorithm, true).addToKeyStore(model, args.get(0));
+			modified = true;
+		} else if(name.equals("sign")) {
+			checkArguments(name, args, 3, 4);
+			CertificateAuthority authority = new CertificateAuthority(model, args.get(0));
+			if(args.size() == 4)
+				authority.setValidityDays(number(args.get(3)));
+			CertificateAuthority.Report report = sign(authority, args.get(1), args.get(2));
+			// Les certificats peuvent occuper la sortie standard
+			PrintStream result = args.get(2).equals("-") ? err : out;
+			for(Map.Entry<String, String> error : report.getErrors().entrySet())
+				err.println(error.getKey()+" : "+error.getValue());
+			result.println(report);
+			errors += report.getErrors().size();
+		} else if(name.equals("generate")) {
+			if(args.size() != 3 && args.size() != 5)
+				throw new ModelException("Nombre d'arguments incorrect pour "+name);
+			IdentityGenerator generator = new IdentityGenerator(model);
+			if(args.size() == 5)
+				generator.setAlgorithm(args.get(3), number(args.get(4)));
+			IdentityGenerator.Report report = generator.generate(args.get(0), args.get(1), 1, number(args.get(2)));
+			for(Map.Entry<String, String> error : report.getErrors().entrySet())
+				err.println(error.getKey()+" : "+error.getValue());
+			out.println(report);
+			errors += report.getErrors().size();
+			if(report.getGeneratedCount() > 0)
+				modified = true;
+		} else if(name.equals("import")) {
+			checkArguments(name, args, 2, 3);
+			if(args.size() == 2) {
+				MTCertificate certificate;
+				FileInputStream in = null;
+				try {
+					in = new FileInputStream(args.get(1));
+					certificate = new MTCertificate(in);
+				} catch (FileNotFoundException e) {
+					throw new ModelException("Fichier non trouvé :"+args.get(1));
+				} finally {
+					Model.closeQuietly(in);
+				}
+				String existing = certificate.addToKeyStoreIfAbsent(model, args.get(0));
+				if(existing != null) {
+					out.println("Certificat déjà présent sous l'alias "+existing);
+					return;
+				}
+			} else {
+				new MTPrivateKey(args.get(2), args.get(1)).addToKeyStore(model, args.get(0));
+			}
+			modified = true;
+		} else if(name.equals("export")) {
+			checkArguments(name, args, 2, 2);
+			EntryType type = entryType(args.get(0));
+			if(type.isKey())
+				model.getKey(args.get(0)).exportTo(args.get(1));
+			else
+				model.getCertificate(args.get(0)).exportTo(args.get(1));
+		} else if(name.equals("exportcert")) {
+			checkArguments(name, args, 2, 2);
+			if(!entryType(args.get(0)).hasCertificate())
+				throw new ModelException("Pas de certificat pour l'alias "+args.get(0));
+			model.getCertificate(args.get(0)).exportTo(args.get(1));
+		} else if(name.equals("importdir")) {
+			checkArguments(name, args, 1, 1);
+			BulkImporter.Report report = new BulkImporter(model).importDirectory(new File(args.get(0)));
+			for(Map.Entry<String, String> error : report.getErrors().entrySet())
+				err.println(error.getKey()+" : "+error.getValue());
+			out.println(report);
+			errors += report.getErrors().size();
+			if(report.getImportedCount() > 0)
+				modified = true;
+		} else if(name.equals("exportall")) {
+			checkArguments(name, args, 2, Integer.MAX_VALUE);
+			BulkExporter exporter = new BulkExporter(model);
+			List<String> aliases = args.subList(2, args.size());
+			if(!aliases.isEmpty() && aliases.get(0).equals("-keys")) {
+				exporter.setIncludeKeys(true);
+				aliases = aliases.subList(1, aliases.size());
+			}
+			int count = exporter.export(aliases.isEmpty() ? null : aliases, exportFormat(args.get(0)), new File(args.get(1)));
+			out.println(count+" objets exportés");
+		} else if(name.equals("stats")) {
+			checkArguments(name, args, 0, 0);
+			out.println("Cache des clés : "+model.getKeyCache());
+			out.println("Pool de paires de clés "+KeyPairPool.getDefault().getStats("RSA", 1024));
+			if(validator != null)
+				out.println(validator);
+			if(scanner != null)
+				out.println(scanner);
+		} else if(name.equals("bench")) {
+			checkArguments(name, args, 0, 1);
+			AlgorithmBenchmark benchmark = new AlgorithmBenchmark(args.isEmpty() ? 20 : number(args.get(0)));
+			out.println(AlgorithmBenchmark.Result.header());
+			for(KeyAlgorithm algorithm : KeyAlgorithm.values()) {
+				if(algorithm.isAvailable())
+					out.println(benchmark.run(algorithm));
+				else
+					out.println(algorithm+" : non disponible sur ce runtime");
+			}
+		} else if(name.equals("stress")) {
+			if(args.size() != 0 && args.size() != 2)
+				throw new ModelException("Nombre d'arguments incorrect pour "+name);
+			ModelStress stress = args.isEmpty() ? new ModelStress(8, 10000)
+					: new ModelStress(number(args.get(0)), number(args.get(1)) * 1000L);
+			ModelStress.Report report = stress.run();
+			for(Map.Entry<String, String> error : report.getErrors().entrySet())
+				err.println(error.getKey()+" : "+error.getValue());
+			for(String stack : report.getBlocked())
+				err.println("Bloqué : "+stack);
+			out.println(report);
+			if(!report.isSuccess())
+				errors++;
+		} else if(name.equals("benchformats")) {
+			checkArguments(name, args, 0, 0);
+			FormatBenchmark benchmark = new FormatBenchmark(model, "benchmark".toCharArray());
+			out.println(model.getSnapshot().size()+" entrées, keystore "+model.getFormat());
+			out.println(FormatBenchmark.Result.header());
+			for(KeyStoreFormat format : KeyStoreFormat.values()) {
+				try {
+					out.println(benchmark.run(format));
+				} catch (ModelException e) {
+					out.println(format+" : "+e.getMessage());
+				}
+			}
+		} else if(name.equals("convert")) {
+			checkArguments(name, args, 3, 3);
+			Model target = new Model();
+			target.newKeyStore(args.get(2).toCharArray(), KeyStoreFormat.of(args.get(1)));
+			KeyStoreConverter.Report report = new KeyStoreConverter().convert(model, target);
+			for(Map.Entry<String, String> error : report.getErrors().entrySet())
+				err.println(error.getKey()+" : "+error.getValue());
+			target.saveAs(args.get(0));
+			out.println(report);
+			errors += report.getErrors().size();
+		} else if(name.equals("verify")) {
+			if(validator == null)
+				validator = new ChainValidator(model);
+			if(args.isEmpty()) {
+				verified(validator.validateKeyStore());
+			} else {
+				for(String arg : args) {
+					if(model.getEntryType(arg) != null) {
+						ChainValidator.Result result = validator.validate(arg);
+						out.println(arg+"\t"+result);
+						if(!result.isValid())
+							errors++;
+					} else if(new File(arg).exists()) {
+						verified(validator.validateFiles(new File(arg)));
+					} else {
+						throw new ModelException("Pas d'alias ni de fichier "+arg);
+					}
+				}
+			}
+		} else if(name.equals("diff")) {
+			checkArguments(name, args, 2, 2);
+			KeyStoreDiff diff = KeyStoreDiff.compare(model, open(args.get(0), args.get(1)));
+			for(String alias : diff.getAdded())
+				out.println("+ "+alias);
+			for(String alias : diff.getRemoved())
+				out.println("- "+alias);
+			for(String alias : diff.getChanged())
+				out.println("~ "+alias);
+			out.println(diff);
+		} else if(name.equals("merge")) {
+			checkArguments(name, args, 2, 3);
+			KeyStoreDiff.ConflictPolicy policy = KeyStoreDiff.ConflictPolicy.KEEP;
+			if(args.size() == 3) {
+				try {
+					policy = KeyStoreDiff.ConflictPolicy.valueOf(args.get(2).toUpperCase(Locale.ENGLISH));
+				} catch (IllegalArgumentException e) {
+					throw new ModelException("Politique de conflit inconnue : "+args.get(2));
+				}
+			}
+			KeyStoreDiff diff = KeyStoreDiff.compare(model, open(args.get(0), args.get(1)));
+			out.println(diff);
+			KeyStoreDiff.Report report = diff.merge(policy);
+			for(Map.Entry<String, String> error : report.getErrors().entrySet())
+				err.println(error.getKey()+" : "+error.getValue());
+			out.println(report);
+			errors += report.getErrors().size();
+			if(report.getCopiedCount() > 0)
+				modified = true;
+		} else if(name.equals("duplicates")) {
+			checkArguments(name, args, 0, 0);
+			Map<String, List<KeyStoreSnapshot.Entry>> duplicates = model.getSnapshot().findDuplicates();
+			for(Map.Entry<String, List<KeyStoreSnapshot.Entry>> duplicate : duplicates.entrySet()) {
+				StringBuilder line = new StringBuilder(duplicate.getKey());
+				for(KeyStoreSnapshot.Entry entry : duplicate.getValue())
+					line.append('\t').append(entry.getAlias());
+				out.println(line);
+			}
+			out.println(duplicates.size()+" certificats en plusieurs exemplaires");
+		} else if(name.equals("expiry")) {
+			checkArguments(name, args, 0, 1);
+			int days = args.isEmpty() ? ExpiryScanner.DEFAULT_WARNING_DAYS : number(args.get(0));
+			if(scanner == null || !args.isEmpty())
+				scanner = new ExpiryScanner(model, days);
+			ExpiryScanner.Report report = scanner.scan();
+			for(KeyStoreSnapshot.Entry entry : report.getExpired())
+				out.println(entry.getAlias()+"\texpiré\t"+entry.getNotAfter());
+			for(KeyStoreSnapshot.Entry entry : report.getExpiring())
+				out.println(entry.getAlias()+"\texpire\t"+entry.getNotAfter());
+			out.println(report);
+			// Un certificat expiré rend le code de retour en erreur, pour la supervision
+			errors += report.getExpired().size();
+		} else if(name.equals("delete")) {
+			checkArguments(name, args, 1, 1);
+			model.delEntry(args.get(0));
+			modified = true;
+		} else {
+			throw new ModelException("Commande inconnue : "+name);
+		}
+	}
+
+	/**
+	 * Sign requests with an authority
+	 * @param authority signing the requests
+	 * @param source file or directory of the requests, - for the standard input
+	 * @param target file or directory of the certificates, - for the standard output
+	 * @return the report of the signature
+	 * @throws ModelException
+	 */
+	private CertificateAuthority.Report sign(CertificateAuthority authority, String source, String target) throws ModelException {
+		if(new File(source).isDirectory()) {
+			if(target.equals("-"))
+				throw new ModelException("Un répertoire de requêtes demande un répertoire cible");
+			return authority.signDirectory(new File(source), new File(target));
+		}
+		InputStream in = null;
+		OutputStream certificates = null;
+		try {
+			in = source.equals("-") ? System.in : new FileInputStream(source);
+			certificates = target.equals("-") ? out : new FileOutputStream(target);
+			return authority.signStream(in, certificates);
+		} catch (FileNotFoundException e) {
+			throw new ModelException("Fichier non trouvé :"+(in == null ? source : target));
+		} finally {
+			try {
+				if(in != null && in != System.in)
+					in.close();
+				if(certificates != null && certificates != out)
+					certificates.close();
+			} catch (IOException e) {
+				// rien à faire
+			}
+		}
+	}
+
+	/**
+	 * Print the result of each certificate validated, then the summary
+	 * @param report of the validation
+	 */
+	private void verified(ChainValidator.Report report) {
+		for(Map.Entry<String, ChainValidator.Result> result : report.getResults().entrySet())
+			out.println(result.getKey()+"\t"+result.getValue());
+		out.println(report);
+		errors += report.getInvalidCount();
+	}
+
+	/**
+	 * Print the entries, one per line : alias and type
+	 */
+	private void list() {
+		// Lecture de l'instantané : les listes du modèle chargeraient Swing
+		for(KeyStoreSnapshot.Entry entry : model.getSnapshot())
+			out.println(entry.getAlias()+"\t"+entry.getType());
+	}
+
+	/**
+	 * Search the entries by an identifier of their certificate
+	 * @param args the kind of identifier, then its value
+	 * @return the entries found
+	 * @throws ModelException if the kind or the value is invalid
+	 */
+	private List<KeyStoreSnapshot.Entry> find(List<String> args) throws ModelException {
+		KeyStoreSnapshot snapshot = model.getSnapshot();
+		String kind = args.get(0);
+		try {
+			if(kind.equals("serial")) {
+				if(args.size() != 3)
+					throw new ModelException("Usage : find serial <émetteur> <numéro>");
+				return snapshot.findByIssuerAndSerial(new X500Principal(args.get(1)), new BigInteger(1, bytes(args.get(2))));
+			}
+			if(args.size() != 2)
+				throw new ModelException("Nombre d'arguments incorrect pour find");
+			if(kind.equals("subject"))
+				return snapshot.findBySubject(new X500Principal(args.get(1)));
+			if(kind.equals("issuer"))
+				return snapshot.findByIssuer(new X500Principal(args.get(1)));
+			if(kind.equals("ski"))
+				return snapshot.findBySubjectKeyId(bytes(args.get(1)));
+			if(kind.equals("aki"))
+				return snapshot.findByAuthorityKeyId(bytes(args.get(1)));
+			if(kind.equals("fingerprint"))
+				return snapshot.findByFingerprint(bytes(args.get(1)));
+		} catch (IllegalArgumentException e) {
+			throw new ModelException("Valeur invalide : "+e.getMessage());
+		}
+		throw new ModelException("Critère de recherche inconnu : "+kind);
+	}
+
+	/**
+	 * @param text hexadecimal value, with or without : between the bytes
+	 * @return the bytes
+	 * @throws ModelException if it is not hexadecimal
+	 */
+	private static byte[] bytes(String text) throws ModelException {
+		String hex = text.replace(":", "");
+		if(!hex.matches("([0-9a-fA-F]{2})+"))
+			throw new ModelException("Valeur hexadécimale invalide : "+text);
+		return Hex.decode(hex);
+	}
+
+	/**
+	 * @param alias of an entry
+	 * @return the type of the entry
+	 * @throws ModelException if there is no such entry
+	 */
+	private EntryType entryType(String alias) throws ModelException {
+		EntryType type = model.getEntryType(alias);
+		if(type == null)
+			throw new ModelException("Pas d'alias "+alias);
+		return type;
+	}
+
+	/**
+	 * @param name of a format on the command line
+	 * @return the format of the bulk export
+	 * @throws ModelException
+	 */
+	private static BulkExporter.Format exportFormat(String name) throws ModelException {
+		if(name.equals("pem"))
+			return BulkExporter.Format.PEM_BUNDLE;
+		if(name.equals("der"))
+			return BulkExporter.Format.DER_DIRECTORY;
+		if(name.equals("tar"))
+			return BulkExporter.Format.TAR;
+		throw new ModelException("Format d'export inconnu : "+name);
+	}
+
+	/**
+	 * @param text argument of a command
+	 * @return the number
+	 * @throws ModelException if it is not a number
+	 */
+	private static int number(String text) throws ModelException {
+		try {
+			return Integer.parseInt(text);
+		} catch (NumberFormatException e) {
+			throw new ModelException("Nombre invalide : "+text);
+		}
+	}
+
+	/**
+	 * Open another keystore
+	 * @param path of the keystore
+	 * @param password of the keystore
+	 * @return the opened keystore
+	 * @throws ModelException
+	 */
+	private static Model open(String path, String password) throws ModelException {
+		Model other = new Model();
+		other.openKeyStore(path, password.toCharArray());
+		return other;
+	}
+
+	/**
+	 * Check the number of arguments of a command
+	 * @throws ModelException
+	 */
+	private static void checkArguments(String name, List<String> args, int min, int max) throws ModelException {
+		if(args.size() < min || args.size() > max)
+			throw new ModelException("Nombre d'arguments incorrect pour "+name);
+	}
+
+	/**
+	 * Split a line of a script in words.
+	 * A word containing spaces is written between double quotes.
+	 * @param line of the script
+	 * @return the words
+	 * @throws ModelException if a quote is not closed
+	 */
+	static List<String> tokenize(String line) throws ModelException {
+		List<String> words = new ArrayList<String>();
+		StringBuilder word = null;
+		boolean quoted = false;
+		for(int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if(c == '"') {
+				quoted = !quoted;
+				if(word == null)
+					word = new StringBuilder();
+			} else if(Character.isWhitespace(c) && !quoted) {
+				if(word != null)
+					words.add(word.toString());
+				word = null;
+			} else {
+				if(word == null)
+					word = new StringBuilder();
+				word.append(c);
+			}
+		}
+		if(quoted)
+			throw new ModelException("Guillemet non fermé");
+		if(word != null)
+			words.add(word.toString());
+		return words;
+	}
+}
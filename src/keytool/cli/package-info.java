@@ -0,0 +1,4 @@
+/**
+ * This package hold the headless command line front end, used instead of the view and the controller.
+ */
+package keytool.cli;
\ No newline at end of file
@@ -6,21 +6,36 @@ import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 
 import javax.swing.DefaultListModel;
 import javax.swing.JFileChooser;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 
+import keytool.model.EntryType;
+import keytool.model.KeyAlgorithm;
+import keytool.model.KeyStoreSnapshot;
 import keytool.model.MTCertificate;
 import keytool.model.MTPrivateKey;
 import keytool.model.Model;
+import keytool.model.ModelEvent;
 import keytool.model.ModelException;
+import keytool.model.ModelListener;
+import keytool.view.EntryListModel;
 import keytool.view.MainWindow;
 import keytool.view.View;
 
@@ -53,6 +68,17 @@ StateChoosingCertificate --> StateImporting : FCcancel
 StateImporting --> StateWait : BtnValidate
 StateImporting --> StateWait : BtnCancel
 
+StatePickPassword --> StateBusy : PWValidate
+StateSaving --> StateBusy : FCopen
+StateExporting --> StateBusy : FCopen
+StateCreatingKey --> StateBusy : BtnValidate
+StateImporting --> StateBusy : BtnValidate
+StateBusy --> StateWait : taskDone
+StateBusy --> StateWait : BtnCancelTask
+StateBusy --> StatePickPassword : taskFailed
+StateBusy --> StateCreatingKey : taskFailed
+StateBusy --> StateImporting : taskFailed
+
 @enduml
  */
 
@@ -74,9 +100,26 @@ public class Controller {
 									StateCREATINGKEY,
 									StateCHOOSINGKEY,
 									StateCHOOSINGCERTIFICATE,
-									StateCHOOSINGPASSWORDKEYSTORE};
+									StateCHOOSINGPASSWORDKEYSTORE,
+									StateBUSY};
 
 	private State state;
+	/* Opération en cours hors de l'EDT, une seule à la fois */
+	private Task<?, ?> task;
+	/* Listes de la fenêtre principale, lues dans l'instantané du modèle */
+	private final EntryListModel keysList = EntryListModel.keys();
+	private final EntryListModel certificatesList = EntryListModel.certificates();
+	/* Détails des dernières entrées affichées, lus et modifiés sur l'EDT */
+	private static final int DETAILS_CACHE_SIZE = 256;
+	private final Map<String, String> detailsCache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > DETAILS_CACHE_SIZE;
+		}
+	};
+	/* Calcul des détails de la sélection, remplacé à chaque changement de sélection */
+	private DetailsWorker detailsWorker;
 
 	/**
 	 * Constructor of the Controller
@@ -91,6 +134,7 @@ public class Controller {
 		initMainWindowListener();
 		refreshKeysList();
 		refreshCertificateList();
+		model.addModelListener(new ModelChangesListener());
 
 		initFCWindowListener();
 		initCreateKeyWindowListener();
@@ -116,9 +160,62 @@ public class Controller {
 		mw.addKeyListListener(new ListKeysListener());
 		mw.addCertificatesListListener(new ListCertificatesListener());
 		mw.addTabChangeListener(new ChangeTabListener());
+		mw.addBtnCancelTaskListener(new BtnCancelTaskListener());
 		refreshMainWindow();
 	}
 
+	/**
+	 * Listener of the model. The events come from the thread which changed the model,
+	 * so the main window is updated later, on the event dispatch thread.
+	 */
+	class ModelChangesListener implements ModelListener {
+		public void entriesChanged(final ModelEvent event) {
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					refreshEntries(event);
+				}
+			});
+		}
+
+		public void storeReloaded(ModelEvent event) {
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					detailsCache.clear();
+					refreshMainWindow();
+				}
+			});
+		}
+
+		public void storeSaved(ModelEvent event) {
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					refreshState();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Update the main window after a change of some entries : only the changed lines of the
+	 * lists are notified, and the details are computed again only if the selected entry changed.
+	 * @param event of the model
+	 */
+	private void refreshEntries(ModelEvent event) {
+		invalidateDetails(event.getRemoved());
+		invalidateDetails(event.getReplaced());
+		if(model.isInitialized()) {
+			keysList.update(event);
+			certificatesList.update(event);
+		} else {
+			refreshLists();
+		}
+		MainWindow mw = view.getMainWindow();
+		String selected = mw.isKeysTabSelected() ? mw.getSelectedKey() : mw.getSelectedCertificate();
+		// Une entrée sélectionnée puis supprimée change la sélection, qui rafraîchit les détails
+		if(selected != null && event.isChanged(selected))
+			refreshDetails();
+	}
+
 	/**
 	 * Refresh both certificate and key of the main window.
 	 */
@@ -131,61 +228,121 @@ public class Controller {
 	 * Refresh the key list of the main window.
 	 */
 	private void refreshKeysList() {
-		DefaultListModel list = new DefaultListModel();
-
-		try {
-			if(model.isInitialized())
-				list = this.model.getKeys();
-		} catch (ModelException e) {
-			this.view.createErrorWindow(e.getMessage());
-		} finally {
-			this.view.getMainWindow().setKeysList(list);
-		}
+		// Seules les différences avec la liste affichée sont notifiées
+		if(model.isInitialized())
+			keysList.update(model.getSnapshot());
+		else
+			keysList.clear();
+		this.view.getMainWindow().setKeysList(keysList);
 	}
 	
 	/**
 	 * Refresh the certificate list of the main window.
 	 */
 	private void refreshCertificateList() {
-		DefaultListModel list = new DefaultListModel();
 		// Si le modèle n'est pas initialisé, la liste reste vide
-
-		try {
-			if(model.isInitialized())
-				list = this.model.getCertificates();
-		} catch (ModelException e) {
-			this.view.createErrorWindow(e.getMessage());
-		} finally {
-			this.view.getMainWindow().setCertificatesList(list);
-		}
+		if(model.isInitialized())
+			certificatesList.update(model.getSnapshot());
+		else
+			certificatesList.clear();
+		this.view.getMainWindow().setCertificatesList(certificatesList);
 	}
 
 	/**
 	 * Refresh the details in the main window.
+	 * The details come from the cache, or are computed out of the event dispatch thread :
+	 * a key has to be decrypted. The computation of the previous selection is cancelled.
 	 */
 	private void refreshDetails() {
-		if(!model.isInitialized())
-			view.getMainWindow().setDetails("");
-		else {
-			String details = "";
-			if(view.getMainWindow().isKeysTabSelected()) {
-				String selectedKey = view.getMainWindow().getSelectedKey();
-				try {
-					if(selectedKey != null)
-						details = model.getKey(selectedKey).getDetails();
-				} catch (ModelException e) {
-					view.createErrorWindow(e.getMessage());
-				}
-			} else if(view.getMainWindow().isCertificatesTabSelected()) {
-				String selectedCertificate = view.getMainWindow().getSelectedCertificate();
-				try {
-					if(selectedCertificate != null)
-						details = model.getCertificate(selectedCertificate).getDetails();
-				} catch (ModelException e) {
-					view.createErrorWindow(e.getMessage());
-				}
+		if(detailsWorker != null) {
+			detailsWorker.cancel(false);
+			detailsWorker = null;
+		}
+		MainWindow mw = view.getMainWindow();
+		String alias = null;
+		boolean keysTab = mw.isKeysTabSelected();
+		if(model.isInitialized()) {
+			if(keysTab)
+				alias = mw.getSelectedKey();
+			else if(mw.isCertificatesTabSelected())
+				alias = mw.getSelectedCertificate();
+		}
+		if(alias == null) {
+			mw.setDetails("");
+			return;
+		}
+		String details = detailsCache.get(detailsKey(keysTab, alias));
+		if(details != null) {
+			mw.setDetails(details);
+			return;
+		}
+		mw.setDetails("Chargement de "+alias+"...");
+		detailsWorker = new DetailsWorker(keysTab, alias);
+		detailsWorker.execute();
+	}
+
+	/**
+	 * @param keysTab whether the details are those of the key, or of the certificate
+	 * @param alias of the entry
+	 * @return the key of the details in the cache
+	 */
+	private static String detailsKey(boolean keysTab, String alias) {
+		return (keysTab ? "k:" : "c:")+alias;
+	}
+
+	/**
+	 * Remove the details of changed entries from the cache
+	 * @param aliases of the entries
+	 */
+	private void invalidateDetails(List<String> aliases) {
+		for(String alias : aliases) {
+			detailsCache.remove(detailsKey(true, alias));
+			detailsCache.remove(detailsKey(false, alias));
+		}
+	}
+
+	/**
+	 * Computation of the details of the selected entry, out of the event dispatch thread.
+	 * Only the last one started is shown, the others are cancelled or ignored.
+	 */
+	private class DetailsWorker extends SwingWorker<String, Void> {
+		private final boolean keysTab;
+		private final String alias;
+		/* Entrée lue au départ : le résultat n'est gardé que si elle n'a pas changé depuis */
+		private final KeyStoreSnapshot.Entry entry;
+
+		DetailsWorker(boolean keysTab, String alias) {
+			this.keysTab = keysTab;
+			this.alias = alias;
+			this.entry = model.getSnapshot().get(alias);
+		}
+
+		protected String doInBackground() throws ModelException {
+			if(isCancelled())
+				return null;
+			if(keysTab)
+				return model.getKey(alias).getDetails();
+			return model.getCertificate(alias).getDetails();
+		}
+
+		protected void done() {
+			if(this != detailsWorker || isCancelled())
+				return;
+			detailsWorker = null;
+			try {
+				String details = get();
+				if(entry != null && model.getSnapshot().get(alias) == entry)
+					detailsCache.put(detailsKey(keysTab, alias), details);
+				view.getMainWindow().setDetails(details);
+			} catch (ExecutionException e) {
+				view.getMainWindow().setDetails("");
+				if(e.getCause() instanceof ModelException)
+					view.createErrorWindow(e.getCause().getMessage());
+				else
+					view.createErrorWindow("Erreur inattendue : "+e.getCause());
+			} catch (InterruptedException e) {
+				view.getMainWindow().setDetails("");
 			}
-			view.getMainWindow().setDetails(details);
 		}
 	}
 	
@@ -199,7 +356,13 @@ public class Controller {
 		// DO refresh the lists before the details
 		refreshLists();
 		refreshDetails();
-		
+		refreshState();
+	}
+
+	/**
+	 * Enable or disable the buttons of the main window, and show the path in its title
+	 */
+	private void refreshState() {
 		if(model.isInitialized()) {
 			this.setEnable(true);
 			view.getMainWindow().setTitle(model.getCurrentPath());
@@ -217,6 +380,116 @@ public class Controller {
 		view.getMainWindow().setEnabledFields(enable);
 	}
 
+	/**
+	 * Operation of the model run out of the event dispatch thread, so the crypto and the
+	 * I/O never freeze the interface. Only one task runs at a time : while it runs the state
+	 * is StateBUSY and the main window is disabled, then the callbacks, called on the event
+	 * dispatch thread, set the next state.
+	 * @param <T> result of the operation
+	 * @param <V> intermediate results published during the operation
+	 */
+	private abstract class Task<T, V> extends SwingWorker<T, V> {
+		private final String message;
+		private final boolean cancellable;
+		private volatile boolean cancelRequested;
+
+		/**
+		 * @param message shown during the operation
+		 * @param cancellable whether or not the user can cancel the operation
+		 */
+		Task(String message, boolean cancellable) {
+			this.message = message;
+			this.cancellable = cancellable;
+		}
+
+		/**
+		 * Start the operation, from the event dispatch thread
+		 */
+		void start() {
+			task = this;
+			state = State.StateBUSY;
+			setEnable(false);
+			view.getMainWindow().showProgress(message, cancellable);
+			addPropertyChangeListener(new PropertyChangeListener() {
+				public void propertyChange(PropertyChangeEvent e) {
+					if("progress".equals(e.getPropertyName()))
+						view.getMainWindow().setProgress((Integer) e.getNewValue());
+				}
+			});
+			execute();
+		}
+
+		/**
+		 * Ask the operation to stop. The operation checks it between its steps, and
+		 * ends as cancelled if it stops, or as succeeded if it was already done.
+		 */
+		void requestCancel() {
+			if(cancellable)
+				cancelRequested = true;
+		}
+
+		/**
+		 * @return whether or not the user has asked to stop the operation
+		 */
+		boolean isCancelRequested() {
+			return cancelRequested;
+		}
+
+		protected final void done() {
+			task = null;
+			view.getMainWindow().hideProgress();
+			state = State.StateWAIT;
+			try {
+				succeeded(get());
+			} catch (ExecutionException e) {
+				if(cancelRequested)
+					cancelled();
+				else if(e.getCause() instanceof ModelException)
+					failed(e.getCause().getMessage());
+				else
+					failed("Erreur inattendue : "+e.getCause());
+			} catch (CancellationException e) {
+				cancelled();
+			} catch (InterruptedException e) {
+				cancelled();
+			}
+			// Les listes et les détails suivent les événements du modèle
+			refreshState();
+		}
+
+		/**
+		 * Called on the event dispatch thread when the operation succeeded
+		 * @param result of the operation
+		 */
+		protected void succeeded(T result) {
+		}
+
+		/**
+		 * Called on the event dispatch thread when the operation failed.
+		 * The default shows the error and goes back to StateWAIT.
+		 * @param error message of the error
+		 */
+		protected void failed(String error) {
+			view.createErrorWindow(error);
+		}
+
+		/**
+		 * Called on the event dispatch thread when the operation has been cancelled
+		 */
+		protected void cancelled() {
+		}
+	}
+
+	/**
+	 * Action listener for the cancel button of the background operations in the main window
+	 */
+	class BtnCancelTaskListener implements ActionListener {
+		public void actionPerformed(ActionEvent e) {
+			if(task != null)
+				task.requestCancel();
+		}
+	}
+
 	/**
 	 * Action listener for the new button of the main window
 	 */
@@ -253,14 +526,16 @@ public class Controller {
 	 */
 	class ItemSaveListener implements ActionListener {
 		public void actionPerformed(ActionEvent e) {
-			try {
-				if(model.getCurrentPath() == null)
-					saveModelAs();
-				else
-					model.save();
-			} catch (ModelException e1) {
-				view.createErrorWindow(e1.getMessage());
+			if(model.getCurrentPath() == null) {
+				saveModelAs();
+				return;
 			}
+			new Task<Void, Void>("Sauvegarde du keystore", false) {
+				protected Void doInBackground() throws ModelException {
+					model.save();
+					return null;
+				}
+			}.start();
 		}
 	}
 
@@ -328,8 +603,6 @@ public class Controller {
 			catch(ModelException e1) {
 				view.createErrorWindow(e1.getMessage());
 			}
-			refreshLists();
-			refreshDetails();
 		}
 	}
 	
@@ -392,31 +665,35 @@ public class Controller {
 					}
 					break;
 				case StateSAVING:
-					try {
-						view.hideFileChooserWindow();
-						model.saveAs(view.getFileChooserWindow().getPath());
-						refreshMainWindow();
-					} catch (ModelException e1) {
-						view.createErrorWindow(e1.getMessage());
-					}
+					view.hideFileChooserWindow();
+					final String savePath = view.getFileChooserWindow().getPath();
+					new Task<Void, Void>("Sauvegarde du keystore", false) {
+						protected Void doInBackground() throws ModelException {
+							model.saveAs(savePath);
+							return null;
+						}
+					}.start();
 					break;
 				case StateEXPORTING:
-					try {
-						if(view.getMainWindow().isKeysTabSelected()) {
-							String alias = view.getMainWindow().getSelectedKey();
-							if(! alias.equals(""))
-								model.getKey(alias).exportTo(view.getFileChooserWindow().getPath());
-								
-						} else if(view.getMainWindow().isCertificatesTabSelected()) {
-							String alias = view.getMainWindow().getSelectedCertificate();
-							if(! alias.equals(""))
-								model.getCertificate(alias).exportTo(view.getFileChooserWindow().getPath());
-							
-						}
-					} catch (ModelException e1) {
-						view.createErrorWindow(e1.getMessage());
-					}
 					view.hideFileChooserWindow();
+					final boolean keysTab = view.getMainWindow().isKeysTabSelected();
+					final String alias = keysTab ? view.getMainWindow().getSelectedKey()
+							: view.getMainWindow().getSelectedCertificate();
+					final String exportPath = view.getFileChooserWindow().getPath();
+					if(alias == null || alias.equals("")) {
+						state = State.StateWAIT;
+						break;
+					}
+					new Task<Void, Void>("Export de "+alias, false) {
+						protected Void doInBackground() throws ModelException {
+							// Le déchiffrement de la clé se fait aussi hors de l'EDT
+							if(keysTab)
+								model.getKey(alias).exportTo(exportPath);
+							else
+								model.getCertificate(alias).exportTo(exportPath);
+							return null;
+						}
+					}.start();
 					break;
 				case StateCHOOSINGKEY:
 					view.getImportKeyWindow().setKeyFileField(view.getFileChooserWindow().getPath());
@@ -483,6 +760,10 @@ public class Controller {
 	 */
 	class CKWBtnCancelListener implements ActionListener {
 		public void actionPerformed(ActionEvent arg0) {
+			if(task != null) {
+				task.requestCancel();
+				return;
+			}
 			view.getCreateKeyWindow().resetField();
 			view.hideCreateKeyWindow();
 		}
@@ -493,6 +774,8 @@ public class Controller {
 	 */
 	class CKWBtnValidateListener implements ActionListener {
 		public void actionPerformed(ActionEvent arg0) {
+			if(task != null)
+				return;
 			try {
 				if(view.getCreateKeyWindow().getAliasField().equals(""))
 					throw new ModelException("L'alias ne doit pas être vide !");
@@ -510,11 +793,33 @@ public class Controller {
 				subject.append(", ");
 				subject.append("C="+view.getCreateKeyWindow().getCountryField());
 
-				MTPrivateKey key = new MTPrivateKey(subject.toString());
-				key.addToKeyStore(model, view.getCreateKeyWindow().getAliasField());
-				view.hideCreateKeyWindow();
-				view.getCreateKeyWindow().resetField();
-				refreshLists();
+				final String name = subject.toString();
+				final String alias = view.getCreateKeyWindow().getAliasField();
+				final KeyAlgorithm algorithm = view.getCreateKeyWindow().getAlgorithmField();
+				new Task<Void, Void>("Création de la clé "+alias, true) {
+					protected Void doInBackground() throws ModelException {
+						MTPrivateKey key = new MTPrivateKey(name, algorithm);
+						// Rien n'est ajouté au keystore si la création est annulée
+						if(isCancelRequested())
+							throw new ModelException("Création de la clé "+alias+" annulée");
+						key.addToKeyStore(model, alias);
+						return null;
+					}
+
+					protected void succeeded(Void result) {
+						view.hideCreateKeyWindow();
+						view.getCreateKeyWindow().resetField();
+					}
+
+					protected void failed(String error) {
+						super.failed(error);
+						state = State.StateCREATINGKEY;
+					}
+
+					protected void cancelled() {
+						state = State.StateCREATINGKEY;
+					}
+				}.start();
 			} catch (ModelException e) {
 				view.createErrorWindow(e.getMessage());
 			}
@@ -579,33 +884,46 @@ public class Controller {
 	 */
 	class IKWBtnValidateListener implements ActionListener {
 		public void actionPerformed(ActionEvent arg0) {
-			try {
-				String certpath = view.getImportKeyWindow().getCertificateFileField();
-				String keypath = view.getImportKeyWindow().getKeyFileField();
-				String alias = view.getImportKeyWindow().getAliasField();
-				if(alias.isEmpty())
-					throw new ModelException("L'alias est obligatoire");
-				
-				if(keypath.isEmpty()) {
-					// Import a certificate
-					MTCertificate certificate;
-					try {
-						certificate = new MTCertificate(new FileInputStream(certpath));
-					} catch (FileNotFoundException e) {
-						throw new ModelException("Fichier non trouvé :"+certpath);
+			if(task != null)
+				return;
+			final String certpath = view.getImportKeyWindow().getCertificateFileField();
+			final String keypath = view.getImportKeyWindow().getKeyFileField();
+			final String alias = view.getImportKeyWindow().getAliasField();
+			if(alias.isEmpty()) {
+				view.createErrorWindow("L'alias est obligatoire");
+				return;
+			}
+			new Task<String, Void>("Import de "+alias, false) {
+				protected String doInBackground() throws ModelException {
+					if(keypath.isEmpty()) {
+						// Import a certificate, unless the keystore already holds it
+						MTCertificate certificate;
+						try {
+							certificate = new MTCertificate(new FileInputStream(certpath));
+						} catch (FileNotFoundException e) {
+							throw new ModelException("Fichier non trouvé :"+certpath);
+						}
+						return certificate.addToKeyStoreIfAbsent(model, alias);
+					} else {
+						// Import a PrivateKey
+						MTPrivateKey key = new MTPrivateKey(keypath, certpath);
+						key.addToKeyStore(model, alias);
 					}
-					certificate.addToKeyStore(model, alias);
-				} else {
-					// Import a PrivateKey
-					MTPrivateKey key = new MTPrivateKey(keypath, certpath);
-					key.addToKeyStore(model, alias);
+					return null;
 				}
-				view.hideImportKeyWindow();
-				view.getImportKeyWindow().resetField();
-				refreshLists();
-			} catch (ModelException e) {
-				view.createErrorWindow(e.getMessage());
-			}
+
+				protected void succeeded(String existing) {
+					view.hideImportKeyWindow();
+					view.getImportKeyWindow().resetField();
+					if(existing != null)
+						view.createErrorWindow("Ce certificat est déjà dans le keystore, sous l'alias "+existing);
+				}
+
+				protected void failed(String error) {
+					super.failed(error);
+					state = State.StateIMPORTING;
+				}
+			}.start();
 		}
 	}
 	
@@ -636,6 +954,10 @@ public class Controller {
 	 */
 	class PWBtnCancelListener implements ActionListener {
 		public void actionPerformed(ActionEvent arg0) {
+			if(task != null) {
+				task.requestCancel();
+				return;
+			}
 			view.hidePasswordWindow();
 			view.resetPasswordWindow();
 			state = State.StateWAIT;
@@ -655,22 +977,11 @@ public class Controller {
 	 * helper to validate the password given by the user, and display an error message if wrong
 	 */
 	private void validatePassword() {
+		if(task != null)
+			return;
 		switch(state) {
 		case StatePICKPASSWORD:
-			try {
-				model.openKeyStore(view.getFileChooserWindow().getPath(), view.getPasswordWindow().getPasswordField());
-				view.hidePasswordWindow();
-				state = State.StateWAIT;
-
-			} catch (ModelException e) {
-				// Erreur de mot de passe : pas de changement d'etat
-				view.createErrorWindow(e.getMessage());
-			} finally {
-				refreshMainWindow();
-				view.resetPasswordWindow();
-
-			}
-			
+			openKeyStore(view.getFileChooserWindow().getPath(), view.getPasswordWindow().getPasswordField());
 			break;
 		case StateCHOOSINGPASSWORDKEYSTORE:
 			try {
@@ -686,11 +997,82 @@ public class Controller {
 		}
 	}
 	
+	/**
+	 * Open a keystore in the background. The lists of the main window are filled while the
+	 * entries are read, and the opening can be cancelled until the keystore is loaded.
+	 * @param path of the keystore
+	 * @param password of the keystore
+	 */
+	private void openKeyStore(final String path, final char[] password) {
+		final DefaultListModel keys = new DefaultListModel();
+		final DefaultListModel certificates = new DefaultListModel();
+		view.getMainWindow().setKeysList(keys);
+		view.getMainWindow().setCertificatesList(certificates);
+		view.getMainWindow().setDetails("");
+
+		new Task<Void, Object[]>("Ouverture de "+new File(path).getName(), true) {
+			protected Void doInBackground() throws ModelException {
+				model.openKeyStore(path, password, new Model.Progress() {
+					public void progress(long done, long total) {
+						if(total > 0)
+							setProgress((int) Math.min(100, done * 100 / total));
+					}
+
+					public void entry(String alias, EntryType type) {
+						publish(new Object[] {alias, type});
+					}
+
+					public boolean isCancelled() {
+						return isCancelRequested();
+					}
+				});
+				return null;
+			}
+
+			protected void process(List<Object[]> entries) {
+				// Les listes sont remplacées par celles du modèle à la fin de l'ouverture
+				for(Object[] entry : entries) {
+					EntryType type = (EntryType) entry[1];
+					if(type.isKey())
+						keys.addElement(entry[0]);
+					if(type.hasCertificate())
+						certificates.addElement(entry[0]);
+				}
+			}
+
+			protected void succeeded(Void result) {
+				view.hidePasswordWindow();
+				view.resetPasswordWindow();
+			}
+
+			protected void failed(String error) {
+				// Erreur de mot de passe : on reste sur le choix du mot de passe
+				view.createErrorWindow(error);
+				view.resetPasswordWindow();
+				state = State.StatePICKPASSWORD;
+				// Le keystore précédent est conservé : on réaffiche ses listes
+				refreshLists();
+				refreshDetails();
+			}
+
+			protected void cancelled() {
+				view.hidePasswordWindow();
+				view.resetPasswordWindow();
+				refreshLists();
+				refreshDetails();
+			}
+		}.start();
+	}
+
 	/**
 	 * Window listener for the password window
 	 */
 	class PWCWindowListener extends WindowAdapter {
 		public void windowClosing(WindowEvent e) {
+			if(task != null) {
+				task.requestCancel();
+				return;
+			}
 			view.hidePasswordWindow();
 			view.resetPasswordWindow();
 			state = State.StateWAIT;
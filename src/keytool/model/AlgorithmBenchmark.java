@@ -0,0 +1,139 @@
+package keytool.model;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+
+/**
+ * Measure of the throughput of the key algorithms : generation of the key pairs,
+ * signature and verification of a message the size of a certificate.
+ * The pairs are generated directly, without the {@link KeyPairPool}, by the same providers.
+ * @author Michaël Muré & Théophile Helleboid
+ *
+ */
+public class AlgorithmBenchmark {
+	/* Taille d'un certificat courant */
+	private static final int MESSAGE_SIZE = 1024;
+	/* Opérations non mesurées, le temps que le JIT compile */
+	private static final int WARMUP = 3;
+
+	private final int iterations;
+
+	/**
+	 * Create a benchmark
+	 * @param iterations number of operations measured, of each kind, for each algorithm
+	 */
+	public AlgorithmBenchmark(int iterations) {
+		if(iterations <= 0)
+			throw new IllegalArgumentException("Nombre d'itérations invalide");
+		this.iterations = iterations;
+	}
+
+	/**
+	 * Measure an algorithm
+	 * @param algorithm to measure
+	 * @return the throughputs
+	 * @throws ModelException if the algorithm is not available
+	 */
+	public Result run(KeyAlgorithm algorithm) throws ModelException {
+		KeyPairGenerator kpGen = KeyPairPool.newGenerator(algorithm.getAlgorithm(), algorithm.getSize());
+		byte[] message = new byte[MESSAGE_SIZE];
+		try {
+			Signature signature = Signature.getInstance(algorithm.getSignatureAlgorithm(), algorithm.provider());
+			KeyPair pair = null;
+			for(int i = 0; i < WARMUP; i++)
+				pair = kpGen.generateKeyPair();
+			long start = System.nanoTime();
+			for(int i = 0; i < iterations; i++)
+				pair = kpGen.generateKeyPair();
+			long keygen = System.nanoTime() - start;
+
+			byte[] signed = null;
+			for(int i = 0; i < WARMUP + iterations; i++) {
+				if(i == WARMUP)
+					start = System.nanoTime();
+				signature.initSign(pair.getPrivate());
+				signature.update(message);
+				signed = signature.sign();
+			}
+			long sign = System.nanoTime() - start;
+
+			for(int i = 0; i < WARMUP + iterations; i++) {
+				if(i == WARMUP)
+					start = System.nanoTime();
+				signature.initVerify(pair.getPublic());
+				signature.update(message);
+				if(!signature.verify(signed))
+					throw new ModelException("Vérification échouée pour "+algorithm);
+			}
+			long verify = System.nanoTime() - start;
+			return new Result(algorithm, perSecond(keygen), perSecond(sign), perSecond(verify));
+		} catch (GeneralSecurityException e) {
+			throw new ModelException("Problème de signature avec "+algorithm+" : "+e.getMessage());
+		}
+	}
+
+	private double perSecond(long nanos) {
+		return nanos == 0 ? 0 : iterations * 1e9 / nanos;
+	}
+
+	/**
+	 * Throughputs of an algorithm
+	 */
+	public static class Result {
+		private final KeyAlgorithm algorithm;
+		private final double keygen;
+		private final double sign;
+		private final double verify;
+
+		Result(KeyAlgorithm algorithm, double keygen, double sign, double verify) {
+			this.algorithm = algorithm;
+			this.keygen = keygen;
+			this.sign = sign;
+			this.verify = verify;
+		}
+
+		/**
+		 * @return the algorithm measured
+		 */
+		public KeyAlgorithm getAlgorithm() {
+			return algorithm;
+		}
+
+		/**
+		 * @return the number of key pairs generated per second
+		 */
+		public double getKeygenPerSecond() {
+			return keygen;
+		}
+
+		/**
+		 * @return the number of signatures per second
+		 */
+		public double getSignPerSecond() {
+			return sign;
+		}
+
+		/**
+		 * @return the number of verifications per second
+		 */
+		public double getVerifyPerSecond() {
+			return verify;
+		}
+
+		/**
+		 * @return a row of the table, under {@link #header()}
+		 */
+		public String toString() {
+			return String.format("%-10s %12.1f %12.1f %12.1f", algorithm, keygen, sign, verify);
+		}
+
+		/**
+		 * @return the header of the table
+		 */
+		public static String header() {
+			return String.format("%-10s %12s %12s %12s", "Algorithme", "clés/s", "signatures/s", "vérifs/s");
+		}
+	}
+}
@@ -0,0 +1,335 @@
+package keytool.model;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.Key;
+import java.security.PrivateKey;
+import java.security.cert.CertificateEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.bouncycastle.util.encoders.Base64;
+
+/**
+ * Export of many entries of a keystore at once.
+ * The selected entries (or the whole keystore) are written in one PEM bundle, in a
+ * directory of DER files or in a tar archive of DER files. The encoded objects are
+ * written directly to a FileChannel, several entries per gathering write, without
+ * going through a String.
+ *
+ * The certificates are always exported, those of the private keys included. The
+ * private keys are only exported if asked, in PKCS#8 : they have to be decrypted.
+ * The secret keys are never exported.
+ * @author Michaël Muré & Théophile Helleboid
+ *
+ */
+public class BulkExporter {
+	/** Layout of the export */
+	public enum Format {
+		/** One PEM file holding all the objects */
+		PEM_BUNDLE,
+		/** A directory with a DER file per object */
+		DER_DIRECTORY,
+		/** A tar archive with a DER file per object */
+		TAR
+	}
+
+	/* Taille accumulée avant une écriture groupée */
+	private static final int FLUSH_SIZE = 256 * 1024;
+	private static final int FLUSH_BUFFERS = 512;
+	private static final int PEM_LINE = 64;
+	private static final int TAR_BLOCK = 512;
+	private static final int MAX_NAME_LENGTH = 90;
+
+	private final Model model;
+	private boolean includeKeys;
+
+	/**
+	 * Create an exporter
+	 * @param model holding the entries
+	 */
+	public BulkExporter(Model model) {
+		this.model = model;
+	}
+
+	/**
+	 * @param includeKeys whether or not the private keys are exported with their certificates
+	 * @return this exporter
+	 */
+	public BulkExporter setIncludeKeys(boolean includeKeys) {
+		this.includeKeys = includeKeys;
+		return this;
+	}
+
+	/**
+	 * Export entries
+	 * @param aliases of the entries, or null for the whole keystore
+	 * @param format of the export
+	 * @param target file of a bundle or an archive, directory of the DER files
+	 * @return the number of objects written
+	 * @throws ModelException
+	 */
+	public int export(Collection<String> aliases, Format format, File target) throws ModelException {
+		KeyStoreSnapshot snapshot = model.getSnapshot();
+		if(aliases == null)
+			aliases = snapshot.aliases();
+		List<KeyStoreSnapshot.Entry> entries = new ArrayList<KeyStoreSnapshot.Entry>(aliases.size());
+		for(String alias : aliases) {
+			KeyStoreSnapshot.Entry entry = snapshot.get(alias);
+			if(entry == null)
+				throw new ModelException("Pas d'alias "+alias);
+			entries.add(entry);
+		}
+
+		if(format == Format.DER_DIRECTORY && !target.isDirectory() && !target.mkdirs())
+			throw new ModelException("Impossible de créer le répertoire "+target.getPath());
+
+		Writer writer = format == Format.PEM_BUNDLE ? new PemWriter(target)
+				: format == Format.TAR ? new TarWriter(target) : new DerWriter(target);
+		int count = 0;
+		try {
+			for(KeyStoreSnapshot.Entry entry : entries) {
+				if(entry.getCertificate() != null) {
+					writer.write(entry.getAlias(), "CERTIFICATE", entry.getCertificate().getEncoded());
+					count++;
+				}
+				if(includeKeys && entry.getType() == EntryType.PRIVATE_KEY) {
+					Key key = model.recoverKey(entry.getAlias());
+					if(!(key instanceof PrivateKey) || key.getEncoded() == null)
+						throw new ModelException("Clé non exportable : "+entry.getAlias());
+					writer.write(entry.getAlias(), "PRIVATE KEY", key.getEncoded());
+					count++;
+				}
+			}
+			writer.finish();
+		} catch (CertificateEncodingException e) {
+			throw new ModelException("Problème d'encodage de certificat : "+e.getMessage());
+		} catch (IOException e) {
+			throw new ModelException("Problème d'entrée/sortie : "+e.getMessage());
+		} finally {
+			writer.close();
+		}
+		return count;
+	}
+
+	/**
+	 * Encode an object in PEM, directly in bytes
+	 * @param type of the PEM block, like "CERTIFICATE"
+	 * @param der encoding of the object
+	 * @return the PEM block, with its final end of line
+	 * @throws IOException
+	 */
+	static byte[] pem(String type, byte[] der) throws IOException {
+		byte[] begin = ("-----BEGIN "+type+"-----\n").getBytes("US-ASCII");
+		byte[] end = ("-----END "+type+"-----\n").getBytes("US-ASCII");
+		// Base64 découpé en lignes de 64 caractères
+		byte[] encoded = Base64.encode(der);
+		byte[] block = new byte[begin.length + encoded.length + (encoded.length + PEM_LINE - 1) / PEM_LINE + end.length];
+		System.arraycopy(begin, 0, block, 0, begin.length);
+		int n = begin.length;
+		for(int i = 0; i < encoded.length; i += PEM_LINE) {
+			int length = Math.min(PEM_LINE, encoded.length - i);
+			System.arraycopy(encoded, i, block, n, length);
+			n += length;
+			block[n++] = '\n';
+		}
+		System.arraycopy(end, 0, block, n, end.length);
+		return block;
+	}
+
+	/**
+	 * Name of the file of an object in a directory or an archive
+	 * @param alias of the entry
+	 * @param type of the object
+	 * @param used names already given, to avoid the collisions
+	 * @return the name
+	 */
+	private static String fileName(String alias, String type, Set<String> used) {
+		StringBuilder base = new StringBuilder();
+		for(int i = 0; i < alias.length() && base.length() < MAX_NAME_LENGTH; i++) {
+			char c = alias.charAt(i);
+			boolean safe = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+					|| c == '.' || c == '-' || c == '_';
+			base.append(safe ? c : '_');
+		}
+		if(type.equals("PRIVATE KEY"))
+			base.append("-key");
+		String name = base+".der";
+		for(int i = 2; !used.add(name); i++)
+			name = base+"-"+i+".der";
+		return name;
+	}
+
+	/**
+	 * Write of the objects in one format
+	 */
+	private abstract static class Writer {
+		/**
+		 * @param alias of the entry
+		 * @param type PEM type of the object
+		 * @param der encoding of the object
+		 * @throws IOException
+		 */
+		abstract void write(String alias, String type, byte[] der) throws IOException;
+
+		/**
+		 * Write what is still pending
+		 * @throws IOException
+		 */
+		abstract void finish() throws IOException;
+
+		abstract void close();
+	}
+
+	/**
+	 * Writer gathering the buffers of several objects in one write
+	 */
+	private abstract static class ChannelWriter extends Writer {
+		private final FileOutputStream out;
+		private final FileChannel channel;
+		private final List<ByteBuffer> pending = new ArrayList<ByteBuffer>();
+		private long pendingSize;
+
+		ChannelWriter(File target) throws ModelException {
+			try {
+				this.out = new FileOutputStream(target);
+			} catch (IOException e) {
+				throw new ModelException("Impossible de créer "+target.getPath()+" : "+e.getMessage());
+			}
+			this.channel = out.getChannel();
+		}
+
+		void add(ByteBuffer buffer) throws IOException {
+			pending.add(buffer);
+			pendingSize += buffer.remaining();
+			if(pendingSize >= FLUSH_SIZE || pending.size() >= FLUSH_BUFFERS)
+				flush();
+		}
+
+		void flush() throws IOException {
+			ByteBuffer[] buffers = pending.toArray(new ByteBuffer[pending.size()]);
+			long remaining = pendingSize;
+			while(remaining > 0)
+				remaining -= channel.write(buffers);
+			pending.clear();
+			pendingSize = 0;
+		}
+
+		void finish() throws IOException {
+			flush();
+			channel.force(false);
+		}
+
+		void close() {
+			Model.closeQuietly(out);
+		}
+	}
+
+	/**
+	 * All the objects in one PEM file
+	 */
+	private static class PemWriter extends ChannelWriter {
+		PemWriter(File target) throws ModelException {
+			super(target);
+		}
+
+		void write(String alias, String type, byte[] der) throws IOException {
+			add(ByteBuffer.wrap(pem(type, der)));
+		}
+	}
+
+	/**
+	 * A tar archive (ustar) of DER files
+	 */
+	private static class TarWriter extends ChannelWriter {
+		private final Set<String> used = new HashSet<String>();
+		private final long mtime = System.currentTimeMillis() / 1000;
+
+		TarWriter(File target) throws ModelException {
+			super(target);
+		}
+
+		void write(String alias, String type, byte[] der) throws IOException {
+			add(header(fileName(alias, type, used), der.length));
+			add(ByteBuffer.wrap(der));
+			int padding = (TAR_BLOCK - der.length % TAR_BLOCK) % TAR_BLOCK;
+			if(padding > 0)
+				add(ByteBuffer.allocate(padding));
+		}
+
+		void finish() throws IOException {
+			// Fin de l'archive : deux blocs vides
+			add(ByteBuffer.allocate(2 * TAR_BLOCK));
+			super.finish();
+		}
+
+		private ByteBuffer header(String name, int size) throws IOException {
+			byte[] h = new byte[TAR_BLOCK];
+			put(h, 0, name.getBytes("US-ASCII"));
+			put(h, 100, "0000644".getBytes("US-ASCII"));
+			put(h, 108, "0000000".getBytes("US-ASCII"));
+			put(h, 116, "0000000".getBytes("US-ASCII"));
+			put(h, 124, octal(size, 11));
+			put(h, 136, octal(mtime, 11));
+			h[156] = '0';
+			put(h, 257, "ustar\0".getBytes("US-ASCII"));
+			put(h, 263, "00".getBytes("US-ASCII"));
+			// La somme de contrôle se calcule avec son propre champ rempli d'espaces
+			for(int i = 148; i < 156; i++)
+				h[i] = ' ';
+			long sum = 0;
+			for(byte b : h)
+				sum += b & 0xff;
+			put(h, 148, octal(sum, 6));
+			h[154] = 0;
+			return ByteBuffer.wrap(h);
+		}
+
+		private static void put(byte[] h, int offset, byte[] value) {
+			System.arraycopy(value, 0, h, offset, value.length);
+		}
+
+		private static byte[] octal(long value, int digits) throws IOException {
+			StringBuilder s = new StringBuilder(Long.toOctalString(value));
+			while(s.length() < digits)
+				s.insert(0, '0');
+			return s.toString().getBytes("US-ASCII");
+		}
+	}
+
+	/**
+	 * A directory of DER files
+	 */
+	private static class DerWriter extends Writer {
+		private final File directory;
+		private final Set<String> used = new HashSet<String>();
+
+		DerWriter(File directory) {
+			this.directory = directory;
+		}
+
+		void write(String alias, String type, byte[] der) throws IOException {
+			FileOutputStream out = new FileOutputStream(new File(directory, fileName(alias, type, used)));
+			try {
+				ByteBuffer buffer = ByteBuffer.wrap(der);
+				FileChannel channel = out.getChannel();
+				while(buffer.hasRemaining())
+					channel.write(buffer);
+			} finally {
+				out.close();
+			}
+		}
+
+		void finish() {
+		}
+
+		void close() {
+		}
+	}
+}
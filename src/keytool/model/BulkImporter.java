@@ -0,0 +1,405 @@
+package keytool.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.interfaces.DSAPrivateKey;
+import java.security.interfaces.DSAPublicKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.math.ec.ECPoint;
+
+/**
+ * Import of all the keys and certificates of a directory tree.
+ * The files are parsed in parallel by a pool of threads, every object of a bundle being
+ * read, then each private key is
+ * paired with the certificate holding its public key, and everything is added to
+ * the Model in one batch. Saving the keystore once afterwards is left to the caller.
+ *
+ * The alias of an entry is the name of its file without the extension : the file
+ * of the key for a private key. An alias already used, for instance by the second
+ * certificate of a bundle, gets a numeric suffix. A certificate already in the keystore,
+ * or found twice in the tree, is not added again.
+ * @author Michaël Muré & Théophile Helleboid
+ *
+ */
+public class BulkImporter {
+	private final Model model;
+	private final int threads;
+	private final AtomicLong parsed = new AtomicLong();
+
+	/**
+	 * Create an importer using a thread per processor
+	 * @param model receiving the entries
+	 */
+	public BulkImporter(Model model) {
+		this(model, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Create an importer
+	 * @param model receiving the entries
+	 * @param threads number of threads parsing the files
+	 */
+	public BulkImporter(Model model, int threads) {
+		if(threads <= 0)
+			throw new IllegalArgumentException("Nombre de threads invalide");
+		this.model = model;
+		this.threads = threads;
+	}
+
+	/**
+	 * @return the number of files parsed so far, to follow the progress of an import
+	 */
+	public long getParsedCount() {
+		return parsed.get();
+	}
+
+	/**
+	 * Import all the files of a directory and of its subdirectories.
+	 * A file which cannot be parsed or imported is reported, and the others are imported anyway.
+	 * @param directory to import
+	 * @return the report of the import
+	 * @throws ModelException if the directory cannot be read
+	 */
+	public Report importDirectory(File directory) throws ModelException {
+		long start = System.nanoTime();
+		if(!directory.isDirectory())
+			throw new ModelException("Pas un répertoire : "+directory.getPath());
+		List<File> files = new ArrayList<File>();
+		walk(directory, files);
+		parsed.set(0);
+
+		final Report report = new Report(files.size());
+		final List<Parsed> results = parse(files, report);
+
+		// Appariement des clés et des certificats par leur clé publique
+		Map<String, Parsed> keys = new HashMap<String, Parsed>();
+		for(Parsed p : results) {
+			String id = p.key == null ? null : publicId(p.key);
+			if(id != null)
+				keys.put(id, p);
+		}
+		for(Parsed p : results) {
+			String id = p.certificate == null ? null : publicId(p.certificate.getPublicKey());
+			if(id == null)
+				continue;
+			Parsed owner = keys.get(id);
+			if(owner != null && owner.certificate == null) {
+				owner.certificate = p.certificate;
+				p.certificate = null;
+			}
+		}
+
+		model.runBatch(new Model.Batch() {
+			public void run(Model model) throws ModelException {
+				for(Parsed p : results) {
+					if(p.key == null && p.certificate == null)
+						continue;
+					if(p.key != null && p.certificate == null) {
+						report.error(p.file, "Pas de certificat pour cette clé privée");
+						continue;
+					}
+					String alias = freeAlias(aliasOf(p.file));
+					try {
+						if(p.key != null) {
+							model.addPrivateKey(alias, p.key, p.certificate);
+							report.imported++;
+						} else {
+							// Un certificat déjà présent, par exemple importé avec un autre bundle, est ignoré
+							String existing = model.addCertificateIfAbsent(alias, p.certificate);
+							if(existing == null)
+								report.imported++;
+							else
+								report.duplicate(p.file, existing);
+						}
+					} catch (ModelException e) {
+						report.error(p.file, e.getMessage());
+					}
+				}
+			}
+		});
+		report.elapsedNanos = System.nanoTime() - start;
+		return report;
+	}
+
+	/**
+	 * Parse the files on the pool of threads
+	 * @param files to parse
+	 * @param report receiving the parse errors
+	 * @return the objects read, in the order of the files
+	 * @throws ModelException
+	 */
+	private List<Parsed> parse(List<File> files, Report report) throws ModelException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "keystore-import");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		// Une usine par thread : CertificateFactory n'est pas garantie sûre entre threads
+		final ThreadLocal<CertificateFactory> factories = new ThreadLocal<CertificateFactory>() {
+			protected CertificateFactory initialValue() {
+				try {
+					return CertificateFactory.getInstance("X.509");
+				} catch (CertificateException e) {
+					throw new IllegalStateException(e.getMessage());
+				}
+			}
+		};
+		try {
+			List<Future<List<Parsed>>> futures = new ArrayList<Future<List<Parsed>>>(files.size());
+			for(final File file : files) {
+				futures.add(pool.submit(new Callable<List<Parsed>>() {
+					public List<Parsed> call() {
+						try {
+							return parse(file, factories.get());
+						} finally {
+							parsed.incrementAndGet();
+						}
+					}
+				}));
+			}
+			List<Parsed> results = new ArrayList<Parsed>(files.size());
+			for(Future<List<Parsed>> future : futures) {
+				for(Parsed p : future.get()) {
+					if(p.error != null)
+						report.error(p.file, p.error);
+					else
+						results.add(p);
+				}
+			}
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ModelException("Import interrompu");
+		} catch (ExecutionException e) {
+			throw new ModelException("Erreur lors de l'import : "+e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Parse all the private keys and certificates of a PEM or DER file.
+	 * The other PEM objects are ignored.
+	 * @param file to parse
+	 * @param factory of the certificates
+	 * @return the keys and certificates, followed by the error which stopped the parse if any
+	 */
+	private static List<Parsed> parse(File file, CertificateFactory factory) {
+		List<Parsed> objects = new ArrayList<Parsed>();
+		PemReader reader = null;
+		Parsed p = new Parsed(file);
+		try {
+			reader = PemReader.open(file.getPath());
+			PemReader.PemObject object;
+			while((object = reader.next()) != null) {
+				if(object.isPrivateKey())
+					p.key = MTPrivateKey.parseKey(object);
+				else if(object.isCertificate())
+					p.certificate = factory.generateCertificate(new ByteArrayInputStream(object.getContent()));
+				else
+					continue;
+				objects.add(p);
+				p = new Parsed(file);
+			}
+			if(objects.isEmpty())
+				p.error = "Pas de clé privée ni de certificat dans le fichier";
+		} catch (ModelException e) {
+			p.error = e.getMessage();
+		} catch (CertificateException e) {
+			p.error = "Problème de certificat : "+e.getMessage();
+		} catch (IOException e) {
+			p.error = "Problème d'entrée/sortie : "+e.getMessage();
+		} finally {
+			Model.closeQuietly(reader);
+		}
+		if(p.error != null)
+			objects.add(p);
+		return objects;
+	}
+
+	/**
+	 * Identify a key pair by its public part
+	 * @param key private or public key
+	 * @return the identifier, or null for an unknown algorithm
+	 */
+	private static String publicId(Object key) {
+		if(key instanceof RSAPrivateCrtKey)
+			return "RSA:"+((RSAPrivateCrtKey) key).getModulus().toString(16);
+		if(key instanceof RSAPublicKey)
+			return "RSA:"+((RSAPublicKey) key).getModulus().toString(16);
+		if(key instanceof DSAPrivateKey) {
+			DSAPrivateKey dsa = (DSAPrivateKey) key;
+			// y = g^x mod p
+			BigInteger y = dsa.getParams().getG().modPow(dsa.getX(), dsa.getParams().getP());
+			return "DSA:"+y.toString(16);
+		}
+		if(key instanceof DSAPublicKey)
+			return "DSA:"+((DSAPublicKey) key).getY().toString(16);
+		if(key instanceof org.bouncycastle.jce.interfaces.ECPrivateKey) {
+			org.bouncycastle.jce.interfaces.ECPrivateKey ec = (org.bouncycastle.jce.interfaces.ECPrivateKey) key;
+			if(ec.getParameters() == null)
+				return null;
+			// Q = d.G
+			ECPoint q = ec.getParameters().getG().multiply(ec.getD());
+			return "EC:"+q.getX().toBigInteger().toString(16)+":"+q.getY().toBigInteger().toString(16);
+		}
+		if(key instanceof ECPublicKey) {
+			java.security.spec.ECPoint w = ((ECPublicKey) key).getW();
+			return "EC:"+w.getAffineX().toString(16)+":"+w.getAffineY().toString(16);
+		}
+		return null;
+	}
+
+	/**
+	 * List the files of a tree, sorted by path
+	 * @param directory root of the tree
+	 * @param files receiving the files
+	 * @throws ModelException if a directory cannot be read
+	 */
+	static void walk(File directory, List<File> files) throws ModelException {
+		File[] children = directory.listFiles();
+		if(children == null)
+			throw new ModelException("Impossible de lire le répertoire "+directory.getPath());
+		Arrays.sort(children);
+		for(File child : children) {
+			if(child.isDirectory())
+				walk(child, files);
+			else if(child.isFile() && !child.isHidden())
+				files.add(child);
+		}
+	}
+
+	/**
+	 * @param file
+	 * @return the name of the file without its extension
+	 */
+	private static String aliasOf(File file) {
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		return dot > 0 ? name.substring(0, dot) : name;
+	}
+
+	/**
+	 * Called in the batch, under the lock of the model.
+	 * @param alias wanted
+	 * @return the alias, with a suffix if it is already used
+	 */
+	private String freeAlias(String alias) {
+		if(model.getEntryType(alias) == null)
+			return alias;
+		for(int i = 2; ; i++) {
+			if(model.getEntryType(alias+"-"+i) == null)
+				return alias+"-"+i;
+		}
+	}
+
+	/**
+	 * Key or certificate read from a file, or the error of the file
+	 */
+	private static class Parsed {
+		final File file;
+		PrivateKey key;
+		Certificate certificate;
+		String error;
+
+		Parsed(File file) {
+			this.file = file;
+		}
+	}
+
+	/**
+	 * Result of an import
+	 */
+	public static class Report {
+		private final int files;
+		private int imported;
+		private long elapsedNanos;
+		private final SortedMap<String, String> errors = new TreeMap<String, String>();
+		private final SortedMap<String, String> duplicates = new TreeMap<String, String>();
+
+		Report(int files) {
+			this.files = files;
+		}
+
+		void error(File file, String message) {
+			errors.put(file.getPath(), message);
+		}
+
+		void duplicate(File file, String alias) {
+			duplicates.put(file.getPath(), alias);
+		}
+
+		/**
+		 * @return the number of files found
+		 */
+		public int getFileCount() {
+			return files;
+		}
+
+		/**
+		 * @return the number of entries added to the keystore
+		 */
+		public int getImportedCount() {
+			return imported;
+		}
+
+		/**
+		 * @return the error of each file which was not imported, by path
+		 */
+		public Map<String, String> getErrors() {
+			return Collections.unmodifiableMap(errors);
+		}
+
+		/**
+		 * @return the alias already holding each certificate which was not added again, by path
+		 */
+		public Map<String, String> getDuplicates() {
+			return Collections.unmodifiableMap(duplicates);
+		}
+
+		/**
+		 * @return the duration of the import, in milliseconds
+		 */
+		public long getElapsedMillis() {
+			return elapsedNanos / 1000000;
+		}
+
+		/**
+		 * @return the number of files processed per second
+		 */
+		public double getThroughput() {
+			return elapsedNanos == 0 ? 0 : files * 1e9 / elapsedNanos;
+		}
+
+		public String toString() {
+			return imported+" entrées importées depuis "+files+" fichiers, "+duplicates.size()+" doublons ignorés, "
+					+errors.size()+" erreurs, en "+getElapsedMillis()+" ms ("+Math.round(getThroughput())+" fichiers/s)";
+		}
+	}
+}
@@ -0,0 +1,443 @@
+package keytool.model;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.ASN1Object;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.pkcs.CertificationRequest;
+import org.bouncycastle.asn1.pkcs.CertificationRequestInfo;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+
+/**
+ * Local certification authority : a private key of the keystore signing the PKCS#10
+ * requests (CSR) of other keys.
+ * The key and the certificate of the authority are read once, and the signer is shared by
+ * the pool of threads of the bulk operations, each thread keeping its Signature initialized
+ * with the key. A request is checked (its signature proves the requester owns the key)
+ * before its certificate is issued.
+ *
+ * The issued certificates are not added to the keystore : they are written back, in PEM,
+ * for the requesters. Any private key with a certificate can sign, but only a certificate
+ * created as an authority (see {@link MTPrivateKey#MTPrivateKey(String, KeyAlgorithm, boolean)})
+ * makes chains the verifiers accept.
+ * @author Michaël Muré & Théophile Helleboid
+ *
+ */
+public class CertificateAuthority {
+	/* Requêtes en cours au plus par thread, pour un flot de taille quelconque */
+	private static final int WINDOW_PER_THREAD = 64;
+	/* Usines et vérificateurs par thread et par algorithme des requêtes */
+	private static final ThreadLocal<Map<String, KeyFactory>> KEY_FACTORIES = new ThreadLocal<Map<String, KeyFactory>>() {
+		protected Map<String, KeyFactory> initialValue() {
+			return new HashMap<String, KeyFactory>();
+		}
+	};
+	private static final ThreadLocal<Map<String, Signature>> VERIFIERS = new ThreadLocal<Map<String, Signature>>() {
+		protected Map<String, Signature> initialValue() {
+			return new HashMap<String, Signature>();
+		}
+	};
+
+	private final X509Certificate certificate;
+	private final CertificateSigner signer;
+	private final AuthorityKeyIdentifier authorityKeyId;
+	private final int threads;
+	private final AtomicLong issued = new AtomicLong();
+	private volatile CertificateTemplate template = CertificateTemplate.leaf();
+
+	/**
+	 * Use a private key of the keystore as an authority, with a thread per processor
+	 * @param model holding the key
+	 * @param alias of the private key
+	 * @throws ModelException if there is no such private key, or it cannot sign
+	 */
+	public CertificateAuthority(Model model, String alias) throws ModelException {
+		this(model, alias, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Use a private key of the keystore as an authority
+	 * @param model holding the key
+	 * @param alias of the private key
+	 * @param threads number of threads signing the requests of the bulk operations
+	 * @throws ModelException if there is no such private key, or it cannot sign
+	 */
+	public CertificateAuthority(Model model, String alias, int threads) throws ModelException {
+		if(threads <= 0)
+			throw new IllegalArgumentException("Nombre de threads invalide");
+		KeyStoreSnapshot.Entry entry = model.getSnapshot().get(alias);
+		if(entry == null || entry.getType() != EntryType.PRIVATE_KEY)
+			throw new ModelException("Pas de clé privée pour l'alias "+alias);
+		Certificate cert = entry.getCertificate();
+		if(!(cert instanceof X509Certificate))
+			throw new ModelException("Pas de certificat X.509 pour l'alias "+alias);
+		// Gardée tant que l'autorité existe : hors du cache, elle n'y prend pas la place des autres clés
+		Key key = model.recoverKey(alias);
+		if(!(key instanceof PrivateKey))
+			throw new ModelException("Pas de clé privée pour l'alias "+alias);
+
+		this.certificate = (X509Certificate) cert;
+		this.signer = new CertificateSigner(KeyAlgorithm.of(key), (PrivateKey) key, certificate.getSubjectX500Principal());
+		this.authorityKeyId = new AuthorityKeyIdentifier(CertificateSigner.publicKeyInfo(certificate.getPublicKey()));
+		this.threads = threads;
+	}
+
+	/**
+	 * @param template of the certificates issued, {@link CertificateTemplate#leaf()} by default ;
+	 * their validity is cut at the end of the validity of the authority
+	 * @return this authority
+	 */
+	public CertificateAuthority setTemplate(CertificateTemplate template) {
+		if(template == null)
+			throw new IllegalArgumentException("Modèle manquant");
+		this.template = template;
+		return this;
+	}
+
+	/**
+	 * @param days validity of the certificates issued from now, cut at the end of the validity of the authority
+	 * @return this authority
+	 */
+	public CertificateAuthority setValidityDays(int days) {
+		this.template = template.copy().setValidityDays(days);
+		return this;
+	}
+
+	/**
+	 * @return the certificate of the authority, issuer of the certificates
+	 */
+	public X509Certificate getCertificate() {
+		return certificate;
+	}
+
+	/**
+	 * @return the number of certificates issued so far, to follow the progress of a bulk operation
+	 */
+	public long getIssuedCount() {
+		return issued.get();
+	}
+
+	/**
+	 * Issue the certificate of a request
+	 * @param request DER encoding of a PKCS#10 request
+	 * @return the certificate, signed by the authority
+	 * @throws ModelException if the request is malformed or its signature is wrong
+	 */
+	public X509Certificate sign(byte[] request) throws ModelException {
+		CertificationRequestInfo info = verify(request);
+		X500Principal subject = new X500Principal(info.getSubject().getDEREncoded());
+		X509Certificate result = template.issue(signer, certificate, authorityKeyId, info.getSubjectPublicKeyInfo(), subject);
+		issued.incrementAndGet();
+		return result;
+	}
+
+	/**
+	 * Check a request : its structure, and its signature by the key it holds
+	 * @param request DER encoding of a PKCS#10 request
+	 * @return the content of the request
+	 * @throws ModelException if the request is malformed or its signature is wrong
+	 */
+	private static CertificationRequestInfo verify(byte[] request) throws ModelException {
+		try {
+			CertificationRequest csr = new CertificationRequest((ASN1Sequence) ASN1Object.fromByteArray(request));
+			CertificationRequestInfo info = csr.getCertificationRequestInfo();
+			SubjectPublicKeyInfo subjectKey = info.getSubjectPublicKeyInfo();
+
+			// Les algorithmes sont cherchés par leur OID, connus des fournisseurs
+			String keyAlgorithm = subjectKey.getAlgorithmId().getObjectId().getId();
+			KeyFactory factory = KEY_FACTORIES.get().get(keyAlgorithm);
+			if(factory == null) {
+				factory = KeyFactory.getInstance(keyAlgorithm);
+				KEY_FACTORIES.get().put(keyAlgorithm, factory);
+			}
+			PublicKey key = factory.generatePublic(new X509EncodedKeySpec(subjectKey.getDEREncoded()));
+
+			String signatureAlgorithm = csr.getSignatureAlgorithm().getObjectId().getId();
+			Signature verifier = VERIFIERS.get().get(signatureAlgorithm);
+			if(verifier == null) {
+				verifier = Signature.getInstance(signatureAlgorithm);
+				VERIFIERS.get().put(signatureAlgorithm, verifier);
+			}
+			verifier.initVerify(key);
+			verifier.update(info.getDEREncoded());
+			if(!verifier.verify(csr.getSignature().getBytes()))
+				throw new ModelException("Signature de la requête incorrecte");
+			return info;
+		} catch (IOException e) {
+			throw new ModelException("Requête mal encodée : "+e.getMessage());
+		} catch (ClassCastException e) {
+			throw new ModelException("Requête mal encodée : structure incorrecte");
+		} catch (IllegalArgumentException e) {
+			throw new ModelException("Requête mal encodée : "+e.getMessage());
+		} catch (GeneralSecurityException e) {
+			throw new ModelException("Requête non vérifiable : "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Issue the certificates of all the requests of a directory tree.
+	 * The certificates of the requests of a file are written in PEM in the target directory, in
+	 * a file with the same name and the extension .crt. A file with an invalid request is
+	 * reported and not written, and the others are signed anyway.
+	 * @param directory of the requests, in PEM or DER
+	 * @param target directory of the certificates
+	 * @return the report of the operation
+	 * @throws ModelException if a directory cannot be read or created
+	 */
+	public Report signDirectory(File directory, File target) throws ModelException {
+		long start = System.nanoTime();
+		if(!directory.isDirectory())
+			throw new ModelException("Pas un répertoire : "+directory.getPath());
+		if(!target.isDirectory() && !target.mkdirs())
+			throw new ModelException("Impossible de créer le répertoire "+target.getPath());
+		List<File> files = new ArrayList<File>();
+		BulkImporter.walk(directory, files);
+
+		final Report report = new Report();
+		ExecutorService pool = newPool();
+		try {
+			List<Future<String>> futures = new ArrayList<Future<String>>(files.size());
+			for(final File file : files) {
+				final File output = new File(target, baseName(file)+".crt");
+				futures.add(pool.submit(new Callable<String>() {
+					public String call() {
+						return signFile(file, output, report);
+					}
+				}));
+			}
+			for(int i = 0; i < files.size(); i++) {
+				String error = futures.get(i).get();
+				if(error != null)
+					report.error(files.get(i).getPath(), error);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ModelException("Signature interrompue");
+		} catch (ExecutionException e) {
+			throw new ModelException("Erreur lors de la signature : "+e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+		report.elapsedNanos = System.nanoTime() - start;
+		return report;
+	}
+
+	/**
+	 * Issue the certificates of the requests of a file
+	 * @param file of the requests
+	 * @param output file of the certificates
+	 * @param report counting the requests and the certificates
+	 * @return the error which stopped the file, or null
+	 */
+	private String signFile(File file, File output, Report report) {
+		PemReader reader = null;
+		FileOutputStream out = null;
+		try {
+			reader = PemReader.open(file.getPath());
+			List<byte[]> certificates = new ArrayList<byte[]>();
+			PemReader.PemObject object;
+			while((object = reader.next()) != null) {
+				if(!object.isCertificateRequest())
+					continue;
+				report.request();
+				certificates.add(BulkExporter.pem("CERTIFICATE", sign(object.getContent()).getEncoded()));
+				report.issued();
+			}
+			if(certificates.isEmpty())
+				return "Pas de requête dans le fichier";
+			// Le fichier n'est écrit que si toutes ses requêtes sont signées
+			out = new FileOutputStream(output);
+			for(byte[] pem : certificates)
+				out.write(pem);
+			out.close();
+			out = null;
+			return null;
+		} catch (ModelException e) {
+			return e.getMessage();
+		} catch (CertificateEncodingException e) {
+			return "Problème d'encodage de certificat : "+e.getMessage();
+		} catch (IOException e) {
+			return "Problème d'entrée/sortie : "+e.getMessage();
+		} finally {
+			Model.closeQuietly(reader);
+			Model.closeQuietly(out);
+		}
+	}
+
+	/**
+	 * Issue the certificates of a stream of requests, like the standard input.
+	 * The certificates are written in PEM, in the order of the requests, while the next
+	 * requests are read and signed. An invalid request is reported by its number and skipped.
+	 * @param in the requests, in PEM or DER
+	 * @param out receiving the certificates
+	 * @return the report of the operation
+	 * @throws ModelException if the streams cannot be read or written
+	 */
+	public Report signStream(InputStream in, OutputStream out) throws ModelException {
+		long start = System.nanoTime();
+		final Report report = new Report();
+		PemReader reader = new PemReader(Channels.newChannel(in));
+		ExecutorService pool = newPool();
+		LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+		int read = 0;
+		int written = 0;
+		try {
+			PemReader.PemObject object;
+			while((object = reader.next()) != null) {
+				if(!object.isCertificateRequest())
+					continue;
+				final byte[] request = object.getContent();
+				report.request();
+				read++;
+				pending.add(pool.submit(new Callable<byte[]>() {
+					public byte[] call() throws ModelException, IOException, CertificateEncodingException {
+						return BulkExporter.pem("CERTIFICATE", sign(request).getEncoded());
+					}
+				}));
+				// Mémoire bornée : on écrit les plus anciens avant de lire plus loin
+				while(pending.size() >= threads * WINDOW_PER_THREAD)
+					write(pending.removeFirst(), ++written, out, report);
+			}
+			while(!pending.isEmpty())
+				write(pending.removeFirst(), ++written, out, report);
+			out.flush();
+		} catch (IOException e) {
+			throw new ModelException("Problème d'entrée/sortie après la requête "+read+" : "+e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ModelException("Signature interrompue");
+		} finally {
+			pool.shutdownNow();
+		}
+		report.elapsedNanos = System.nanoTime() - start;
+		return report;
+	}
+
+	private static void write(Future<byte[]> future, int number, OutputStream out, Report report) throws InterruptedException, IOException {
+		try {
+			out.write(future.get());
+			report.issued();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			report.error("requête "+number, cause instanceof ModelException ? cause.getMessage() : cause.toString());
+		}
+	}
+
+	private ExecutorService newPool() {
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "certificate-authority");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * @param file
+	 * @return the name of the file without its extension
+	 */
+	private static String baseName(File file) {
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		return dot > 0 ? name.substring(0, dot) : name;
+	}
+
+	/**
+	 * Result of a bulk signature
+	 */
+	public static class Report {
+		private final AtomicLong requests = new AtomicLong();
+		private final AtomicLong issued = new AtomicLong();
+		private long elapsedNanos;
+		private final SortedMap<String, String> errors = Collections.synchronizedSortedMap(new TreeMap<String, String>());
+
+		Report() {
+		}
+
+		void request() {
+			requests.incrementAndGet();
+		}
+
+		void issued() {
+			issued.incrementAndGet();
+		}
+
+		void error(String source, String message) {
+			errors.put(source, message);
+		}
+
+		/**
+		 * @return the number of requests read
+		 */
+		public long getRequestCount() {
+			return requests.get();
+		}
+
+		/**
+		 * @return the number of certificates written
+		 */
+		public long getIssuedCount() {
+			return issued.get();
+		}
+
+		/**
+		 * @return the error of each file or request not signed
+		 */
+		public Map<String, String> getErrors() {
+			return Collections.unmodifiableMap(errors);
+		}
+
+		/**
+		 * @return the duration of the operation, in milliseconds
+		 */
+		public long getElapsedMillis() {
+			return elapsedNanos / 1000000;
+		}
+
+		/**
+		 * @return the number of certificates issued per second
+		 */
+		public double getCertificatesPerSecond() {
+			return elapsedNanos == 0 ? 0 : issued.get() * 1e9 / elapsedNanos;
+		}
+
+		public String toString() {
+			return issued+" certificats émis pour "+requests+" requêtes, "+errors.size()+" erreurs, en "
+					+getElapsedMillis()+" ms ("+Math.round(getCertificatesPerSecond())+" certificats/s)";
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package keytool.model;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.util.encoders.Hex;
+import org.bouncycastle.x509.extension.X509ExtensionUtil;
+
+/**
+ * Identifiers of the certificates, as written in the indexes of the {@link KeyStoreSnapshot} :
+ * names in canonical form, key identifiers, serial numbers, fingerprints and dates in lower case hexadecimal.
+ * @author Michaël Muré & Théophile Helleboid
+ *
+ */
+final class CertificateIds {
+	private static final String SUBJECT_KEY_ID = X509Extensions.SubjectKeyIdentifier.getId();
+	private static final String AUTHORITY_KEY_ID = X509Extensions.AuthorityKeyIdentifier.getId();
+
+	/* Un condensé par thread : MessageDigest n'est pas sûr entre threads */
+	private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>() {
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e.getMessage());
+			}
+		}
+	};
+
+	private CertificateIds() {
+	}
+
+	/**
+	 * @param name distinguished name
+	 * @return its canonical form, equal for two equal names
+	 */
+	static String name(X500Principal name) {
+		return name.getName(X500Principal.CANONICAL);
+	}
+
+	/**
+	 * @param issuer distinguished name of the issuer
+	 * @param serial number of the certificate
+	 * @return the identifier of a certificate by its issuer, unique for a well-behaved issuer
+	 */
+	static String issuerSerial(X500Principal issuer, BigInteger serial) {
+		return name(issuer)+"#"+serial.toString(16);
+	}
+
+	/**
+	 * @param certificate
+	 * @return the SHA-256 fingerprint of its encoding, or null if it cannot be encoded
+	 */
+	static String fingerprint(Certificate certificate) {
+		try {
+			return hex(DIGESTS.get().digest(certificate.getEncoded()));
+		} catch (CertificateEncodingException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param certificate
+	 * @return the identifier of its key, or null if it has none
+	 */
+	static String subjectKeyId(X509Certificate certificate) {
+		byte[] value = certificate.getExtensionValue(SUBJECT_KEY_ID);
+		if(value == null)
+			return null;
+		try {
+			return hex(SubjectKeyIdentifier.getInstance(X509ExtensionUtil.fromExtensionValue(value)).getKeyIdentifier());
+		} catch (IOException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param certificate
+	 * @return the identifier of the key of its issuer, or null if it has none
+	 */
+	static String authorityKeyId(X509Certificate certificate) {
+		byte[] value = certificate.getExtensionValue(AUTHORITY_KEY_ID);
+		if(value == null)
+			return null;
+		try {
+			byte[] id = AuthorityKeyIdentifier.getInstance(X509ExtensionUtil.fromExtensionValue(value)).getKeyIdentifier();
+			return id == null ? null : hex(id);
+		} catch (IOException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param millis time since the epoch
+	 * @return the time in fixed width hexadecimal, in the same order as the times
+	 */
+	static String time(long millis) {
+		// Le bit de signe inversé ordonne aussi les dates avant 1970
+		String hex = Long.toHexString(millis ^ Long.MIN_VALUE);
+		return "0000000000000000".substring(hex.length()) + hex;
+	}
+
+	/**
+	 * @param bytes
+	 * @return the bytes in lower case hexadecimal
+	 */
+	static String hex(byte[] bytes) {
+		return new String(Hex.encode(bytes));
+	}
+
+	/**
+	 * @param text hexadecimal, in any case, with or without : between the bytes
+	 * @return the text as written in the indexes
+	 */
+	static String hex(String text) {
+		return text.replace(":", "").toLowerCase();
+	}
+}
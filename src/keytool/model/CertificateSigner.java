@@ -0,0 +1,209 @@
+package keytool.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Object;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.DERInteger;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DERObjectIdentifier;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.asn1.x509.TBSCertificateStructure;
+import org.bouncycastle.asn1.x509.Time;
+import org.bouncycastle.asn1.x509.V3TBSCertificateGenerator;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.asn1.x9.X9ObjectIdentifiers;
+import org.bouncycastle.jce.X509Principal;
+
+/**
+ * Signer of the X.509 certificates created by the Keytool.
+ * The structure of the certificate is built with the ASN.1 classes of BouncyCastle and
+ * signed through the provider of the key algorithm, so every algorithm, Ed25519 included,
+ * takes the same way.
+ *
+ * A signer is built once for an issuer and shared by the threads : each thread keeps its
+ * own Signature, initialized once with the key of the issuer and reused for every
+ * certificate, instead of looking up and initializing a new one each time.
+ * @author Michaël Muré & Théophile Helleboid
+ *
+ */
+final class CertificateSigner {
+	/* Une usine par thread : CertificateFactory n'est pas garantie sûre entre threads */
+	private static final ThreadLocal<CertificateFactory> FACTORIES = new ThreadLocal<CertificateFactory>() {
+		protected CertificateFactory initialValue() {
+			try {
+				return CertificateFactory.getInstance("X.509");
+			} catch (CertificateException e) {
+				throw new IllegalStateException(e.getMessage());
+			}
+		}
+	};
+
+	private final KeyAlgorithm algorithm;
+	private final PrivateKey issuerKey;
+	private final X509Principal issuer;
+	private final AlgorithmIdentifier signatureAlgorithm;
+	private final ThreadLocal<Signature> signatures = new ThreadLocal<Signature>();
+
+	/**
+	 * Create a signer
+	 * @param algorithm of the key of the issuer
+	 * @param issuerKey private key of the issuer, signing the certificates
+	 * @param issuer distinguished name of the issuer
+	 * @throws ModelException if the key cannot sign with this algorithm
+	 */
+	CertificateSigner(KeyAlgorithm algorithm, PrivateKey issuerKey, X500Principal issuer) throws ModelException {
+		this.algorithm = algorithm;
+		this.issuerKey = issuerKey;
+		this.issuer = name(issuer);
+		this.signatureAlgorithm = signatureAlgorithm(algorithm);
+		// Vérifie la clé dès maintenant, la signature sert ensuite à ce thread
+		signatures.set(newSignature());
+	}
+
+	/**
+	 * Create a single certificate, with a signer used once
+	 * @param algorithm of the key of the issuer
+	 * @param issuerKey private key of the issuer, signing the certificate
+	 * @param subjectKey public key certified
+	 * @param subject distinguished name of the owner
+	 * @param issuer distinguished name of the issuer
+	 * @param serial number of the certificate
+	 * @param notBefore start of the validity
+	 * @param notAfter end of the validity
+	 * @param extensions of the certificate, or null
+	 * @return the signed certificate
+	 * @throws ModelException
+	 */
+	static X509Certificate sign(KeyAlgorithm algorithm, PrivateKey issuerKey, PublicKey subjectKey, String subject, String issuer,
+			BigInteger serial, Date notBefore, Date notAfter, X509Extensions extensions) throws ModelException {
+		try {
+			return new CertificateSigner(algorithm, issuerKey, new X500Principal(issuer))
+					.sign(publicKeyInfo(subjectKey), new X500Principal(subject), serial, notBefore, notAfter, extensions);
+		} catch (IllegalArgumentException e) {
+			throw new ModelException("Sujet ou émetteur invalide : "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Create a certificate
+	 * @param subjectKey public key certified
+	 * @param subject distinguished name of the owner
+	 * @param serial number of the certificate
+	 * @param notBefore start of the validity
+	 * @param notAfter end of the validity
+	 * @param extensions of the certificate, or null
+	 * @return the signed certificate
+	 * @throws ModelException
+	 */
+	X509Certificate sign(SubjectPublicKeyInfo subjectKey, X500Principal subject, BigInteger serial,
+			Date notBefore, Date notAfter, X509Extensions extensions) throws ModelException {
+		V3TBSCertificateGenerator tbsGen = new V3TBSCertificateGenerator();
+		tbsGen.setSerialNumber(new DERInteger(serial));
+		tbsGen.setSignature(signatureAlgorithm);
+		tbsGen.setIssuer(issuer);
+		tbsGen.setStartDate(new Time(notBefore));
+		tbsGen.setEndDate(new Time(notAfter));
+		tbsGen.setSubject(name(subject));
+		tbsGen.setSubjectPublicKeyInfo(subjectKey);
+		if(extensions != null)
+			tbsGen.setExtensions(extensions);
+		TBSCertificateStructure tbs = tbsGen.generateTBSCertificate();
+
+		try {
+			Signature signature = signatures.get();
+			if(signature == null) {
+				signature = newSignature();
+				signatures.set(signature);
+			}
+			// Après sign(), la signature est prête pour le certificat suivant
+			signature.update(tbs.getDEREncoded());
+
+			ASN1EncodableVector certificate = new ASN1EncodableVector();
+			certificate.add(tbs);
+			certificate.add(signatureAlgorithm);
+			certificate.add(new DERBitString(signature.sign()));
+			byte[] der = new DERSequence(certificate).getEncoded();
+			return (X509Certificate) FACTORIES.get().generateCertificate(new ByteArrayInputStream(der));
+		} catch (GeneralSecurityException e) {
+			throw new ModelException("Problème de signature du certificat : "+e.getMessage());
+		} catch (IOException e) {
+			throw new ModelException("Problème d'encodage du certificat : "+e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the algorithm of the key of the issuer
+	 */
+	KeyAlgorithm getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * @param key a public key
+	 * @return its structure in a certificate
+	 * @throws ModelException
+	 */
+	static SubjectPublicKeyInfo publicKeyInfo(PublicKey key) throws ModelException {
+		try {
+			return new SubjectPublicKeyInfo((ASN1Sequence) ASN1Object.fromByteArray(key.getEncoded()));
+		} catch (IOException e) {
+			throw new ModelException("Problème d'encodage de la clé publique : "+e.getMessage());
+		}
+	}
+
+	private static X509Principal name(X500Principal principal) throws ModelException {
+		try {
+			return new X509Principal(principal.getEncoded());
+		} catch (IOException e) {
+			throw new ModelException("Nom distinctif invalide : "+principal);
+		}
+	}
+
+	private Signature newSignature() throws ModelException {
+		try {
+			Signature signature = Signature.getInstance(algorithm.getSignatureAlgorithm(), algorithm.provider());
+			signature.initSign(issuerKey);
+			return signature;
+		} catch (GeneralSecurityException e) {
+			throw new ModelException("Clé de l'émetteur inutilisable pour "+algorithm+" : "+e.getMessage());
+		}
+	}
+
+	/**
+	 * @param algorithm of the key of the issuer
+	 * @return the identifier of the signature in the certificate
+	 */
+	private static AlgorithmIdentifier signatureAlgorithm(KeyAlgorithm algorithm) {
+		switch(algorithm) {
+		case DSA_1024:
+			return new AlgorithmIdentifier(X9ObjectIdentifiers.id_dsa_with_sha1);
+		case EC_P256:
+			return new AlgorithmIdentifier(X9ObjectIdentifiers.ecdsa_with_SHA256);
+		case EC_P384:
+			return new AlgorithmIdentifier(X9ObjectIdentifiers.ecdsa_with_SHA384);
+		case ED25519:
+			// RFC 8410 : pas de paramètres, pas même NULL
+			return new AlgorithmIdentifier(new DERObjectIdentifier("1.3.101.112"));
+		default:
+			return new AlgorithmIdentifier(PKCSObjectIdentifiers.sha256WithRSAEncryption, DERNull.INSTANCE);
+		}
+	}
+}
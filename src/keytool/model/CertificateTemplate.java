@@ -0,0 +1,258 @@
+package keytool.model;
+
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.DEREncodable;
+import org.bouncycastle.asn1.DERObjectIdentifier;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.asn1.x509.X509ExtensionsGenerator;
+
+/**
+ * Template of the certificates created by the Keytool : validity, extensions, key usage,
+ * algorithm, and the allocator of the serial numbers.
+ * The signature algorithm follows the algorithm of the signing key ; the algorithm of the
+ * template is the one of the key pairs generated for the self-signed certificates.
+ *
+ * A template is configured, then shared by the threads creating the certificates : it must
+ * not be modified while it is used, {@link #copy()} gives a template to modify.
+ * @author Michaël Muré & Théophile Helleboid
+ *
+ */
+public class CertificateTemplate {
+	private static final long DAY = 24L * 60 * 60 * 1000;
+
+	private KeyAlgorithm algorithm = KeyAlgorithm.DEFAULT;
+	private int validityDays = 365;
+	private long backdating = DAY;
+	private boolean authority;
+	private int keyUsage;
+	private SerialNumberAllocator serials = SerialNumberAllocator.getDefault();
+	private final List<Extension> extensions = new ArrayList<Extension>();
+
+	/**
+	 * Create the template of a self-signed certificate : valid one year, from a day ago, without extension
+	 */
+	public CertificateTemplate() {
+	}
+
+	/**
+	 * @return the template of the private keys of the keystore : valid from a year ago to a year after
+	 */
+	public static CertificateTemplate identity() {
+		return new CertificateTemplate().setBackdating(365 * DAY);
+	}
+
+	/**
+	 * @return the template of a certification authority : signing certificates and revocation lists
+	 */
+	public static CertificateTemplate authority() {
+		return identity().setAuthority(true).setKeyUsage(KeyUsage.keyCertSign | KeyUsage.cRLSign);
+	}
+
+	/**
+	 * @return the template of the certificates issued by an authority : valid one year, from an hour ago
+	 */
+	public static CertificateTemplate leaf() {
+		return new CertificateTemplate().setBackdating(DAY / 24);
+	}
+
+	/**
+	 * @return a template configured like this one, which can be modified
+	 */
+	public CertificateTemplate copy() {
+		CertificateTemplate copy = new CertificateTemplate();
+		copy.algorithm = algorithm;
+		copy.validityDays = validityDays;
+		copy.backdating = backdating;
+		copy.authority = authority;
+		copy.keyUsage = keyUsage;
+		copy.serials = serials;
+		copy.extensions.addAll(extensions);
+		return copy;
+	}
+
+	/**
+	 * @param algorithm of the key pairs of the self-signed certificates
+	 * @return this template
+	 */
+	public CertificateTemplate setAlgorithm(KeyAlgorithm algorithm) {
+		if(algorithm == null)
+			throw new IllegalArgumentException("Algorithme manquant");
+		this.algorithm = algorithm;
+		return this;
+	}
+
+	/**
+	 * @param days validity of the certificates from their creation
+	 * @return this template
+	 */
+	public CertificateTemplate setValidityDays(int days) {
+		if(days <= 0)
+			throw new IllegalArgumentException("Durée de validité invalide");
+		this.validityDays = days;
+		return this;
+	}
+
+	/**
+	 * @param millis start of the validity before the creation, against the clocks running late
+	 * @return this template
+	 */
+	public CertificateTemplate setBackdating(long millis) {
+		if(millis < 0)
+			throw new IllegalArgumentException("Antidatage invalide");
+		this.backdating = millis;
+		return this;
+	}
+
+	/**
+	 * @param authority whether or not the certificates allow to sign other certificates
+	 * @return this template
+	 */
+	public CertificateTemplate setAuthority(boolean authority) {
+		this.authority = authority;
+		return this;
+	}
+
+	/**
+	 * @param usage combination of the bits of {@link KeyUsage}, like KeyUsage.digitalSignature, 0 for no restriction
+	 * @return this template
+	 */
+	public CertificateTemplate setKeyUsage(int usage) {
+		this.keyUsage = usage;
+		return this;
+	}
+
+	/**
+	 * @param serials allocator of the serial numbers
+	 * @return this template
+	 */
+	public CertificateTemplate setSerialNumberAllocator(SerialNumberAllocator serials) {
+		if(serials == null)
+			throw new IllegalArgumentException("Allocateur manquant");
+		this.serials = serials;
+		return this;
+	}
+
+	/**
+	 * Add an extension to the certificates, like the extended key usage
+	 * @param oid identifier of the extension
+	 * @param critical whether or not a verifier must understand it
+	 * @param value of the extension
+	 * @return this template
+	 */
+	public CertificateTemplate addExtension(DERObjectIdentifier oid, boolean critical, DEREncodable value) {
+		extensions.add(new Extension(oid, critical, value));
+		return this;
+	}
+
+	/**
+	 * @return the algorithm of the key pairs of the self-signed certificates
+	 */
+	public KeyAlgorithm getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * @return the validity of the certificates, in days
+	 */
+	public int getValidityDays() {
+		return validityDays;
+	}
+
+	/**
+	 * @return whether or not the certificates allow to sign other certificates
+	 */
+	public boolean isAuthority() {
+		return authority;
+	}
+
+	/**
+	 * Create a self-signed certificate
+	 * @param keyPair certified, and signing the certificate
+	 * @param subject distinguished name of the owner
+	 * @param issuer distinguished name written as issuer, the subject for a true self-signed certificate
+	 * @return the certificate
+	 * @throws ModelException
+	 */
+	X509Certificate selfSign(KeyPair keyPair, String subject, String issuer) throws ModelException {
+		long now = System.currentTimeMillis();
+		return CertificateSigner.sign(KeyAlgorithm.of(keyPair.getPrivate()), keyPair.getPrivate(), keyPair.getPublic(), subject, issuer,
+				serials.next(), new Date(now - backdating), new Date(now + validityDays * DAY), extensions(keyPair.getPublic(), null));
+	}
+
+	/**
+	 * Create a certificate signed by an authority
+	 * @param signer of the authority
+	 * @param issuer certificate of the authority, whose validity bounds the one of the certificate
+	 * @param authorityKeyId identifier of the key of the authority, or null
+	 * @param subjectKey public key certified
+	 * @param subject distinguished name of the owner
+	 * @return the certificate
+	 * @throws ModelException if the authority expired before the start of the validity
+	 */
+	X509Certificate issue(CertificateSigner signer, X509Certificate issuer, AuthorityKeyIdentifier authorityKeyId,
+			SubjectPublicKeyInfo subjectKey, X500Principal subject) throws ModelException {
+		long now = System.currentTimeMillis();
+		Date notBefore = new Date(now - backdating);
+		Date notAfter = new Date(Math.min(now + validityDays * DAY, issuer.getNotAfter().getTime()));
+		// Une autorité expirée donnerait un certificat qui expire avant d'être valide
+		if(!notAfter.after(notBefore))
+			throw new ModelException("Le certificat de l'autorité a expiré le "+issuer.getNotAfter()
+					+" : il ne peut plus émettre de certificat");
+		return signer.sign(subjectKey, subject, serials.next(), notBefore, notAfter,
+				extensions(subjectKey, authorityKeyId));
+	}
+
+	/**
+	 * @param subjectKey public key certified
+	 * @param authorityKeyId identifier of the key of the issuer, or null
+	 * @return the extensions of a certificate, or null for a certificate without extension
+	 * @throws ModelException
+	 */
+	private X509Extensions extensions(PublicKey subjectKey, AuthorityKeyIdentifier authorityKeyId) throws ModelException {
+		// Les certificats autosignés simples restent sans extension, comme avant les modèles
+		if(!authority && keyUsage == 0 && extensions.isEmpty())
+			return null;
+		return extensions(CertificateSigner.publicKeyInfo(subjectKey), authorityKeyId);
+	}
+
+	private X509Extensions extensions(SubjectPublicKeyInfo subjectKey, AuthorityKeyIdentifier authorityKeyId) {
+		X509ExtensionsGenerator generator = new X509ExtensionsGenerator();
+		generator.addExtension(X509Extensions.BasicConstraints, true, new BasicConstraints(authority));
+		if(keyUsage != 0)
+			generator.addExtension(X509Extensions.KeyUsage, true, new KeyUsage(keyUsage));
+		generator.addExtension(X509Extensions.SubjectKeyIdentifier, false, new SubjectKeyIdentifier(subjectKey));
+		if(authorityKeyId != null)
+			generator.addExtension(X509Extensions.AuthorityKeyIdentifier, false, authorityKeyId);
+		for(Extension e : extensions)
+			generator.addExtension(e.oid, e.critical, e.value);
+		return generator.generate();
+	}
+
+	/**
+	 * Additional extension of the certificates
+	 */
+	private static class Extension {
+		final DERObjectIdentifier oid;
+		final boolean critical;
+		final DEREncodable value;
+
+		Extension(DERObjectIdentifier oid, boolean critical, DEREncodable value) {
+			this.oid = oid;
+			this.critical = critical;
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,569 @@
+package keytool.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.PKIXCertPathValidatorResult;
+import java.security.cert.PKIXParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.security.auth.x500.X500Principal;
+
+
+/**
+ * Validation of certificate chains (PKIX) over the certificates of the keystore.
+ * The self-signed certificates of the keystore are the trust anchors, like the imported
+ * roots or a local authority ; the other certificates are the intermediates, indexed by
+ * subject and by key identifier in the snapshot, so the path of a certificate is built without a scan.
+ *
+ * The anchors, the indexes and the PKIX parameters are built once for a snapshot of the
+ * Model, and built again after a modification of the keystore, which also drops the results
+ * of the validations. A result is kept until the first certificate of its path expires ;
+ * a failure is kept {@link #FAILURE_TTL} milliseconds. The revocation is not checked.
+ * @author Michaël Muré & Théophile Helleboid
+ *
+ */
+public class ChainValidator {
+	/** Time a failed validation is kept, in milliseconds */
+	public static final long FAILURE_TTL = 60 * 1000;
+
+	/* Longueur maximale d'une chaîne, contre les boucles de certificats croisés */
+	private static final int MAX_DEPTH = 8;
+	/* Au-delà, le cache des résultats est vidé */
+	private static final int MAXIMUM_CACHED = 10000;
+
+	/* Validateurs et usines par thread : aucun n'est garanti sûr entre threads */
+	private static final ThreadLocal<CertPathValidator> VALIDATORS = new ThreadLocal<CertPathValidator>() {
+		protected CertPathValidator initialValue() {
+			try {
+				return CertPathValidator.getInstance("PKIX");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e.getMessage());
+			}
+		}
+	};
+	private static final ThreadLocal<CertificateFactory> FACTORIES = new ThreadLocal<CertificateFactory>() {
+		protected CertificateFactory initialValue() {
+			try {
+				return CertificateFactory.getInstance("X.509");
+			} catch (CertificateException e) {
+				throw new IllegalStateException(e.getMessage());
+			}
+		}
+	};
+
+	private final Model model;
+	private final int threads;
+	private volatile Index index;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong builds = new AtomicLong();
+
+	/**
+	 * Create a validator with a thread per processor for the batch validations
+	 * @param model holding the anchors and the intermediates
+	 */
+	public ChainValidator(Model model) {
+		this(model, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Create a validator
+	 * @param model holding the anchors and the intermediates
+	 * @param threads number of threads of the batch validations
+	 */
+	public ChainValidator(Model model, int threads) {
+		if(threads <= 0)
+			throw new IllegalArgumentException("Nombre de threads invalide");
+		this.model = model;
+		this.threads = threads;
+	}
+
+	/**
+	 * Validate the certificate of an entry of the keystore
+	 * @param alias of a private key or a certificate
+	 * @return the result of the validation
+	 * @throws ModelException if there is no X.509 certificate for this alias
+	 */
+	public Result validate(String alias) throws ModelException {
+		KeyStoreSnapshot.Entry entry = model.getSnapshot().get(alias);
+		if(entry == null || !(entry.getCertificate() instanceof X509Certificate))
+			throw new ModelException("Pas de certificat X.509 pour l'alias "+alias);
+		return validate(Collections.singletonList((X509Certificate) entry.getCertificate()));
+	}
+
+	/**
+	 * Validate a certificate
+	 * @param chain the certificate, followed by intermediates not in the keystore, if any
+	 * @return the result of the validation
+	 */
+	public Result validate(List<X509Certificate> chain) {
+		return validate(index(), chain);
+	}
+
+	/**
+	 * Validate every certificate of the keystore, in parallel
+	 * @return the report of the validation, by alias
+	 * @throws ModelException if the validation is interrupted
+	 */
+	public Report validateKeyStore() throws ModelException {
+		Map<String, List<X509Certificate>> chains = new LinkedHashMap<String, List<X509Certificate>>();
+		for(KeyStoreSnapshot.Entry entry : model.getSnapshot()) {
+			if(entry.getCertificate() instanceof X509Certificate)
+				chains.put(entry.getAlias(), Collections.singletonList((X509Certificate) entry.getCertificate()));
+		}
+		return validate(chains);
+	}
+
+	/**
+	 * Validate the certificates of a file, or of every file of a directory tree, in parallel.
+	 * The first certificate of a file, in PEM or DER, is validated, and the next ones are its intermediates.
+	 * @param file or directory
+	 * @return the report of the validation, by path of file
+	 * @throws ModelException if the validation is interrupted
+	 */
+	public Report validateFiles(File file) throws ModelException {
+		List<File> files = new ArrayList<File>();
+		if(file.isDirectory())
+			BulkImporter.walk(file, files);
+		else
+			files.add(file);
+		Map<String, List<X509Certificate>> chains = new LinkedHashMap<String, List<X509Certificate>>();
+		Map<String, Result> unreadable = new HashMap<String, Result>();
+		for(File f : files) {
+			try {
+				List<X509Certificate> chain = read(f);
+				if(chain.isEmpty())
+					unreadable.put(f.getPath(), new Result(null, null, "Pas de certificat dans le fichier", 0));
+				else
+					chains.put(f.getPath(), chain);
+			} catch (ModelException e) {
+				unreadable.put(f.getPath(), new Result(null, null, e.getMessage(), 0));
+			}
+		}
+		Report report = validate(chains);
+		for(Map.Entry<String, Result> r : unreadable.entrySet())
+			report.add(r.getKey(), r.getValue());
+		return report;
+	}
+
+	/**
+	 * @param file of certificates, in PEM or DER
+	 * @return the certificates, in the order of the file
+	 * @throws ModelException
+	 */
+	private static List<X509Certificate> read(File file) throws ModelException {
+		List<X509Certificate> chain = new ArrayList<X509Certificate>();
+		PemReader reader = null;
+		try {
+			reader = PemReader.open(file.getPath());
+			PemReader.PemObject object;
+			while((object = reader.next()) != null) {
+				if(object.isCertificate())
+					chain.add((X509Certificate) FACTORIES.get().generateCertificate(new ByteArrayInputStream(object.getContent())));
+			}
+			return chain;
+		} catch (CertificateException e) {
+			throw new ModelException("Problème de certificat : "+e.getMessage());
+		} catch (IOException e) {
+			throw new ModelException("Problème d'entrée/sortie : "+e.getMessage());
+		} finally {
+			Model.closeQuietly(reader);
+		}
+	}
+
+	/**
+	 * Validate many certificates, in parallel
+	 * @param chains each certificate followed by its own intermediates, by name
+	 * @return the report of the validation, by name
+	 * @throws ModelException if the validation is interrupted
+	 */
+	public Report validate(Map<String, List<X509Certificate>> chains) throws ModelException {
+		long start = System.nanoTime();
+		// Index commun : tous les certificats sont validés contre le même keystore
+		final Index index = index();
+		Report report = new Report();
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "chain-validator");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			Map<String, Future<Result>> futures = new LinkedHashMap<String, Future<Result>>();
+			for(final Map.Entry<String, List<X509Certificate>> chain : chains.entrySet()) {
+				futures.put(chain.getKey(), pool.submit(new Callable<Result>() {
+					public Result call() {
+						return validate(index, chain.getValue());
+					}
+				}));
+			}
+			for(Map.Entry<String, Future<Result>> future : futures.entrySet())
+				report.add(future.getKey(), future.getValue().get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ModelException("Validation interrompue");
+		} catch (ExecutionException e) {
+			throw new ModelException("Erreur lors de la validation : "+e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+		report.elapsedNanos = System.nanoTime() - start;
+		return report;
+	}
+
+	/**
+	 * @return the index of the current snapshot of the keystore, built again if it has been modified
+	 */
+	private Index index() {
+		KeyStoreSnapshot snapshot = model.getSnapshot();
+		Index current = this.index;
+		// Les instantanés sont immuables : un autre instantané est une modification
+		if(current == null || current.snapshot != snapshot) {
+			current = new Index(snapshot);
+			this.index = current;
+			builds.incrementAndGet();
+		}
+		return current;
+	}
+
+	private Result validate(Index index, List<X509Certificate> chain) {
+		if(chain.isEmpty())
+			throw new IllegalArgumentException("Chaîne vide");
+		String key = fingerprint(chain);
+		if(key == null)
+			return new Result(null, null, "Certificat mal encodé", 0);
+		long now = System.currentTimeMillis();
+		Result result = index.results.get(key);
+		if(result != null && now < result.expires) {
+			hits.incrementAndGet();
+			return result;
+		}
+		misses.incrementAndGet();
+		result = index.validate(chain, now);
+		if(index.results.size() >= MAXIMUM_CACHED)
+			index.results.clear();
+		index.results.put(key, result);
+		return result;
+	}
+
+	/**
+	 * @param chain certificates
+	 * @return the SHA-256 fingerprints of the certificates, or null if one cannot be encoded
+	 */
+	private static String fingerprint(List<X509Certificate> chain) {
+		StringBuilder key = new StringBuilder();
+		for(X509Certificate c : chain) {
+			String fingerprint = CertificateIds.fingerprint(c);
+			if(fingerprint == null)
+				return null;
+			if(key.length() > 0)
+				key.append('+');
+			key.append(fingerprint);
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @return the metrics of the validator
+	 */
+	public String toString() {
+		Index current = this.index;
+		return "validation des chaînes : "+(current == null ? 0 : current.anchors.size())+" ancres, "
+				+(current == null ? 0 : current.intermediates)+" intermédiaires, "
+				+hits+" succès, "+misses+" échecs du cache, "+builds+" constructions de l'index";
+	}
+
+	/**
+	 * Anchors and intermediates of a snapshot, with the results of the validations made over them
+	 */
+	private static class Index {
+		final KeyStoreSnapshot snapshot;
+		final Set<X509Certificate> anchors = new HashSet<X509Certificate>();
+		final PKIXParameters parameters;
+		final Map<String, Result> results = new ConcurrentHashMap<String, Result>();
+		int intermediates;
+
+		Index(KeyStoreSnapshot snapshot) {
+			this.snapshot = snapshot;
+			Set<TrustAnchor> trustAnchors = new HashSet<TrustAnchor>();
+			for(KeyStoreSnapshot.Entry entry : snapshot) {
+				Certificate c = entry.getCertificate();
+				if(!(c instanceof X509Certificate))
+					continue;
+				X509Certificate certificate = (X509Certificate) c;
+				if(isSelfSigned(certificate)) {
+					if(anchors.add(certificate))
+						trustAnchors.add(new TrustAnchor(certificate, null));
+				} else {
+					intermediates++;
+				}
+			}
+			PKIXParameters p = null;
+			if(!trustAnchors.isEmpty()) {
+				try {
+					p = new PKIXParameters(trustAnchors);
+					p.setRevocationEnabled(false);
+				} catch (InvalidAlgorithmParameterException e) {
+					p = null;
+				}
+			}
+			this.parameters = p;
+		}
+
+		private static boolean isSelfSigned(X509Certificate certificate) {
+			if(!certificate.getSubjectX500Principal().equals(certificate.getIssuerX500Principal()))
+				return false;
+			try {
+				certificate.verify(certificate.getPublicKey());
+				return true;
+			} catch (GeneralSecurityException e) {
+				return false;
+			}
+		}
+
+		/**
+		 * Build the paths of a certificate and validate them, until one is valid
+		 * @param chain the certificate and its own intermediates
+		 * @param now time of the validation
+		 * @return the result of the validation
+		 */
+		Result validate(List<X509Certificate> chain, long now) {
+			if(parameters == null)
+				return new Result(null, null, "Pas de certificat racine dans le keystore", now + FAILURE_TTL);
+			// Les intermédiaires fournis avec le certificat complètent ceux du keystore
+			KeyStoreSnapshot extra = null;
+			if(chain.size() > 1) {
+				extra = KeyStoreSnapshot.EMPTY;
+				for(int i = 1; i < chain.size(); i++)
+					extra = extra.with(new KeyStoreSnapshot.Entry(String.valueOf(i), EntryType.CERTIFICATE, chain.get(i)));
+			}
+			List<X509Certificate> path = new ArrayList<X509Certificate>();
+			path.add(chain.get(0));
+			String[] error = new String[1];
+			Result result = search(path, extra, now, error);
+			if(result != null)
+				return result;
+			return new Result(null, null, error[0] != null ? error[0] : "Pas de chemin jusqu'à un certificat racine du keystore", now + FAILURE_TTL);
+		}
+
+		/**
+		 * Depth-first search of a valid path
+		 * @param path being built, from the certificate to validate
+		 * @param extra intermediates given with the certificate, or null
+		 * @param now time of the validation
+		 * @param error receiving the last validation error
+		 * @return the result of the first valid path, or null
+		 */
+		private Result search(List<X509Certificate> path, KeyStoreSnapshot extra, long now, String[] error) {
+			X509Certificate top = path.get(path.size() - 1);
+			if(anchors.contains(top)) {
+				// Le certificat est lui-même une racine du keystore
+				if(now > top.getNotAfter().getTime() || now < top.getNotBefore().getTime()) {
+					error[0] = "Certificat racine hors de sa période de validité";
+					return null;
+				}
+				return new Result(Collections.<X509Certificate>emptyList(), top, null, top.getNotAfter().getTime());
+			}
+			for(X509Certificate issuer : issuers(top, extra)) {
+				if(anchors.contains(issuer)) {
+					Result result = check(path, error);
+					if(result != null)
+						return result;
+				} else if(path.size() < MAX_DEPTH && !path.contains(issuer)) {
+					path.add(issuer);
+					Result result = search(path, extra, now, error);
+					path.remove(path.size() - 1);
+					if(result != null)
+						return result;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * @param certificate
+		 * @param extra intermediates given with the certificate, or null
+		 * @return the certificates which may have issued it : by identifier of key, else by name
+		 */
+		private List<X509Certificate> issuers(X509Certificate certificate, KeyStoreSnapshot extra) {
+			List<X509Certificate> issuers = new ArrayList<X509Certificate>();
+			String keyId = CertificateIds.authorityKeyId(certificate);
+			X500Principal name = certificate.getIssuerX500Principal();
+			for(KeyStoreSnapshot s : extra == null ? new KeyStoreSnapshot[] { snapshot } : new KeyStoreSnapshot[] { snapshot, extra }) {
+				List<KeyStoreSnapshot.Entry> candidates = keyId != null ? s.find(KeyStoreSnapshot.KEY_ID, keyId)
+						: Collections.<KeyStoreSnapshot.Entry>emptyList();
+				if(candidates.isEmpty())
+					candidates = s.findBySubject(name);
+				for(KeyStoreSnapshot.Entry e : candidates) {
+					X509Certificate c = (X509Certificate) e.getCertificate();
+					if(c.getSubjectX500Principal().equals(name) && !issuers.contains(c))
+						issuers.add(c);
+				}
+			}
+			return issuers;
+		}
+
+		/**
+		 * Validate a path ending under an anchor
+		 * @param path from the certificate to validate
+		 * @param error receiving the validation error
+		 * @return the result if the path is valid, else null
+		 */
+		private Result check(List<X509Certificate> path, String[] error) {
+			try {
+				PKIXCertPathValidatorResult result = (PKIXCertPathValidatorResult)
+						VALIDATORS.get().validate(FACTORIES.get().generateCertPath(path), parameters);
+				X509Certificate anchor = result.getTrustAnchor().getTrustedCert();
+				long expires = anchor.getNotAfter().getTime();
+				for(X509Certificate c : path)
+					expires = Math.min(expires, c.getNotAfter().getTime());
+				return new Result(new ArrayList<X509Certificate>(path), anchor, null, expires);
+			} catch (CertPathValidatorException e) {
+				error[0] = e.getMessage();
+			} catch (GeneralSecurityException e) {
+				error[0] = e.getMessage();
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Result of the validation of a certificate
+	 */
+	public static class Result {
+		private final List<X509Certificate> path;
+		private final X509Certificate anchor;
+		private final String error;
+		private final long expires;
+
+		Result(List<X509Certificate> path, X509Certificate anchor, String error, long expires) {
+			this.path = path == null ? Collections.<X509Certificate>emptyList() : Collections.unmodifiableList(path);
+			this.anchor = anchor;
+			this.error = error;
+			this.expires = expires;
+		}
+
+		/**
+		 * @return whether or not the certificate is valid
+		 */
+		public boolean isValid() {
+			return error == null;
+		}
+
+		/**
+		 * @return the path validated, from the certificate to the last intermediate, empty for an anchor
+		 */
+		public List<X509Certificate> getPath() {
+			return path;
+		}
+
+		/**
+		 * @return the root certificate of the keystore ending the path, or null if the certificate is not valid
+		 */
+		public X509Certificate getAnchor() {
+			return anchor;
+		}
+
+		/**
+		 * @return the reason why the certificate is not valid, or null
+		 */
+		public String getError() {
+			return error;
+		}
+
+		public String toString() {
+			if(error != null)
+				return "invalide : "+error;
+			if(path.isEmpty())
+				return "valide, certificat racine";
+			return "valide, chaîne de "+path.size()+" certificats jusqu'à "+anchor.getSubjectX500Principal();
+		}
+	}
+
+	/**
+	 * Result of a batch validation
+	 */
+	public static class Report {
+		private final SortedMap<String, Result> results = new TreeMap<String, Result>();
+		private int valid;
+		private long elapsedNanos;
+
+		Report() {
+		}
+
+		void add(String name, Result result) {
+			results.put(name, result);
+			if(result.isValid())
+				valid++;
+		}
+
+		/**
+		 * @return the result of each certificate, by name
+		 */
+		public Map<String, Result> getResults() {
+			return Collections.unmodifiableMap(results);
+		}
+
+		/**
+		 * @return the number of valid certificates
+		 */
+		public int getValidCount() {
+			return valid;
+		}
+
+		/**
+		 * @return the number of certificates which are not valid
+		 */
+		public int getInvalidCount() {
+			return results.size() - valid;
+		}
+
+		/**
+		 * @return the duration of the validation, in milliseconds
+		 */
+		public long getElapsedMillis() {
+			return elapsedNanos / 1000000;
+		}
+
+		/**
+		 * @return the number of certificates validated per second
+		 */
+		public double getValidationsPerSecond() {
+			return elapsedNanos == 0 ? 0 : results.size() * 1e9 / elapsedNanos;
+		}
+
+		public String toString() {
+			return valid+" certificats valides sur "+results.size()+", en "+getElapsedMillis()+" ms ("
+					+Math.round(getValidationsPerSecond())+" validations/s)";
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package keytool.model;
+
+/**
+ * Type of an entry of the keystore
+ * @author Michaël Muré & Théophile Helleboid
+ *
+ */
+public enum EntryType {
+	/** A private key with its certificate chain */
+	PRIVATE_KEY,
+	/** A secret key, without certificate */
+	SECRET_KEY,
+	/** A trusted certificate */
+	CERTIFICATE;
+
+	/**
+	 * @return whether or not the entry is listed with the keys
+	 */
+	public boolean isKey() {
+		return this != CERTIFICATE;
+	}
+
+	/**
+	 * @return whether or not the entry is listed with the certificates
+	 */
+	public boolean hasCertificate() {
+		return this != SECRET_KEY;
+	}
+}
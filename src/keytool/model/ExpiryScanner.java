@@ -0,0 +1,261 @@
+package keytool.model;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Search of the certificates of the keystore which are expired or about to expire.
+ * The search reads the expiry index of the {@link KeyStoreSnapshot}, kept up to date with
+ * the entries : a scan costs O(log n + k) for k certificates found, whatever the size of the keystore.
+ *
+ * Once started, the scanner runs in the background : it scans the keystore periodically,
+ * and checks the added or replaced entries as soon as the model announces them.
+ * Each certificate is announced once when it enters the warning period, and once more
+ * when it expires.
+ * @author Michaël Muré & Théophile Helleboid
+ *
+ */
+public class ExpiryScanner {
+	/** Default warning period, in days */
+	public static final int DEFAULT_WARNING_DAYS = 30;
+
+	private static final long DAY = 24L * 60 * 60 * 1000;
+
+	/**
+	 * Receiver of the alerts of the background scans
+	 */
+	public interface Alert {
+		/**
+		 * Called by the thread of the scanner, or by the thread which modified the model
+		 * @param entry whose certificate expires during the warning period, or is expired
+		 * @param expired whether or not the certificate is already expired
+		 */
+		void expiring(KeyStoreSnapshot.Entry entry, boolean expired);
+	}
+
+	private final Model model;
+	private final long warningMillis;
+	/* Entrées déjà signalées : true si elles l'ont été comme expirées */
+	private final Map<KeyStoreSnapshot.Entry, Boolean> alerted = new ConcurrentHashMap<KeyStoreSnapshot.Entry, Boolean>();
+	private final AtomicLong scans = new AtomicLong();
+	private final AtomicLong alerts = new AtomicLong();
+	private final AtomicLong scanNanos = new AtomicLong();
+	private ScheduledExecutorService scheduler;
+	private ModelListener listener;
+	private volatile Alert alert;
+
+	/**
+	 * Create a scanner with the default warning period
+	 * @param model whose certificates are scanned
+	 */
+	public ExpiryScanner(Model model) {
+		this(model, DEFAULT_WARNING_DAYS);
+	}
+
+	/**
+	 * Create a scanner
+	 * @param model whose certificates are scanned
+	 * @param warningDays number of days before the expiry when a certificate is announced
+	 */
+	public ExpiryScanner(Model model, int warningDays) {
+		if(warningDays < 0)
+			throw new IllegalArgumentException("Période d'alerte invalide");
+		this.model = model;
+		this.warningMillis = warningDays * DAY;
+	}
+
+	/**
+	 * Search the expired certificates and those expiring during the warning period
+	 * @return the certificates found
+	 */
+	public Report scan() {
+		return scan(model.getSnapshot(), System.currentTimeMillis());
+	}
+
+	/**
+	 * @param days number of days from now
+	 * @return the certificates which are not expired yet, but expire within this number of days,
+	 * in the order of their expiry dates
+	 */
+	public List<KeyStoreSnapshot.Entry> expiringWithin(int days) {
+		long now = System.currentTimeMillis();
+		return model.getSnapshot().findExpiring(now, now + days * DAY);
+	}
+
+	private Report scan(KeyStoreSnapshot snapshot, long now) {
+		long start = System.nanoTime();
+		Report report = new Report(snapshot.findExpiringBefore(now), snapshot.findExpiring(now, now + warningMillis));
+		report.elapsedNanos = System.nanoTime() - start;
+		scans.incrementAndGet();
+		scanNanos.addAndGet(report.elapsedNanos);
+		return report;
+	}
+
+	/**
+	 * Start the background scans. The alerts of the scans are sent to the receiver.
+	 * @param periodMillis time between two scans
+	 * @param alert receiver of the alerts
+	 */
+	public synchronized void start(long periodMillis, Alert alert) {
+		if(periodMillis <= 0)
+			throw new IllegalArgumentException("Période de scan invalide");
+		stop();
+		this.alert = alert;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "expiry-scanner");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.listener = new ModelListener() {
+			public void entriesChanged(ModelEvent event) {
+				// Seules les entrées ajoutées ou remplacées peuvent entrer dans la période d'alerte
+				long now = System.currentTimeMillis();
+				for(String alias : event.getAdded())
+					check(event.getSnapshot().get(alias), now);
+				for(String alias : event.getReplaced())
+					check(event.getSnapshot().get(alias), now);
+			}
+
+			public void storeReloaded(ModelEvent event) {
+				alerted.clear();
+				scheduleScan();
+			}
+
+			public void storeSaved(ModelEvent event) {
+			}
+		};
+		model.addModelListener(listener);
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				alertAll();
+			}
+		}, 0, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop the background scans
+	 */
+	public synchronized void stop() {
+		if(scheduler == null)
+			return;
+		model.removeModelListener(listener);
+		scheduler.shutdownNow();
+		scheduler = null;
+		listener = null;
+		alerted.clear();
+	}
+
+	/**
+	 * Scan now, in the background
+	 */
+	private synchronized void scheduleScan() {
+		if(scheduler == null)
+			return;
+		scheduler.execute(new Runnable() {
+			public void run() {
+				alertAll();
+			}
+		});
+	}
+
+	/**
+	 * Scan the keystore and send the alerts not sent yet
+	 */
+	private void alertAll() {
+		long now = System.currentTimeMillis();
+		Report report = scan(model.getSnapshot(), now);
+		// Les entrées supprimées ou remplacées depuis ne sont plus suivies
+		Set<KeyStoreSnapshot.Entry> found = new HashSet<KeyStoreSnapshot.Entry>(report.getExpired());
+		found.addAll(report.getExpiring());
+		alerted.keySet().retainAll(found);
+		for(KeyStoreSnapshot.Entry entry : report.getExpired())
+			alert(entry, true);
+		for(KeyStoreSnapshot.Entry entry : report.getExpiring())
+			alert(entry, false);
+	}
+
+	/**
+	 * Send the alert of an entry, if it is in the warning period
+	 */
+	private void check(KeyStoreSnapshot.Entry entry, long now) {
+		if(entry == null || entry.getNotAfter() == null)
+			return;
+		long notAfter = entry.getNotAfter().getTime();
+		if(notAfter < now)
+			alert(entry, true);
+		else if(notAfter < now + warningMillis)
+			alert(entry, false);
+	}
+
+	private void alert(KeyStoreSnapshot.Entry entry, boolean expired) {
+		Boolean previous = alerted.put(entry, expired);
+		if(previous != null && previous.booleanValue() == expired)
+			return;
+		Alert receiver = this.alert;
+		if(receiver != null) {
+			alerts.incrementAndGet();
+			receiver.expiring(entry, expired);
+		}
+	}
+
+	/**
+	 * @return the statistics of the scans
+	 */
+	public String toString() {
+		long count = scans.get();
+		return "expiration des certificats : "+count+" scans"
+				+(count == 0 ? "" : " en "+(scanNanos.get() / count / 1000)+" µs en moyenne")
+				+", "+alerts+" alertes, alerte à "+(warningMillis / DAY)+" jours";
+	}
+
+	/**
+	 * Certificates found by a scan
+	 */
+	public static class Report {
+		private final List<KeyStoreSnapshot.Entry> expired;
+		private final List<KeyStoreSnapshot.Entry> expiring;
+		private long elapsedNanos;
+
+		Report(List<KeyStoreSnapshot.Entry> expired, List<KeyStoreSnapshot.Entry> expiring) {
+			this.expired = Collections.unmodifiableList(expired);
+			this.expiring = Collections.unmodifiableList(expiring);
+		}
+
+		/**
+		 * @return the expired certificates, in the order of their expiry dates
+		 */
+		public List<KeyStoreSnapshot.Entry> getExpired() {
+			return expired;
+		}
+
+		/**
+		 * @return the certificates expiring during the warning period, in the order of their expiry dates
+		 */
+		public List<KeyStoreSnapshot.Entry> getExpiring() {
+			return expiring;
+		}
+
+		/**
+		 * @return the duration of the scan, in microseconds
+		 */
+		public long getElapsedMicros() {
+			return elapsedNanos / 1000;
+		}
+
+		public String toString() {
+			return expired.size()+" certificats expirés, "+expiring.size()+" à renouveler, en "
+					+getElapsedMicros()+" µs";
+		}
+	}
+}
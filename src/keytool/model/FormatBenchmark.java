@@ -0,0 +1,137 @@
+package keytool.model;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Measure of the keystore formats on the entries of a keystore : conversion of the entries,
+ * save of the file, opening of the file, and size of the file.
+ * The files are written in the temporary directory, and deleted after the measure.
+ * @author Michaël Muré & Théophile Helleboid
+ *
+ */
+public class FormatBenchmark {
+	private final Model source;
+	private final char[] password;
+
+	/**
+	 * Create a benchmark
+	 * @param source keystore whose entries are saved in each format
+	 * @param password of the keystores written
+	 */
+	public FormatBenchmark(Model source, char[] password) {
+		this.source = source;
+		this.password = password;
+	}
+
+	/**
+	 * Measure a format
+	 * @param format to measure
+	 * @return the durations and the size
+	 * @throws ModelException if the format is not available, or the file cannot be written
+	 */
+	public Result run(KeyStoreFormat format) throws ModelException {
+		File file;
+		try {
+			file = File.createTempFile("keytool-", "."+format.getType().toLowerCase());
+		} catch (IOException e) {
+			throw new ModelException("Impossible de créer un fichier temporaire : "+e.getMessage());
+		}
+		try {
+			Model target = new Model();
+			target.newKeyStore(password, format);
+			KeyStoreConverter.Report report = new KeyStoreConverter().convert(source, target);
+
+			long start = System.nanoTime();
+			target.saveAs(file.getPath());
+			long store = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			new Model().openKeyStore(file.getPath(), password, format, null);
+			long load = System.nanoTime() - start;
+			return new Result(format, report.getConvertedCount(), report.getErrors().size(),
+					report.getElapsedMillis(), store / 1000000, load / 1000000, file.length());
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Durations and size of a format
+	 */
+	public static class Result {
+		private final KeyStoreFormat format;
+		private final int entries;
+		private final int skipped;
+		private final long convert;
+		private final long store;
+		private final long load;
+		private final long size;
+
+		Result(KeyStoreFormat format, int entries, int skipped, long convert, long store, long load, long size) {
+			this.format = format;
+			this.entries = entries;
+			this.skipped = skipped;
+			this.convert = convert;
+			this.store = store;
+			this.load = load;
+			this.size = size;
+		}
+
+		/**
+		 * @return the format measured
+		 */
+		public KeyStoreFormat getFormat() {
+			return format;
+		}
+
+		/**
+		 * @return the number of entries the format could not hold, like the secret keys in JKS
+		 */
+		public int getSkippedCount() {
+			return skipped;
+		}
+
+		/**
+		 * @return the duration of the conversion of the entries, in milliseconds
+		 */
+		public long getConvertMillis() {
+			return convert;
+		}
+
+		/**
+		 * @return the duration of the save, in milliseconds
+		 */
+		public long getStoreMillis() {
+			return store;
+		}
+
+		/**
+		 * @return the duration of the opening, in milliseconds
+		 */
+		public long getLoadMillis() {
+			return load;
+		}
+
+		/**
+		 * @return the size of the file, in bytes
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * @return a row of the table, under {@link #header()}
+		 */
+		public String toString() {
+			return String.format("%-8s %8d %8d %14d %14d %14d %10d", format, entries, skipped, convert, store, load, size / 1024);
+		}
+
+		/**
+		 * @return the header of the table
+		 */
+		public static String header() {
+			return String.format("%-8s %8s %8s %14s %14s %14s %10s", "Format", "entrées", "ignorées", "conversion ms", "écriture ms", "ouverture ms", "taille Ko");
+		}
+	}
+}
@@ -0,0 +1,285 @@
+package keytool.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generation of many identities at once : a private key and its self-signed certificate each.
+ * The key pairs and the certificates are generated in parallel by a pool of threads,
+ * taking the pairs already pregenerated by the {@link KeyPairPool}, then everything is
+ * added to the Model in one batch. Saving the keystore once afterwards is left to the caller.
+ *
+ * The identities are given as aliases with their subject, or as templates numbered by
+ * a counter, like "device-%04d" and "CN=device-%04d, O=Fleet".
+ * @author Michaël Muré & Théophile Helleboid
+ *
+ */
+public class IdentityGenerator {
+	private final Model model;
+	private final int threads;
+	private final AtomicLong generated = new AtomicLong();
+	private CertificateTemplate template = CertificateTemplate.identity();
+	private String algorithm = "RSA";
+	private int size = 1024;
+
+	/**
+	 * Create a generator using a thread per processor
+	 * @param model receiving the identities
+	 */
+	public IdentityGenerator(Model model) {
+		this(model, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Create a generator
+	 * @param model receiving the identities
+	 * @param threads number of threads generating the identities
+	 */
+	public IdentityGenerator(Model model, int threads) {
+		if(threads <= 0)
+			throw new IllegalArgumentException("Nombre de threads invalide");
+		this.model = model;
+		this.threads = threads;
+	}
+
+	/**
+	 * @param algorithm of the key pairs, like RSA or EC
+	 * @param size of the keys, in bits
+	 * @return this generator
+	 */
+	public IdentityGenerator setAlgorithm(String algorithm, int size) {
+		this.algorithm = algorithm;
+		this.size = size;
+		return this;
+	}
+
+	/**
+	 * @param template of the certificates, {@link CertificateTemplate#identity()} by default ; it also gives
+	 * the algorithm of the key pairs, until {@link #setAlgorithm(String, int)} changes it
+	 * @return this generator
+	 */
+	public IdentityGenerator setTemplate(CertificateTemplate template) {
+		this.template = template;
+		return setAlgorithm(template.getAlgorithm().getAlgorithm(), template.getAlgorithm().getSize());
+	}
+
+	/**
+	 * @return the number of identities generated so far, to follow the progress of a generation
+	 */
+	public long getGeneratedCount() {
+		return generated.get();
+	}
+
+	/**
+	 * Generate numbered identities
+	 * @param aliasTemplate format of the aliases, given the counter, like "device-%04d"
+	 * @param subjectTemplate format of the subjects, given the counter, like "CN=device-%04d"
+	 * @param first value of the counter
+	 * @param count number of identities
+	 * @return the report of the generation
+	 * @throws ModelException if a template is invalid
+	 */
+	public Report generate(String aliasTemplate, String subjectTemplate, int first, int count) throws ModelException {
+		if(count < 0)
+			throw new ModelException("Nombre d'identités invalide : "+count);
+		Map<String, String> subjects = new LinkedHashMap<String, String>();
+		try {
+			for(int i = first; i < first + count; i++)
+				subjects.put(String.format(aliasTemplate, i), String.format(subjectTemplate, i));
+		} catch (IllegalArgumentException e) {
+			throw new ModelException("Modèle d'alias ou de sujet invalide : "+e.getMessage());
+		}
+		if(subjects.size() < count)
+			throw new ModelException("Le modèle d'alias "+aliasTemplate+" ne dépend pas du compteur");
+		return generate(subjects);
+	}
+
+	/**
+	 * Generate identities.
+	 * An identity which cannot be generated or added is reported, and the others are added anyway.
+	 * @param subjects subject of each identity, by alias, in the order of the insertion
+	 * @return the report of the generation
+	 * @throws ModelException if the algorithm is not supported, or the generation is interrupted
+	 */
+	public Report generate(Map<String, String> subjects) throws ModelException {
+		long start = System.nanoTime();
+		generated.set(0);
+		CertificateTemplate identity = template.copy().setAlgorithm(KeyAlgorithm.of(algorithm, size));
+		final Report report = new Report(algorithm+"/"+size, subjects.size());
+		// Démarre le stock du pool avant la première prise
+		KeyPairPool.getDefault().prepare(algorithm, size);
+		// Pas de clé générée pour rien : les alias pris sont écartés avant, et revérifiés dans le lot
+		KeyStoreSnapshot snapshot = model.getSnapshot();
+		Map<String, String> free = new LinkedHashMap<String, String>();
+		for(Map.Entry<String, String> subject : subjects.entrySet()) {
+			if(snapshot.contains(subject.getKey()))
+				report.error(subject.getKey(), "L'alias existe déjà");
+			else
+				free.put(subject.getKey(), subject.getValue());
+		}
+		final List<Generated> results = generate(free, identity, report);
+
+		model.runBatch(new Model.Batch() {
+			public void run(Model model) throws ModelException {
+				for(Generated g : results) {
+					if(model.getEntryType(g.alias) != null) {
+						report.error(g.alias, "L'alias existe déjà");
+						continue;
+					}
+					try {
+						g.key.addToKeyStore(model, g.alias);
+						report.generated++;
+					} catch (ModelException e) {
+						report.error(g.alias, e.getMessage());
+					}
+				}
+			}
+		});
+		report.elapsedNanos = System.nanoTime() - start;
+		return report;
+	}
+
+	/**
+	 * Generate the identities on the pool of threads
+	 * @param subjects subject of each identity, by alias
+	 * @param template of the certificates
+	 * @param report receiving the generation errors
+	 * @return the identities generated, in the order of the aliases
+	 * @throws ModelException
+	 */
+	private List<Generated> generate(Map<String, String> subjects, final CertificateTemplate template, Report report) throws ModelException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "identity-generator");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			List<Future<Generated>> futures = new ArrayList<Future<Generated>>(subjects.size());
+			for(final Map.Entry<String, String> subject : subjects.entrySet()) {
+				futures.add(pool.submit(new Callable<Generated>() {
+					public Generated call() {
+						Generated g = new Generated(subject.getKey());
+						try {
+							g.key = new MTPrivateKey(subject.getValue(), template);
+						} catch (ModelException e) {
+							g.error = e.getMessage();
+						} finally {
+							generated.incrementAndGet();
+						}
+						return g;
+					}
+				}));
+			}
+			List<Generated> results = new ArrayList<Generated>(subjects.size());
+			for(Future<Generated> future : futures) {
+				Generated g = future.get();
+				if(g.error != null)
+					report.error(g.alias, g.error);
+				else
+					results.add(g);
+			}
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ModelException("Génération interrompue");
+		} catch (ExecutionException e) {
+			throw new ModelException("Erreur lors de la génération : "+e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Identity generated, or the error of its generation
+	 */
+	private static class Generated {
+		final String alias;
+		MTPrivateKey key;
+		String error;
+
+		Generated(String alias) {
+			this.alias = alias;
+		}
+	}
+
+	/**
+	 * Result of a generation
+	 */
+	public static class Report {
+		private final String algorithm;
+		private final int requested;
+		private int generated;
+		private long elapsedNanos;
+		private final SortedMap<String, String> errors = new TreeMap<String, String>();
+
+		Report(String algorithm, int requested) {
+			this.algorithm = algorithm;
+			this.requested = requested;
+		}
+
+		void error(String alias, String message) {
+			errors.put(alias, message);
+		}
+
+		/**
+		 * @return the algorithm and the size of the keys, like "RSA/1024"
+		 */
+		public String getAlgorithm() {
+			return algorithm;
+		}
+
+		/**
+		 * @return the number of identities asked
+		 */
+		public int getRequestedCount() {
+			return requested;
+		}
+
+		/**
+		 * @return the number of identities added to the keystore
+		 */
+		public int getGeneratedCount() {
+			return generated;
+		}
+
+		/**
+		 * @return the error of each identity which was not added, by alias
+		 */
+		public Map<String, String> getErrors() {
+			return Collections.unmodifiableMap(errors);
+		}
+
+		/**
+		 * @return the duration of the generation, in milliseconds
+		 */
+		public long getElapsedMillis() {
+			return elapsedNanos / 1000000;
+		}
+
+		/**
+		 * @return the number of identities added per second
+		 */
+		public double getKeysPerSecond() {
+			return elapsedNanos == 0 ? 0 : generated * 1e9 / elapsedNanos;
+		}
+
+		public String toString() {
+			return generated+" identités "+algorithm+" générées sur "+requested+", "+errors.size()+" erreurs, en "
+					+getElapsedMillis()+" ms ("+String.format("%.1f", getKeysPerSecond())+" clés/s)";
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package keytool.model;
+
+import java.security.Key;
+import java.security.Security;
+import java.security.interfaces.ECKey;
+import java.security.interfaces.RSAKey;
+
+/**
+ * Algorithms and sizes of the key pairs the Keytool can create, with the algorithm
+ * signing their certificates.
+ *
+ * The elliptic curves sign and generate much faster than RSA for the same security :
+ * P-256 is about RSA 3072, P-384 about RSA 7680. Their keys and signatures come from the
+ * provider of the runtime (SunEC) when there is one, several times faster than this version
+ * of BouncyCastle. Ed25519 needs a runtime providing it (Java 15 or later), see {@link #isAvailable()}.
+ * @author Michaël Muré & Théophile Helleboid
+ *
+ */
+public enum KeyAlgorithm {
+	RSA_1024("RSA", 1024, "SHA256WithRSAEncryption", "RSA 1024"),
+	RSA_2048("RSA", 2048, "SHA256WithRSAEncryption", "RSA 2048"),
+	RSA_3072("RSA", 3072, "SHA256WithRSAEncryption", "RSA 3072"),
+	RSA_4096("RSA", 4096, "SHA256WithRSAEncryption", "RSA 4096"),
+	DSA_1024("DSA", 1024, "SHA1WithDSA", "DSA 1024"),
+	EC_P256("EC", 256, "SHA256WithECDSA", "EC P-256"),
+	EC_P384("EC", 384, "SHA384WithECDSA", "EC P-384"),
+	ED25519("Ed25519", 255, "Ed25519", "Ed25519");
+
+	/** Algorithm of the keys created when none is chosen */
+	public static final KeyAlgorithm DEFAULT = RSA_1024;
+
+	private static final String RUNTIME_EC = "SunEC";
+
+	private final String algorithm;
+	private final int size;
+	private final String signatureAlgorithm;
+	private final String label;
+
+	private KeyAlgorithm(String algorithm, int size, String signatureAlgorithm, String label) {
+		this.algorithm = algorithm;
+		this.size = size;
+		this.signatureAlgorithm = signatureAlgorithm;
+		this.label = label;
+	}
+
+	/**
+	 * @param algorithm name of the algorithm of the key pairs, like "RSA" or "EC", case insensitive
+	 * @param size of the keys, in bits
+	 * @return the matching algorithm
+	 * @throws ModelException if the Keytool cannot create such keys
+	 */
+	public static KeyAlgorithm of(String algorithm, int size) throws ModelException {
+		for(KeyAlgorithm a : values()) {
+			if(a.algorithm.equalsIgnoreCase(algorithm) && a.size == size)
+				return a;
+		}
+		throw new ModelException("Algorithme de clé non supporté : "+algorithm+" "+size);
+	}
+
+	/**
+	 * @param key private or public key
+	 * @return the algorithm of the key ; RSA keys of any size sign the same way
+	 * @throws ModelException if the Keytool cannot sign with such keys
+	 */
+	public static KeyAlgorithm of(Key key) throws ModelException {
+		String name = key.getAlgorithm();
+		if(name.equals("RSA") && key instanceof RSAKey) {
+			int size = ((RSAKey) key).getModulus().bitLength();
+			KeyAlgorithm found = RSA_1024;
+			for(KeyAlgorithm a : values()) {
+				if(a.algorithm.equals("RSA") && a.size <= size)
+					found = a;
+			}
+			return found;
+		}
+		if(name.equals("DSA"))
+			return DSA_1024;
+		if((name.equals("EC") || name.equals("ECDSA")) && key instanceof ECKey && ((ECKey) key).getParams() != null)
+			return of("EC", ((ECKey) key).getParams().getCurve().getField().getFieldSize());
+		if(name.equals("Ed25519") || name.equals("EdDSA"))
+			return ED25519;
+		throw new ModelException("Algorithme de clé non supporté : "+name);
+	}
+
+	/**
+	 * @return the algorithm of the key pairs, as known by the providers
+	 */
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * @return the size of the keys, in bits
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the algorithm of the signatures made with these keys
+	 */
+	public String getSignatureAlgorithm() {
+		return signatureAlgorithm;
+	}
+
+	/**
+	 * @return the name of the provider generating the keys and the signatures
+	 */
+	String provider() {
+		if(this == ED25519 || (algorithm.equals("EC") && Security.getProvider(RUNTIME_EC) != null))
+			return RUNTIME_EC;
+		return "BC";
+	}
+
+	/**
+	 * @return whether or not the key pairs can be generated with the providers installed
+	 */
+	public boolean isAvailable() {
+		try {
+			KeyPairPool.newGenerator(algorithm, size);
+			return true;
+		} catch (ModelException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return the name shown to the user, like "EC P-256"
+	 */
+	public String toString() {
+		return label;
+	}
+}
@@ -0,0 +1,325 @@
+package keytool.model;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache of the recovered keys of a keystore.
+ * Recovering a key from a JCEKS keystore runs the whole PBE unprotection,
+ * so the keys recently used are kept here, up to a maximum size and for a limited time.
+ *
+ * The eviction follows the W-TinyLFU policy : a new key goes to a small LRU window,
+ * and when it leaves the window it is only admitted in the main LRU area if it has been
+ * asked more often than the key it would evict. The access frequencies are estimated by a
+ * small count-min sketch, halved periodically so that old popularity fades.
+ *
+ * The keys leaving the cache are not destroyed : another thread may still use a key it got
+ * just before, and most JCE keys cannot be erased anyway. The cache only drops its reference,
+ * and the key is collected once its callers are done with it. The expired keys are removed by
+ * a background sweep, scheduled at the next expiry while the cache holds keys, even if the
+ * cache is not read again.
+ * @author Michaël Muré & Théophile Helleboid
+ *
+ */
+public class KeyCache {
+	/** Default number of keys kept */
+	public static final int DEFAULT_MAXIMUM_SIZE = 256;
+	/** Default time to live of a key in the cache, in milliseconds */
+	public static final long DEFAULT_TTL = 5 * 60 * 1000;
+
+	/* Un seul thread retire les clés expirées de tous les caches */
+	private static final ScheduledExecutorService SWEEPER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "key-cache-sweeper");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private final int maximumSize;
+	private final int windowSize;
+	private final long ttlNanos;
+	private final LinkedHashMap<String, Node> window;
+	private final LinkedHashMap<String, Node> main;
+	private final FrequencySketch sketch;
+	private boolean sweepScheduled;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Create a cache with the default limits
+	 */
+	public KeyCache() {
+		this(DEFAULT_MAXIMUM_SIZE, DEFAULT_TTL);
+	}
+
+	/**
+	 * Create a cache
+	 * @param maximumSize maximum number of keys kept, 0 disables the cache
+	 * @param ttlMillis time to live of a key, in milliseconds
+	 */
+	public KeyCache(int maximumSize, long ttlMillis) {
+		if(maximumSize < 0 || ttlMillis <= 0)
+			throw new IllegalArgumentException("Limites du cache invalides");
+		this.maximumSize = maximumSize;
+		// 1% de la taille pour la fenêtre LRU, comme W-TinyLFU
+		this.windowSize = Math.max(1, maximumSize / 100);
+		this.ttlNanos = ttlMillis * 1000000L;
+		this.window = new LinkedHashMap<String, Node>(16, 0.75f, true);
+		this.main = new LinkedHashMap<String, Node>(16, 0.75f, true);
+		this.sketch = new FrequencySketch(Math.max(1, maximumSize));
+	}
+
+	/**
+	 * Get a key from the cache
+	 * @param alias of the key
+	 * @return the key, or null if the key is not cached or has expired
+	 */
+	public synchronized MTPSKey get(String alias) {
+		sketch.increment(alias);
+		Node node = window.get(alias);
+		LinkedHashMap<String, Node> area = window;
+		if(node == null) {
+			node = main.get(alias);
+			area = main;
+		}
+		if(node == null) {
+			misses++;
+			return null;
+		}
+		if(System.nanoTime() - node.created > ttlNanos) {
+			area.remove(alias);
+			evictions++;
+			misses++;
+			return null;
+		}
+		hits++;
+		return node.key;
+	}
+
+	/**
+	 * Put a recovered key in the cache
+	 * @param alias of the key
+	 * @param key recovered
+	 */
+	public synchronized void put(String alias, MTPSKey key) {
+		if(maximumSize == 0)
+			return;
+		if(window.remove(alias) == null)
+			main.remove(alias);
+
+		window.put(alias, new Node(key));
+		scheduleSweep();
+		if(window.size() <= windowSize)
+			return;
+
+		// Le plus ancien de la fenêtre tente d'entrer dans la zone principale
+		Iterator<Map.Entry<String, Node>> it = window.entrySet().iterator();
+		Map.Entry<String, Node> candidate = it.next();
+		it.remove();
+		if(main.size() < maximumSize - windowSize) {
+			main.put(candidate.getKey(), candidate.getValue());
+			return;
+		}
+		// Le candidat ou la victime sort du cache
+		evictions++;
+		Iterator<Map.Entry<String, Node>> victims = main.entrySet().iterator();
+		if(!victims.hasNext())
+			return;
+		Map.Entry<String, Node> victim = victims.next();
+		if(sketch.frequency(candidate.getKey()) > sketch.frequency(victim.getKey())) {
+			victims.remove();
+			main.put(candidate.getKey(), candidate.getValue());
+		}
+	}
+
+	/**
+	 * Remove the expired keys from the cache
+	 * @return the number of keys removed
+	 */
+	public synchronized int cleanUp() {
+		long now = System.nanoTime();
+		return expire(window, now) + expire(main, now);
+	}
+
+	private int expire(Map<String, Node> area, long now) {
+		int removed = 0;
+		for(Iterator<Node> it = area.values().iterator(); it.hasNext(); ) {
+			Node node = it.next();
+			if(now - node.created > ttlNanos) {
+				it.remove();
+				evictions++;
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Schedule the sweep at the expiry of the oldest key, if none is scheduled.
+	 * The sweeper only holds a weak reference : a cache no longer used is not kept alive.
+	 */
+	private void scheduleSweep() {
+		if(sweepScheduled || size() == 0)
+			return;
+		long oldest = Long.MAX_VALUE;
+		for(Node node : window.values())
+			oldest = Math.min(oldest, node.created);
+		for(Node node : main.values())
+			oldest = Math.min(oldest, node.created);
+		long delay = Math.max(0, oldest + ttlNanos - System.nanoTime()) + 1000000;
+		final WeakReference<KeyCache> cache = new WeakReference<KeyCache>(this);
+		SWEEPER.schedule(new Runnable() {
+			public void run() {
+				KeyCache c = cache.get();
+				if(c != null)
+					c.sweep();
+			}
+		}, delay, TimeUnit.NANOSECONDS);
+		sweepScheduled = true;
+	}
+
+	private synchronized void sweep() {
+		sweepScheduled = false;
+		cleanUp();
+		scheduleSweep();
+	}
+
+	/**
+	 * Remove a key from the cache
+	 * @param alias of the key
+	 */
+	public synchronized void invalidate(String alias) {
+		if(window.remove(alias) == null)
+			main.remove(alias);
+	}
+
+	/**
+	 * Remove all the keys from the cache
+	 */
+	public synchronized void invalidateAll() {
+		window.clear();
+		main.clear();
+	}
+
+	/**
+	 * @return the number of keys currently cached
+	 */
+	public synchronized int size() {
+		return window.size() + main.size();
+	}
+
+	/**
+	 * @return the number of requests answered by the cache
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of requests which needed to recover the key
+	 */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * @return the number of keys evicted because of the size or the time limit
+	 */
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	/**
+	 * @return the ratio of requests answered by the cache
+	 */
+	public synchronized double getHitRate() {
+		long total = hits + misses;
+		return total == 0 ? 0.0 : (double) hits / total;
+	}
+
+	public synchronized String toString() {
+		return "cache de clés : "+size()+"/"+maximumSize+", "+hits+" succès, "+misses+" échecs, "+evictions+" évictions";
+	}
+
+	/**
+	 * A cached key with its creation time
+	 */
+	private static class Node {
+		final MTPSKey key;
+		final long created;
+
+		Node(MTPSKey key) {
+			this.key = key;
+			this.created = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Count-min sketch of the access frequencies, with 4 bits counters
+	 */
+	private static class FrequencySketch {
+		private static final int[] SEEDS = { 0x97cb3127, 0xb4b82e39, 0x7f4a7c15, 0x2c1b3c6d };
+		private final long[] table;
+		private final int mask;
+		private final int sampleSize;
+		private int additions;
+
+		FrequencySketch(int maximumSize) {
+			int length = Integer.highestOneBit(Math.max(maximumSize, 16) - 1) << 1;
+			this.table = new long[length];
+			this.mask = length - 1;
+			this.sampleSize = 10 * maximumSize;
+		}
+
+		/* 16 compteurs de 4 bits par long */
+		private int indexOf(int hash, int i) {
+			int h = (hash ^ SEEDS[i]) * 0x9e3779b9;
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		private int offsetOf(int hash, int i) {
+			return ((hash >>> (i << 3)) & 0xf) << 2;
+		}
+
+		void increment(String alias) {
+			int hash = alias.hashCode();
+			boolean added = false;
+			for(int i = 0; i < SEEDS.length; i++) {
+				int index = indexOf(hash, i);
+				int offset = offsetOf(hash, i);
+				if(((table[index] >>> offset) & 0xfL) < 15) {
+					table[index] += 1L << offset;
+					added = true;
+				}
+			}
+			if(added && ++additions >= sampleSize)
+				reset();
+		}
+
+		int frequency(String alias) {
+			int hash = alias.hashCode();
+			int frequency = Integer.MAX_VALUE;
+			for(int i = 0; i < SEEDS.length; i++) {
+				int count = (int) ((table[indexOf(hash, i)] >>> offsetOf(hash, i)) & 0xfL);
+				frequency = Math.min(frequency, count);
+			}
+			return frequency;
+		}
+
+		/* Divise tous les compteurs par deux */
+		private void reset() {
+			for(int i = 0; i < table.length; i++)
+				table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+			additions /= 2;
+		}
+	}
+}
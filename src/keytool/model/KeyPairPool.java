@@ -0,0 +1,308 @@
+package keytool.model;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of key pairs generated in advance.
+ * Generating a RSA key pair means searching primes, which takes a noticeable time. The
+ * pool keeps, for each algorithm and key size asked at least once, a stock of key pairs
+ * generated by background threads up to a watermark, so a creation takes a ready pair.
+ * When the stock is empty the pair is generated by the caller, as without the pool.
+ *
+ * The depth of each stock and the time spent by the callers waiting for a pair are
+ * available through {@link #getStats(String, int)}.
+ * @author Michaël Muré & Théophile Helleboid
+ *
+ */
+public class KeyPairPool {
+	/** Default number of key pairs kept ready for each algorithm and size */
+	public static final int DEFAULT_WATERMARK = 8;
+
+	private static final KeyPairPool DEFAULT = new KeyPairPool(DEFAULT_WATERMARK,
+			Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+
+	private final Map<String, Stock> stocks = new HashMap<String, Stock>();
+	private final ExecutorService generators;
+	private volatile int watermark;
+
+	/**
+	 * Create a pool
+	 * @param watermark number of key pairs kept ready for each algorithm and size, 0 to disable the pregeneration
+	 * @param threads number of background threads generating the pairs
+	 */
+	public KeyPairPool(int watermark, int threads) {
+		if(watermark < 0 || threads <= 0)
+			throw new IllegalArgumentException("Paramètres du pool invalides");
+		this.watermark = watermark;
+		this.generators = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "keypair-pool");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * @return the pool shared by the key creations of the application
+	 */
+	public static KeyPairPool getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Change the number of key pairs kept ready. The stocks above are drained by the takes.
+	 * @param watermark number of key pairs kept ready for each algorithm and size, 0 to disable the pregeneration
+	 */
+	public void setWatermark(int watermark) {
+		if(watermark < 0)
+			throw new IllegalArgumentException("Seuil du pool invalide");
+		this.watermark = watermark;
+		synchronized(stocks) {
+			for(Stock stock : stocks.values())
+				stock.refill();
+		}
+	}
+
+	/**
+	 * @return the number of key pairs kept ready for each algorithm and size
+	 */
+	public int getWatermark() {
+		return watermark;
+	}
+
+	/**
+	 * Start filling the stock of an algorithm and size before the first take
+	 * @param algorithm like "RSA"
+	 * @param size of the keys, in bits
+	 * @throws ModelException if the algorithm is unknown
+	 */
+	public void prepare(String algorithm, int size) throws ModelException {
+		stock(algorithm, size).refill();
+	}
+
+	/**
+	 * Take a key pair, generated in advance if the stock is not empty
+	 * @param algorithm like "RSA"
+	 * @param size of the keys, in bits
+	 * @return a new key pair, never given to anyone else
+	 * @throws ModelException if the algorithm is unknown
+	 */
+	public KeyPair take(String algorithm, int size) throws ModelException {
+		Stock stock = stock(algorithm, size);
+		long start = System.nanoTime();
+		KeyPair pair = stock.pairs.poll();
+		boolean hit = pair != null;
+		if(!hit)
+			pair = stock.generate();
+		stock.taken(hit, System.nanoTime() - start);
+		stock.refill();
+		return pair;
+	}
+
+	/**
+	 * @param algorithm like "RSA"
+	 * @param size of the keys, in bits
+	 * @return the metrics of the stock of this algorithm and size
+	 * @throws ModelException if the algorithm is unknown
+	 */
+	public Stats getStats(String algorithm, int size) throws ModelException {
+		return stock(algorithm, size).stats();
+	}
+
+	/**
+	 * Stop the background generation. The pairs already generated can still be taken.
+	 */
+	public void shutdown() {
+		generators.shutdownNow();
+	}
+
+	private Stock stock(String algorithm, int size) throws ModelException {
+		String name = algorithm+"/"+size;
+		synchronized(stocks) {
+			Stock stock = stocks.get(name);
+			if(stock == null) {
+				stock = new Stock(algorithm, size);
+				stocks.put(name, stock);
+			}
+			return stock;
+		}
+	}
+
+	/**
+	 * Create a generator of key pairs, from the provider of its {@link KeyAlgorithm},
+	 * from BouncyCastle for the other algorithms and sizes
+	 * @param algorithm like "RSA"
+	 * @param size of the keys, in bits
+	 * @return the initialized generator
+	 * @throws ModelException if the algorithm or the size is unknown
+	 */
+	static KeyPairGenerator newGenerator(String algorithm, int size) throws ModelException {
+		String provider = "BC";
+		for(KeyAlgorithm a : KeyAlgorithm.values()) {
+			if(a.getAlgorithm().equals(algorithm) && a.getSize() == size)
+				provider = a.provider();
+		}
+		try {
+			KeyPairGenerator kpGen = KeyPairGenerator.getInstance(algorithm, provider);
+			kpGen.initialize(size, new SecureRandom());
+			return kpGen;
+		} catch (NoSuchAlgorithmException e) {
+			throw new ModelException("Algorithme utilisé inconnu : "+e.getMessage());
+		} catch (NoSuchProviderException e) {
+			throw new ModelException("Fournisseur de chiffrement inconnu  : "+e.getMessage());
+		} catch (IllegalArgumentException e) {
+			throw new ModelException("Taille de clé invalide : "+size);
+		}
+	}
+
+	/**
+	 * Stock of the key pairs of an algorithm and a size
+	 */
+	private class Stock {
+		final String algorithm;
+		final int size;
+		final LinkedBlockingQueue<KeyPair> pairs = new LinkedBlockingQueue<KeyPair>();
+		/* Paires en stock ou en cours de génération */
+		final AtomicInteger planned = new AtomicInteger();
+		/* Un générateur par thread : KeyPairGenerator n'est pas sûr entre threads */
+		final ThreadLocal<KeyPairGenerator> generator = new ThreadLocal<KeyPairGenerator>();
+		long takes;
+		long hits;
+		long waitNanos;
+		long maxWaitNanos;
+
+		Stock(String algorithm, int size) throws ModelException {
+			this.algorithm = algorithm;
+			this.size = size;
+			// Vérifie l'algorithme dès la création du stock
+			newGenerator(algorithm, size);
+		}
+
+		KeyPair generate() throws ModelException {
+			KeyPairGenerator kpGen = generator.get();
+			if(kpGen == null) {
+				kpGen = newGenerator(algorithm, size);
+				generator.set(kpGen);
+			}
+			return kpGen.generateKeyPair();
+		}
+
+		/**
+		 * Plan the generation of the pairs missing below the watermark
+		 */
+		void refill() {
+			while(true) {
+				int n = planned.get();
+				if(n >= watermark || generators.isShutdown())
+					return;
+				if(!planned.compareAndSet(n, n + 1))
+					continue;
+				generators.execute(new Runnable() {
+					public void run() {
+						try {
+							pairs.add(generate());
+						} catch (ModelException e) {
+							planned.decrementAndGet();
+							System.err.println("Échec de la génération de clés : "+e.getMessage());
+						}
+					}
+				});
+			}
+		}
+
+		synchronized void taken(boolean hit, long nanos) {
+			if(hit)
+				planned.decrementAndGet();
+			takes++;
+			if(hit)
+				hits++;
+			waitNanos += nanos;
+			maxWaitNanos = Math.max(maxWaitNanos, nanos);
+		}
+
+		synchronized Stats stats() {
+			return new Stats(algorithm+"/"+size, pairs.size(), takes, hits, waitNanos, maxWaitNanos);
+		}
+	}
+
+	/**
+	 * Metrics of the stock of an algorithm and a size
+	 */
+	public static class Stats {
+		private final String name;
+		private final int depth;
+		private final long takes;
+		private final long hits;
+		private final long waitNanos;
+		private final long maxWaitNanos;
+
+		Stats(String name, int depth, long takes, long hits, long waitNanos, long maxWaitNanos) {
+			this.name = name;
+			this.depth = depth;
+			this.takes = takes;
+			this.hits = hits;
+			this.waitNanos = waitNanos;
+			this.maxWaitNanos = maxWaitNanos;
+		}
+
+		/**
+		 * @return the number of key pairs ready
+		 */
+		public int getDepth() {
+			return depth;
+		}
+
+		/**
+		 * @return the number of key pairs taken
+		 */
+		public long getTakeCount() {
+			return takes;
+		}
+
+		/**
+		 * @return the number of key pairs taken from the stock, without generation
+		 */
+		public long getHitCount() {
+			return hits;
+		}
+
+		/**
+		 * @return the number of key pairs generated by the caller, the stock being empty
+		 */
+		public long getMissCount() {
+			return takes - hits;
+		}
+
+		/**
+		 * @return the average time spent to take a key pair, in milliseconds
+		 */
+		public double getAverageWaitMillis() {
+			return takes == 0 ? 0 : waitNanos / 1e6 / takes;
+		}
+
+		/**
+		 * @return the longest time spent to take a key pair, in milliseconds
+		 */
+		public double getMaxWaitMillis() {
+			return maxWaitNanos / 1e6;
+		}
+
+		public String toString() {
+			return name+" : "+depth+" prêtes, "+takes+" prises dont "+getMissCount()+" générées à la demande, attente moyenne "
+					+String.format("%.2f", getAverageWaitMillis())+" ms, max "+String.format("%.2f", getMaxWaitMillis())+" ms";
+		}
+	}
+}
@@ -0,0 +1,261 @@
+package keytool.model;
+
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Conversion of a keystore to another format, for instance from JCEKS to PKCS12.
+ * The entries are converted by batches : the keys of a batch are recovered in parallel from
+ * the source, unprotected with its password, then added to the target in one batch of the
+ * target Model, protected with the target password. The keys of the next batch are recovered
+ * while the current batch is added, so at most two batches of keys are in clear in memory.
+ * When the calling thread runs a batch of the source, the keys are recovered by this thread.
+ * The private keys keep the whole chain of their certificates.
+ * @author Michaël Muré & Théophile Helleboid
+ *
+ */
+public class KeyStoreConverter {
+	/** Default number of entries converted together */
+	public static final int DEFAULT_BATCH_SIZE = 256;
+
+	private final int threads;
+	private final int batchSize;
+
+	/**
+	 * Create a converter with a thread per processor
+	 */
+	public KeyStoreConverter() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Create a converter
+	 * @param threads number of threads recovering the keys
+	 * @param batchSize number of entries converted together, bounding the keys in memory
+	 */
+	public KeyStoreConverter(int threads, int batchSize) {
+		if(threads <= 0)
+			throw new IllegalArgumentException("Nombre de threads invalide");
+		if(batchSize <= 0)
+			throw new IllegalArgumentException("Taille de lot invalide");
+		this.threads = threads;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Convert a keystore file
+	 * @param sourcePath keystore to convert, its format is recognized
+	 * @param sourcePassword of the keystore to convert
+	 * @param targetPath file of the converted keystore
+	 * @param format of the converted keystore
+	 * @param targetPassword of the converted keystore and of its keys
+	 * @return the report of the conversion
+	 * @throws ModelException if a keystore cannot be opened or saved
+	 */
+	public Report convert(String sourcePath, char[] sourcePassword, String targetPath,
+			KeyStoreFormat format, char[] targetPassword) throws ModelException {
+		long start = System.nanoTime();
+		Model source = new Model();
+		source.openKeyStore(sourcePath, sourcePassword);
+		long loaded = System.nanoTime();
+		Model target = new Model();
+		target.newKeyStore(targetPassword, format);
+		Report report = convert(source, target);
+		report.loadNanos = loaded - start;
+		long stored = System.nanoTime();
+		target.saveAs(targetPath);
+		report.storeNanos = System.nanoTime() - stored;
+		return report;
+	}
+
+	/**
+	 * Copy all the entries of a keystore into another one, probably of another format.
+	 * An entry which cannot be converted, like a secret key for a JKS keystore, is reported
+	 * and the others are converted anyway. Saving the target is left to the caller.
+	 * @param source keystore to convert
+	 * @param target keystore receiving the entries, with its format and password
+	 * @return the report of the conversion
+	 * @throws ModelException
+	 */
+	public Report convert(final Model source, Model target) throws ModelException {
+		final Report report = new Report(source.getFormat(), target.getFormat());
+		long start = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "keystore-converter");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			Pending previous = null;
+			List<KeyStoreSnapshot.Entry> batch = new ArrayList<KeyStoreSnapshot.Entry>(batchSize);
+			for(KeyStoreSnapshot.Entry entry : source.getSnapshot()) {
+				batch.add(entry);
+				if(batch.size() == batchSize) {
+					Pending next = new Pending(pool, source, batch);
+					if(previous != null)
+						previous.insert(target, report);
+					previous = next;
+					batch = new ArrayList<KeyStoreSnapshot.Entry>(batchSize);
+				}
+			}
+			if(!batch.isEmpty()) {
+				Pending next = new Pending(pool, source, batch);
+				if(previous != null)
+					previous.insert(target, report);
+				previous = next;
+			}
+			if(previous != null)
+				previous.insert(target, report);
+		} finally {
+			pool.shutdownNow();
+		}
+		report.convertNanos = System.nanoTime() - start;
+		return report;
+	}
+
+	/**
+	 * Batch of entries whose keys are being recovered from the source
+	 */
+	private static class Pending {
+		private final Model source;
+		private final List<KeyStoreSnapshot.Entry> entries;
+		private final List<Future<Key>> keys;
+
+		Pending(ExecutorService pool, final Model source, List<KeyStoreSnapshot.Entry> entries) {
+			this.source = source;
+			this.entries = entries;
+			this.keys = new ArrayList<Future<Key>>(entries.size());
+			// Dans un lot de la source, le pool attendrait la fin du lot pour lire : les clés sont lues ici
+			boolean locked = source.isLockedByCurrentThread();
+			for(final KeyStoreSnapshot.Entry entry : entries) {
+				if(!entry.getType().isKey()) {
+					keys.add(null);
+					continue;
+				}
+				Callable<Key> recover = new Callable<Key>() {
+					public Key call() throws ModelException {
+						return source.recoverKey(entry.getAlias());
+					}
+				};
+				if(locked) {
+					FutureTask<Key> task = new FutureTask<Key>(recover);
+					task.run();
+					keys.add(task);
+				} else {
+					keys.add(pool.submit(recover));
+				}
+			}
+		}
+
+		/**
+		 * Add the entries to the target in one batch, once their keys are recovered
+		 */
+		void insert(Model target, final Report report) throws ModelException {
+			target.runBatch(new Model.Batch() {
+				public void run(Model model) throws ModelException {
+					for(int i = 0; i < entries.size(); i++) {
+						KeyStoreSnapshot.Entry entry = entries.get(i);
+						String alias = entry.getAlias();
+						try {
+							switch(entry.getType()) {
+							case CERTIFICATE:
+								model.addCertificate(alias, entry.getCertificate());
+								break;
+							case PRIVATE_KEY:
+								model.addPrivateKey(alias, get(keys.get(i)), source.getCertificateChain(alias));
+								break;
+							case SECRET_KEY:
+								model.addSecretKey(alias, (SecretKey) get(keys.get(i)));
+								break;
+							}
+							report.converted++;
+						} catch (ModelException e) {
+							report.errors.put(alias, e.getMessage());
+						}
+					}
+				}
+			});
+		}
+	}
+
+	private static Key get(Future<Key> future) throws ModelException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof ModelException)
+				throw (ModelException) e.getCause();
+			throw new ModelException("Erreur inattendue : "+e.getCause());
+		} catch (InterruptedException e) {
+			throw new ModelException("Conversion interrompue");
+		}
+	}
+
+	/**
+	 * Result of a conversion
+	 */
+	public static class Report {
+		private final KeyStoreFormat from;
+		private final KeyStoreFormat to;
+		private int converted;
+		private long loadNanos;
+		private long convertNanos;
+		private long storeNanos;
+		private final SortedMap<String, String> errors = new TreeMap<String, String>();
+
+		Report(KeyStoreFormat from, KeyStoreFormat to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		/**
+		 * @return the number of entries converted
+		 */
+		public int getConvertedCount() {
+			return converted;
+		}
+
+		/**
+		 * @return the error of each entry which was not converted, by alias
+		 */
+		public Map<String, String> getErrors() {
+			return Collections.unmodifiableMap(errors);
+		}
+
+		/**
+		 * @return the duration of the conversion of the entries, in milliseconds
+		 */
+		public long getElapsedMillis() {
+			return convertNanos / 1000000;
+		}
+
+		/**
+		 * @return the number of entries converted per second
+		 */
+		public double getThroughput() {
+			return convertNanos == 0 ? 0 : converted * 1e9 / convertNanos;
+		}
+
+		public String toString() {
+			return converted+" entrées converties de "+from+" en "+to+", "+errors.size()+" erreurs"
+					+(loadNanos == 0 ? "" : ", ouverture en "+loadNanos / 1000000+" ms")
+					+", conversion en "+getElapsedMillis()+" ms ("+Math.round(getThroughput())+" entrées/s)"
+					+(storeNanos == 0 ? "" : ", enregistrement en "+storeNanos / 1000000+" ms");
+		}
+	}
+}
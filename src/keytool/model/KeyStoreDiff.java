@@ -0,0 +1,325 @@
+package keytool.model;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Differences between two keystores, and merge of the second one into the first one.
+ * The entries of the two snapshots are walked together in the order of their aliases,
+ * so the comparison is linear in the number of entries. The certificates are compared by the
+ * SHA-256 fingerprints already in the indexes of the snapshots : no certificate is parsed again.
+ * The keys are recovered to be compared : a private key with the same certificate may still
+ * differ. Comparing a key costs the unprotection of both copies.
+ * @author Michaël Muré & Théophile Helleboid
+ *
+ */
+public class KeyStoreDiff {
+	/**
+	 * What to do with an entry which is in both keystores, but differs
+	 */
+	public enum ConflictPolicy {
+		/** Keep the entry of the first keystore */
+		KEEP,
+		/** Replace it with the entry of the second keystore */
+		REPLACE,
+		/** Keep it, and copy the entry of the second keystore under a new alias */
+		RENAME
+	}
+
+	private final Model base;
+	private final Model other;
+	private final List<String> added = new ArrayList<String>();
+	private final List<String> removed = new ArrayList<String>();
+	private final List<String> changed = new ArrayList<String>();
+	private int unchanged;
+	private long openNanos;
+	private long elapsedNanos;
+
+	private KeyStoreDiff(Model base, Model other) {
+		this.base = base;
+		this.other = other;
+	}
+
+	/**
+	 * Compare two keystores
+	 * @param base first keystore, which would receive a merge
+	 * @param other second keystore
+	 * @return the differences from the first keystore to the second one
+	 * @throws ModelException if a key cannot be recovered
+	 */
+	public static KeyStoreDiff compare(Model base, Model other) throws ModelException {
+		KeyStoreDiff diff = new KeyStoreDiff(base, other);
+		long start = System.nanoTime();
+		diff.compare(base.getSnapshot(), other.getSnapshot());
+		diff.elapsedNanos = System.nanoTime() - start;
+		return diff;
+	}
+
+	/**
+	 * Open two keystore files at the same time, each in its own thread, and compare them
+	 * @param basePath first keystore, which would receive a merge
+	 * @param basePassword of the first keystore
+	 * @param otherPath second keystore
+	 * @param otherPassword of the second keystore
+	 * @return the differences from the first keystore to the second one
+	 * @throws ModelException if a keystore cannot be opened
+	 */
+	public static KeyStoreDiff compareFiles(String basePath, char[] basePassword,
+			String otherPath, char[] otherPassword) throws ModelException {
+		long start = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(2, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "keystore-diff");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		Model base;
+		Model other;
+		try {
+			Future<Model> b = pool.submit(open(basePath, basePassword));
+			Future<Model> o = pool.submit(open(otherPath, otherPassword));
+			base = get(b);
+			other = get(o);
+		} finally {
+			pool.shutdownNow();
+		}
+		long opened = System.nanoTime();
+		KeyStoreDiff diff = compare(base, other);
+		diff.openNanos = opened - start;
+		return diff;
+	}
+
+	private static Callable<Model> open(final String path, final char[] password) {
+		return new Callable<Model>() {
+			public Model call() throws ModelException {
+				Model model = new Model();
+				model.openKeyStore(path, password);
+				return model;
+			}
+		};
+	}
+
+	private static Model get(Future<Model> future) throws ModelException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof ModelException)
+				throw (ModelException) e.getCause();
+			throw new ModelException("Erreur inattendue : "+e.getCause());
+		} catch (InterruptedException e) {
+			throw new ModelException("Ouverture interrompue");
+		}
+	}
+
+	/**
+	 * Walk the two snapshots together, in the order of the aliases
+	 */
+	private void compare(KeyStoreSnapshot from, KeyStoreSnapshot to) throws ModelException {
+		Iterator<KeyStoreSnapshot.Entry> before = from.iterator();
+		Iterator<KeyStoreSnapshot.Entry> after = to.iterator();
+		KeyStoreSnapshot.Entry a = before.hasNext() ? before.next() : null;
+		KeyStoreSnapshot.Entry b = after.hasNext() ? after.next() : null;
+		while(a != null || b != null) {
+			int c = a == null ? 1 : b == null ? -1 : a.getAlias().compareTo(b.getAlias());
+			if(c < 0) {
+				removed.add(a.getAlias());
+				a = before.hasNext() ? before.next() : null;
+			} else if(c > 0) {
+				added.add(b.getAlias());
+				b = after.hasNext() ? after.next() : null;
+			} else {
+				if(same(a, b))
+					unchanged++;
+				else
+					changed.add(a.getAlias());
+				a = before.hasNext() ? before.next() : null;
+				b = after.hasNext() ? after.next() : null;
+			}
+		}
+	}
+
+	/**
+	 * @return whether or not two entries with the same alias hold the same certificate or key
+	 */
+	private boolean same(KeyStoreSnapshot.Entry a, KeyStoreSnapshot.Entry b) throws ModelException {
+		if(a == b)
+			return true;
+		if(a.getType() != b.getType())
+			return false;
+		if(a.getType() != EntryType.SECRET_KEY) {
+			String fingerprint = a.getFingerprint();
+			if(fingerprint == null || !fingerprint.equals(b.getFingerprint()))
+				return false;
+			if(a.getType() == EntryType.CERTIFICATE)
+				return true;
+		}
+		// Le certificat ne garantit pas la clé privée : les clés sont comparées elles-mêmes
+		byte[] x = base.recoverKey(a.getAlias()).getEncoded();
+		byte[] y = other.recoverKey(b.getAlias()).getEncoded();
+		return x != null && MessageDigest.isEqual(x, y);
+	}
+
+	/**
+	 * Copy the entries of the second keystore into the first one, in one batch.
+	 * The entries only in the second keystore are added, the entries which differ follow the
+	 * policy, and the entries only in the first keystore are kept. The keys are protected with
+	 * the password of the first keystore. Saving the first keystore is left to the caller.
+	 * @param policy for the entries in both keystores which differ
+	 * @return the report of the merge
+	 * @throws ModelException
+	 */
+	public Report merge(final ConflictPolicy policy) throws ModelException {
+		final Report report = new Report();
+		long start = System.nanoTime();
+		base.runBatch(new Model.Batch() {
+			public void run(Model model) throws ModelException {
+				for(String alias : added)
+					copy(model, alias, alias, report);
+				for(String alias : changed) {
+					if(policy == ConflictPolicy.KEEP)
+						report.kept++;
+					else if(policy == ConflictPolicy.REPLACE)
+						copy(model, alias, alias, report);
+					else
+						copy(model, alias, freeAlias(model, alias), report);
+				}
+			}
+		});
+		report.elapsedNanos = System.nanoTime() - start;
+		return report;
+	}
+
+	private void copy(Model model, String alias, String target, Report report) {
+		try {
+			model.copyEntry(other, alias, target);
+			report.copied++;
+		} catch (ModelException e) {
+			report.errors.put(alias, e.getMessage());
+		}
+	}
+
+	/**
+	 * Called in the batch, under the lock of the model.
+	 * @return the alias with the first numeric suffix free in the model
+	 */
+	private static String freeAlias(Model model, String alias) {
+		for(int i = 2; ; i++) {
+			if(model.getEntryType(alias+"-"+i) == null)
+				return alias+"-"+i;
+		}
+	}
+
+	/**
+	 * @return the aliases of the entries only in the second keystore
+	 */
+	public List<String> getAdded() {
+		return Collections.unmodifiableList(added);
+	}
+
+	/**
+	 * @return the aliases of the entries only in the first keystore
+	 */
+	public List<String> getRemoved() {
+		return Collections.unmodifiableList(removed);
+	}
+
+	/**
+	 * @return the aliases of the entries in both keystores, with a different type, certificate or key
+	 */
+	public List<String> getChanged() {
+		return Collections.unmodifiableList(changed);
+	}
+
+	/**
+	 * @return the number of entries identical in both keystores
+	 */
+	public int getUnchangedCount() {
+		return unchanged;
+	}
+
+	/**
+	 * @return whether or not the keystores hold the same entries
+	 */
+	public boolean isEmpty() {
+		return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+	}
+
+	/**
+	 * @return the duration of the opening of the files, in milliseconds, 0 if they were already open
+	 */
+	public long getOpenMillis() {
+		return openNanos / 1000000;
+	}
+
+	/**
+	 * @return the duration of the comparison, in milliseconds
+	 */
+	public long getElapsedMillis() {
+		return elapsedNanos / 1000000;
+	}
+
+	public String toString() {
+		return added.size()+" ajoutées, "+removed.size()+" supprimées, "+changed.size()+" modifiées, "
+				+unchanged+" identiques, comparées en "+getElapsedMillis()+" ms"
+				+(openNanos == 0 ? "" : " (ouvertures en "+getOpenMillis()+" ms)");
+	}
+
+	/**
+	 * Result of a merge
+	 */
+	public static class Report {
+		private int copied;
+		private int kept;
+		private long elapsedNanos;
+		private final SortedMap<String, String> errors = new TreeMap<String, String>();
+
+		Report() {
+		}
+
+		/**
+		 * @return the number of entries copied from the second keystore
+		 */
+		public int getCopiedCount() {
+			return copied;
+		}
+
+		/**
+		 * @return the number of entries of the first keystore kept despite a difference
+		 */
+		public int getKeptCount() {
+			return kept;
+		}
+
+		/**
+		 * @return the error of each entry which could not be copied, by alias
+		 */
+		public Map<String, String> getErrors() {
+			return Collections.unmodifiableMap(errors);
+		}
+
+		/**
+		 * @return the duration of the merge, in milliseconds
+		 */
+		public long getElapsedMillis() {
+			return elapsedNanos / 1000000;
+		}
+
+		public String toString() {
+			return copied+" entrées copiées, "+kept+" conservées, "+errors.size()+" erreurs, en "
+					+getElapsedMillis()+" ms";
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package keytool.model;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchProviderException;
+
+/**
+ * Formats of the keystore files the Keytool can open and save.
+ * JCEKS, JKS and PKCS12 come with the runtime, BKS with BouncyCastle.
+ * The format of a file is recognized by its first bytes, see {@link #detect(File)}.
+ * @author Michaël Muré & Théophile Helleboid
+ *
+ */
+public enum KeyStoreFormat {
+	JCEKS("JCEKS", null, true, false),
+	JKS("JKS", null, false, false),
+	PKCS12("PKCS12", null, true, false),
+	BKS("BKS", "BC", true, true);
+
+	/** Format of the keystores created when none is chosen */
+	public static final KeyStoreFormat DEFAULT = JCEKS;
+
+	/* Premiers octets des fichiers JKS et JCEKS */
+	private static final int JKS_MAGIC = 0xFEEDFEED;
+	private static final int JCEKS_MAGIC = 0xCECECECE;
+
+	private final String type;
+	private final String provider;
+	private final boolean secretKeys;
+	private final boolean caseSensitive;
+
+	private KeyStoreFormat(String type, String provider, boolean secretKeys, boolean caseSensitive) {
+		this.type = type;
+		this.provider = provider;
+		this.secretKeys = secretKeys;
+		this.caseSensitive = caseSensitive;
+	}
+
+	/**
+	 * @param name of the format, like "pkcs12", case insensitive
+	 * @return the format
+	 * @throws ModelException if the Keytool does not know this format
+	 */
+	public static KeyStoreFormat of(String name) throws ModelException {
+		for(KeyStoreFormat f : values()) {
+			if(f.type.equalsIgnoreCase(name))
+				return f;
+		}
+		throw new ModelException("Format de keystore non supporté : "+name);
+	}
+
+	/**
+	 * Recognize the format of a keystore file by its first bytes
+	 * @param file of the keystore
+	 * @return the format of the file
+	 * @throws ModelException if the file cannot be read, or is not a known keystore
+	 */
+	public static KeyStoreFormat detect(File file) throws ModelException {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(file));
+			int magic = in.readInt();
+			if(magic == JCEKS_MAGIC)
+				return JCEKS;
+			if(magic == JKS_MAGIC)
+				return JKS;
+			// Un PKCS#12 est une SEQUENCE DER, un BKS commence par sa version (1 ou 2)
+			if((magic >>> 24) == 0x30)
+				return PKCS12;
+			if(magic == 1 || magic == 2)
+				return BKS;
+		} catch (IOException e) {
+			throw new ModelException("Impossible de lire le keystore "+file.getPath()+" : "+e.getMessage());
+		} finally {
+			Model.closeQuietly(in);
+		}
+		throw new ModelException("Format de keystore inconnu : "+file.getPath());
+	}
+
+	/**
+	 * @return a keystore of this format, not loaded
+	 * @throws ModelException if the provider of the format is not installed
+	 */
+	KeyStore newKeyStore() throws ModelException {
+		try {
+			return provider == null ? KeyStore.getInstance(type) : KeyStore.getInstance(type, provider);
+		} catch (KeyStoreException e) {
+			throw new ModelException("Format de keystore non disponible : "+type+" : "+e.getMessage());
+		} catch (NoSuchProviderException e) {
+			throw new ModelException("Format de keystore non disponible : "+type+" : "+e.getMessage());
+		}
+	}
+
+	/**
+	 * @return whether or not a keystore of this format can hold secret keys
+	 */
+	public boolean supportsSecretKeys() {
+		return secretKeys;
+	}
+
+	/**
+	 * @return whether or not the aliases of this format are case sensitive ;
+	 * the Keytool always writes them in lower case
+	 */
+	boolean isCaseSensitive() {
+		return caseSensitive;
+	}
+
+	/**
+	 * @return the type of the keystores, as given to {@link KeyStore#getInstance(String)}
+	 */
+	public String getType() {
+		return type;
+	}
+}
@@ -0,0 +1,381 @@
+package keytool.model;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the modifications of a keystore file.
+ * The journal is kept next to the keystore, in the file path+".journal".
+ * Each modification is appended as a record, and the records are forced to the disk
+ * by group commits : a thread which syncs the journal also makes durable the records
+ * appended meanwhile by the other threads.
+ *
+ * The keys are never written in clear : a key record holds a small JCEKS keystore
+ * containing only this entry, protected by the password of the keystore.
+ *
+ * A record is : int length, byte[length] payload, long CRC32 of the payload.
+ * The payload is : byte operation, UTF alias, and the data of the operation.
+ * @author Michaël Muré & Théophile Helleboid
+ *
+ */
+class KeyStoreJournal {
+	/** Suffix of the journal file */
+	static final String SUFFIX = ".journal";
+
+	private static final byte OP_CERTIFICATE = 1;
+	private static final byte OP_KEY = 2;
+	private static final byte OP_DELETE = 3;
+
+	private final Model model;
+	private final File file;
+	private final long threshold;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private final ExecutorService compactor;
+	private long written;
+	private long synced;
+	private boolean syncing;
+	private boolean compacting;
+	private boolean closed;
+
+	/**
+	 * Open the journal of a keystore file, at its end
+	 * @param model journaled
+	 * @param path of the keystore file
+	 * @param threshold size of the journal which triggers a compaction
+	 * @throws IOException
+	 */
+	KeyStoreJournal(Model model, String path, long threshold) throws IOException {
+		this.model = model;
+		this.file = fileFor(path);
+		this.threshold = threshold;
+		this.raf = new RandomAccessFile(this.file, "rw");
+		this.channel = raf.getChannel();
+		this.written = channel.size();
+		this.synced = this.written;
+		this.channel.position(this.written);
+		this.compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "keystore-journal-compaction");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * @param path of a keystore file
+	 * @return the journal file of this keystore
+	 */
+	static File fileFor(String path) {
+		return new File(path + SUFFIX);
+	}
+
+	/**
+	 * Build the record of a certificate entry
+	 * @param alias of the entry
+	 * @param certificate of the entry
+	 * @return the record to append
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	static byte[] certificateRecord(String alias, Certificate certificate) throws IOException, GeneralSecurityException {
+		ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bOut);
+		out.writeByte(OP_CERTIFICATE);
+		out.writeUTF(alias);
+		out.write(certificate.getEncoded());
+		out.close();
+		return bOut.toByteArray();
+	}
+
+	/**
+	 * Build the record of a key entry, protected by the password.
+	 * Protecting the key is expensive : the record is built out of the lock of the model.
+	 * @param alias of the entry
+	 * @param key of the entry
+	 * @param chain certificate chain of a private key, null for a secret key
+	 * @param password protecting the key
+	 * @return the record to append
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	static byte[] keyRecord(String alias, Key key, Certificate[] chain, char[] password) throws IOException, GeneralSecurityException {
+		KeyStore single = KeyStore.getInstance("JCEKS");
+		single.load(null, password);
+		single.setKeyEntry(alias, key, password, chain);
+
+		ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bOut);
+		out.writeByte(OP_KEY);
+		out.writeUTF(alias);
+		single.store(out, password);
+		out.close();
+		return bOut.toByteArray();
+	}
+
+	/**
+	 * Build the record of a deletion
+	 * @param alias of the deleted entry
+	 * @return the record to append
+	 * @throws IOException
+	 */
+	static byte[] deleteRecord(String alias) throws IOException {
+		ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bOut);
+		out.writeByte(OP_DELETE);
+		out.writeUTF(alias);
+		out.close();
+		return bOut.toByteArray();
+	}
+
+	/**
+	 * Append a record at the end of the journal
+	 * @param payload record built by one of the *Record methods
+	 * @return the position to commit
+	 * @throws IOException
+	 */
+	synchronized long append(byte[] payload) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteBuffer record = ByteBuffer.allocate(4 + payload.length + 8);
+		record.putInt(payload.length).put(payload).putLong(crc.getValue());
+		record.flip();
+		while(record.hasRemaining())
+			channel.write(record);
+		written += record.limit();
+		return written;
+	}
+
+	/**
+	 * Make the journal durable up to a position.
+	 * If another thread is syncing, wait for it : its sync may cover this position.
+	 * @param position returned by an append
+	 * @throws IOException
+	 */
+	void commit(long position) throws IOException {
+		long target;
+		FileChannel ch;
+		synchronized(this) {
+			while(synced < position && syncing) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Synchronisation du journal interrompue");
+				}
+			}
+			if(synced >= position)
+				return;
+			syncing = true;
+			target = written;
+			ch = channel;
+		}
+		boolean done = false;
+		try {
+			ch.force(false);
+			done = true;
+		} catch (ClosedChannelException e) {
+			// Le journal a été remplacé par discard() ou fermé par close(), qui ont forcé ses enregistrements
+			synchronized(this) {
+				if(ch == channel && !closed)
+					throw e;
+			}
+			return;
+		} finally {
+			synchronized(this) {
+				syncing = false;
+				if(done && target > synced)
+					synced = target;
+				notifyAll();
+			}
+		}
+		if(target > threshold)
+			compactInBackground();
+	}
+
+	/**
+	 * Fold the journal into a new keystore file, in the background
+	 */
+	private void compactInBackground() {
+		synchronized(this) {
+			if(compacting)
+				return;
+			compacting = true;
+		}
+		compactor.execute(new Runnable() {
+			public void run() {
+				try {
+					// La sauvegarde complète vide le journal
+					model.save();
+				} catch (ModelException e) {
+					System.err.println("Échec du compactage du journal : "+e.getMessage());
+				} finally {
+					synchronized(KeyStoreJournal.this) {
+						compacting = false;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Remove the beginning of the journal, once its records are in the keystore file.
+	 * The records appended after the mark are kept : they are copied into a new journal
+	 * file which replaces the old one atomically.
+	 * @param mark size of the journal when the keystore was copied for the save
+	 * @throws IOException
+	 */
+	synchronized void discard(long mark) throws IOException {
+		long tail = written - mark;
+		if(tail == 0) {
+			channel.truncate(0);
+			channel.position(0);
+			channel.force(true);
+		} else {
+			ByteBuffer records = ByteBuffer.allocate((int) tail);
+			while(records.hasRemaining())
+				channel.read(records, mark + records.position());
+			records.flip();
+
+			File tmp = new File(file.getPath() + ".tmp");
+			RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+			try {
+				out.setLength(0);
+				while(records.hasRemaining())
+					out.getChannel().write(records);
+				out.getChannel().force(true);
+			} finally {
+				out.close();
+			}
+			raf.close();
+			if(!tmp.renameTo(file)) {
+				if(!file.delete() || !tmp.renameTo(file))
+					throw new IOException("Impossible de remplacer "+file.getPath());
+			}
+			raf = new RandomAccessFile(file, "rw");
+			channel = raf.getChannel();
+			channel.position(tail);
+		}
+		written = tail;
+		synced = tail;
+	}
+
+	/**
+	 * @return the size of the journal, in bytes
+	 */
+	synchronized long size() {
+		return written;
+	}
+
+	/**
+	 * Close the journal file, after forcing the records not yet committed
+	 */
+	synchronized void close() {
+		compactor.shutdown();
+		closed = true;
+		try {
+			channel.force(false);
+		} catch (IOException e) {
+			System.err.println("Échec de la synchronisation du journal : "+e.getMessage());
+		}
+		Model.closeQuietly(raf);
+	}
+
+	/**
+	 * Apply the journal of a keystore file to the loaded keystore.
+	 * A truncated or corrupted record, left by a crash during an append, ends the journal :
+	 * it is removed from the file.
+	 * @param keystore loaded from the file
+	 * @param password of the keystore
+	 * @param path of the keystore file
+	 * @return the number of records applied
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	static int replay(KeyStore keystore, char[] password, String path) throws IOException, GeneralSecurityException {
+		File file = fileFor(path);
+		if(!file.exists())
+			return 0;
+		int count = 0;
+		long valid = 0;
+		CertificateFactory factory = CertificateFactory.getInstance("X.509");
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			while(true) {
+				byte[] payload;
+				try {
+					int length = in.readInt();
+					if(length <= 0 || length > file.length())
+						break;
+					payload = new byte[length];
+					in.readFully(payload);
+					CRC32 crc = new CRC32();
+					crc.update(payload);
+					if(in.readLong() != crc.getValue())
+						break;
+				} catch (EOFException e) {
+					break;
+				}
+				apply(keystore, password, factory, payload);
+				valid += 4 + payload.length + 8;
+				count++;
+			}
+		} finally {
+			in.close();
+		}
+		if(valid < file.length()) {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(valid);
+			} finally {
+				raf.close();
+			}
+		}
+		return count;
+	}
+
+	private static void apply(KeyStore keystore, char[] password, CertificateFactory factory, byte[] payload)
+			throws IOException, GeneralSecurityException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		byte op = in.readByte();
+		String alias = in.readUTF();
+		switch(op) {
+		case OP_CERTIFICATE:
+			keystore.setCertificateEntry(alias, factory.generateCertificate(in));
+			break;
+		case OP_KEY:
+			KeyStore single = KeyStore.getInstance("JCEKS");
+			single.load(in, password);
+			// Une clé secrète est reprotégée par le mot de passe du keystore
+			keystore.setKeyEntry(alias, single.getKey(alias, password), password, single.getCertificateChain(alias));
+			break;
+		case OP_DELETE:
+			if(keystore.containsAlias(alias))
+				keystore.deleteEntry(alias);
+			break;
+		default:
+			throw new IOException("Enregistrement du journal inconnu : "+op);
+		}
+	}
+}
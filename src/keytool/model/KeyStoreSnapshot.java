@@ -0,0 +1,426 @@
+package keytool.model;
+
+import java.math.BigInteger;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Immutable view of the entries of a keystore.
+ * The Model publishes a new snapshot after each modification, or after a whole batch
+ * of modifications, so a snapshot can be read without any lock and never shows a
+ * half-applied change. Two successive snapshots share all their unchanged entries.
+ * The keys themselves are not in the snapshot : they stay protected in the keystore.
+ *
+ * The certificates are also indexed by subject, issuer, key identifiers, issuer and serial
+ * number, and fingerprint. The indexes are persistent maps too, updated with the entries,
+ * so a lookup costs O(log n) on any snapshot instead of parsing every certificate.
+ * The X.509 certificates are also ordered by expiry date, for range queries in O(log n + k).
+ * @author Michaël Muré & Théophile Helleboid
+ *
+ */
+public final class KeyStoreSnapshot implements Iterable<KeyStoreSnapshot.Entry> {
+	static final KeyStoreSnapshot EMPTY = new KeyStoreSnapshot(PersistentSortedMap.<Entry>empty(),
+			PersistentSortedMap.<Entry>empty(), PersistentSortedMap.<Entry>empty(),
+			PersistentSortedMap.<PersistentSortedMap<Entry>>empty());
+
+	/* Préfixes des clés des index secondaires, tous dans le même arbre */
+	static final char SUBJECT = 's';
+	static final char ISSUER = 'i';
+	static final char KEY_ID = 'k';
+	static final char AUTHORITY_KEY_ID = 'a';
+	static final char ISSUER_SERIAL = 'n';
+	static final char FINGERPRINT = 'f';
+	static final char EXPIRY = 'e';
+
+	/* Indexé par alias en minuscules, comme les alias JCEKS */
+	private final PersistentSortedMap<Entry> entries;
+	/* Les entrées des deux listes de la fenêtre principale */
+	private final PersistentSortedMap<Entry> keys;
+	private final PersistentSortedMap<Entry> certificates;
+	/* Clé d'index préfixée, puis entrées par alias */
+	private final PersistentSortedMap<PersistentSortedMap<Entry>> indexes;
+
+	private KeyStoreSnapshot(PersistentSortedMap<Entry> entries, PersistentSortedMap<Entry> keys,
+			PersistentSortedMap<Entry> certificates, PersistentSortedMap<PersistentSortedMap<Entry>> indexes) {
+		this.entries = entries;
+		this.keys = keys;
+		this.certificates = certificates;
+		this.indexes = indexes;
+	}
+
+	/**
+	 * @param alias of the entry, case insensitive
+	 * @return the entry, or null if there is no such entry
+	 */
+	public Entry get(String alias) {
+		return entries.get(Model.indexKey(alias));
+	}
+
+	/**
+	 * @param alias of the entry, case insensitive
+	 * @return whether or not there is such an entry
+	 */
+	public boolean contains(String alias) {
+		return get(alias) != null;
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the aliases, in alphabetical order
+	 */
+	public List<String> aliases() {
+		List<String> aliases = new ArrayList<String>(size());
+		for(Map.Entry<String, Entry> e : entries)
+			aliases.add(e.getKey());
+		return aliases;
+	}
+
+	/**
+	 * @return the entries listed with the keys : private and secret keys, in the order of their aliases
+	 */
+	public EntryList keys() {
+		return new EntryList(keys);
+	}
+
+	/**
+	 * @return the entries listed with the certificates : trusted certificates and private keys
+	 */
+	public EntryList certificates() {
+		return new EntryList(certificates);
+	}
+
+	/**
+	 * @param subject distinguished name of the owner
+	 * @return the entries whose certificate has this subject, in the order of their aliases
+	 */
+	public List<Entry> findBySubject(X500Principal subject) {
+		return find(SUBJECT, CertificateIds.name(subject));
+	}
+
+	/**
+	 * @param issuer distinguished name of the issuer
+	 * @return the entries whose certificate has this issuer
+	 */
+	public List<Entry> findByIssuer(X500Principal issuer) {
+		return find(ISSUER, CertificateIds.name(issuer));
+	}
+
+	/**
+	 * @param keyId subject key identifier
+	 * @return the entries whose certificate has this key identifier
+	 */
+	public List<Entry> findBySubjectKeyId(byte[] keyId) {
+		return find(KEY_ID, CertificateIds.hex(keyId));
+	}
+
+	/**
+	 * @param keyId authority key identifier
+	 * @return the entries whose certificate is issued by the key with this identifier
+	 */
+	public List<Entry> findByAuthorityKeyId(byte[] keyId) {
+		return find(AUTHORITY_KEY_ID, CertificateIds.hex(keyId));
+	}
+
+	/**
+	 * @param issuer distinguished name of the issuer
+	 * @param serial number of the certificate
+	 * @return the entries with this certificate, or with a certificate reusing its serial number
+	 */
+	public List<Entry> findByIssuerAndSerial(X500Principal issuer, BigInteger serial) {
+		return find(ISSUER_SERIAL, CertificateIds.issuerSerial(issuer, serial));
+	}
+
+	/**
+	 * @param sha256 SHA-256 fingerprint of the certificate
+	 * @return the entries holding this certificate
+	 */
+	public List<Entry> findByFingerprint(byte[] sha256) {
+		return find(FINGERPRINT, CertificateIds.hex(sha256));
+	}
+
+	/**
+	 * Find the certificates held by several entries. The fingerprints are those of the index :
+	 * no certificate is parsed or hashed again.
+	 * @return the entries of each certificate held more than once, by SHA-256 fingerprint in hexadecimal
+	 */
+	public Map<String, List<Entry>> findDuplicates() {
+		Map<String, List<Entry>> duplicates = new LinkedHashMap<String, List<Entry>>();
+		Iterator<Map.Entry<String, PersistentSortedMap<Entry>>> it = indexes.iterator(String.valueOf(FINGERPRINT));
+		while(it.hasNext()) {
+			Map.Entry<String, PersistentSortedMap<Entry>> e = it.next();
+			if(e.getKey().charAt(0) != FINGERPRINT)
+				break;
+			if(e.getValue().size() < 2)
+				continue;
+			List<Entry> list = new ArrayList<Entry>(e.getValue().size());
+			for(Map.Entry<String, Entry> found : e.getValue())
+				list.add(found.getValue());
+			duplicates.put(e.getKey().substring(1), list);
+		}
+		return duplicates;
+	}
+
+	/**
+	 * @param from start of the period, in milliseconds since the epoch, included
+	 * @param to end of the period, excluded
+	 * @return the entries whose certificate expires during the period,
+	 * in the order of their expiry dates, then of their aliases
+	 */
+	public List<Entry> findExpiring(long from, long to) {
+		List<Entry> list = new ArrayList<Entry>();
+		if(from >= to)
+			return list;
+		String last = EXPIRY + CertificateIds.time(to);
+		Iterator<Map.Entry<String, PersistentSortedMap<Entry>>> it = indexes.iterator(EXPIRY + CertificateIds.time(from));
+		while(it.hasNext()) {
+			Map.Entry<String, PersistentSortedMap<Entry>> e = it.next();
+			// Les clés des autres index suivent celles des dates : elles arrêtent aussi le parcours
+			if(e.getKey().compareTo(last) >= 0)
+				break;
+			for(Map.Entry<String, Entry> found : e.getValue())
+				list.add(found.getValue());
+		}
+		return list;
+	}
+
+	/**
+	 * @param time in milliseconds since the epoch
+	 * @return the entries whose certificate expires before this time, expired ones first
+	 */
+	public List<Entry> findExpiringBefore(long time) {
+		return findExpiring(Long.MIN_VALUE, time);
+	}
+
+	/**
+	 * @param index prefix of the index
+	 * @param value key in the index, as written by {@link CertificateIds}
+	 * @return the entries, in the order of their aliases
+	 */
+	List<Entry> find(char index, String value) {
+		PersistentSortedMap<Entry> found = indexes.get(index + value);
+		if(found == null)
+			return Collections.emptyList();
+		List<Entry> list = new ArrayList<Entry>(found.size());
+		for(Map.Entry<String, Entry> e : found)
+			list.add(e.getValue());
+		return list;
+	}
+
+	/**
+	 * Iterate over the entries, in the alphabetical order of their aliases
+	 */
+	public Iterator<Entry> iterator() {
+		final Iterator<Map.Entry<String, Entry>> it = entries.iterator();
+		return new Iterator<Entry>() {
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			public Entry next() {
+				return it.next().getValue();
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * @param entry to add or replace
+	 * @return the snapshot with this entry
+	 */
+	KeyStoreSnapshot with(Entry entry) {
+		PersistentSortedMap<PersistentSortedMap<Entry>> i = indexes;
+		Entry old = entries.get(entry.getAlias());
+		if(old != null) {
+			for(String key : old.indexKeys)
+				i = unindex(i, key, old.getAlias());
+		}
+		for(String key : entry.indexKeys) {
+			PersistentSortedMap<Entry> found = i.get(key);
+			i = i.put(key, (found == null ? PersistentSortedMap.<Entry>empty() : found).put(entry.getAlias(), entry));
+		}
+		String alias = entry.getAlias();
+		EntryType type = entry.getType();
+		return new KeyStoreSnapshot(entries.put(alias, entry),
+				type.isKey() ? keys.put(alias, entry) : keys.remove(alias),
+				type.hasCertificate() ? certificates.put(alias, entry) : certificates.remove(alias), i);
+	}
+
+	/**
+	 * @param alias of the entry to remove
+	 * @return the snapshot without this entry
+	 */
+	KeyStoreSnapshot without(String alias) {
+		Entry old = entries.get(Model.indexKey(alias));
+		if(old == null)
+			return this;
+		PersistentSortedMap<PersistentSortedMap<Entry>> i = indexes;
+		for(String key : old.indexKeys)
+			i = unindex(i, key, old.getAlias());
+		return new KeyStoreSnapshot(entries.remove(old.getAlias()), keys.remove(old.getAlias()),
+				certificates.remove(old.getAlias()), i);
+	}
+
+	private static PersistentSortedMap<PersistentSortedMap<Entry>> unindex(PersistentSortedMap<PersistentSortedMap<Entry>> indexes,
+			String key, String alias) {
+		PersistentSortedMap<Entry> found = indexes.get(key);
+		if(found == null)
+			return indexes;
+		found = found.remove(alias);
+		return found.size() == 0 ? indexes.remove(key) : indexes.put(key, found);
+	}
+
+	/**
+	 * Read-only list of entries, in the order of their aliases, with positional access in O(log n).
+	 * It shares the tree of the snapshot : building it costs nothing.
+	 */
+	public static final class EntryList extends AbstractList<Entry> implements RandomAccess {
+		private final PersistentSortedMap<Entry> entries;
+
+		private EntryList(PersistentSortedMap<Entry> entries) {
+			this.entries = entries;
+		}
+
+		public Entry get(int index) {
+			return entries.getAt(index).getValue();
+		}
+
+		public int size() {
+			return entries.size();
+		}
+
+		/**
+		 * @param alias of an entry, case insensitive
+		 * @return the position of the entry, or -1 if it is not in the list
+		 */
+		public int indexOf(String alias) {
+			int index = entries.rank(Model.indexKey(alias));
+			return index < 0 ? -1 : index;
+		}
+
+		/**
+		 * @param other list
+		 * @return whether or not the two lists are the same tree, so have the same entries
+		 */
+		public boolean isSameAs(EntryList other) {
+			return other != null && other.entries == entries;
+		}
+
+		public Iterator<Entry> iterator() {
+			// Parcours en O(n), plutôt que get() en O(log n) à chaque élément
+			final Iterator<Map.Entry<String, Entry>> it = entries.iterator();
+			return new Iterator<Entry>() {
+				public boolean hasNext() {
+					return it.hasNext();
+				}
+
+				public Entry next() {
+					return it.next().getValue();
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+
+	/**
+	 * An entry of the keystore, as seen in a snapshot
+	 */
+	public static final class Entry {
+		private final String alias;
+		private final EntryType type;
+		private final Certificate certificate;
+		/* Clés de l'entrée dans les index secondaires, calculées une fois */
+		final String[] indexKeys;
+
+		Entry(String alias, EntryType type, Certificate certificate) {
+			this.alias = Model.indexKey(alias);
+			this.type = type;
+			this.certificate = certificate;
+			this.indexKeys = indexKeys(certificate);
+		}
+
+		private static String[] indexKeys(Certificate certificate) {
+			List<String> keys = new ArrayList<String>(7);
+			if(certificate != null) {
+				String fingerprint = CertificateIds.fingerprint(certificate);
+				if(fingerprint != null)
+					keys.add(FINGERPRINT + fingerprint);
+			}
+			if(certificate instanceof X509Certificate) {
+				X509Certificate x509 = (X509Certificate) certificate;
+				keys.add(SUBJECT + CertificateIds.name(x509.getSubjectX500Principal()));
+				keys.add(ISSUER + CertificateIds.name(x509.getIssuerX500Principal()));
+				keys.add(ISSUER_SERIAL + CertificateIds.issuerSerial(x509.getIssuerX500Principal(), x509.getSerialNumber()));
+				String keyId = CertificateIds.subjectKeyId(x509);
+				if(keyId != null)
+					keys.add(KEY_ID + keyId);
+				String authorityKeyId = CertificateIds.authorityKeyId(x509);
+				if(authorityKeyId != null)
+					keys.add(AUTHORITY_KEY_ID + authorityKeyId);
+				keys.add(EXPIRY + CertificateIds.time(x509.getNotAfter().getTime()));
+			}
+			return keys.toArray(new String[keys.size()]);
+		}
+
+		/**
+		 * @return the alias, in lower case
+		 */
+		public String getAlias() {
+			return alias;
+		}
+
+		/**
+		 * @return the type of the entry
+		 */
+		public EntryType getType() {
+			return type;
+		}
+
+		/**
+		 * @return the trusted certificate, or the certificate of a private key, null for a secret key
+		 */
+		public Certificate getCertificate() {
+			return certificate;
+		}
+
+		/**
+		 * @return the SHA-256 fingerprint of the certificate in hexadecimal, as in the index, or null
+		 */
+		String getFingerprint() {
+			for(String key : indexKeys) {
+				if(key.charAt(0) == FINGERPRINT)
+					return key.substring(1);
+			}
+			return null;
+		}
+
+		/**
+		 * @return the end of validity of the certificate, null if it is not an X.509 certificate
+		 */
+		public Date getNotAfter() {
+			return certificate instanceof X509Certificate ? ((X509Certificate) certificate).getNotAfter() : null;
+		}
+	}
+}
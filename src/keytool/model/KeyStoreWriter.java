@@ -0,0 +1,180 @@
+package keytool.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Atomic writing of a keystore file.
+ * The keystore is written to a temporary file in the same directory, readable by its owner
+ * only, forced to the disk, and then renamed over the target, so the previous file stays intact
+ * until the new one is complete. The directory is not forced to the disk : after a crash right
+ * after a save, the file may be the previous one, but never a partial one.
+ *
+ * With the write-behind mode, the saves requested by a burst of modifications
+ * are coalesced into a single save done by a background thread.
+ * @author Michaël Muré & Théophile Helleboid
+ *
+ */
+class KeyStoreWriter {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Model model;
+	private final long delayMillis;
+	private final ScheduledExecutorService executor;
+	private boolean pending;
+	private boolean running;
+	private ModelException error;
+
+	/**
+	 * Create a write-behind writer for a model
+	 * @param model to save
+	 * @param delayMillis delay between the first modification and the save
+	 */
+	KeyStoreWriter(Model model, long delayMillis) {
+		this.model = model;
+		this.delayMillis = delayMillis;
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "keystore-write-behind");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Ask for a background save. Does nothing if a save is already waiting.
+	 */
+	synchronized void schedule() {
+		if(pending)
+			return;
+		pending = true;
+		executor.schedule(new Runnable() {
+			public void run() {
+				synchronized(KeyStoreWriter.this) {
+					// Les modifications suivantes demanderont une nouvelle sauvegarde
+					pending = false;
+					running = true;
+				}
+				try {
+					model.save();
+				} catch (ModelException e) {
+					System.err.println("Échec de la sauvegarde en arrière-plan : "+e.getMessage());
+					synchronized(KeyStoreWriter.this) {
+						error = e;
+					}
+				} finally {
+					synchronized(KeyStoreWriter.this) {
+						running = false;
+						KeyStoreWriter.this.notifyAll();
+					}
+				}
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Wait for the end of the background save.
+	 * @param runPending whether a waiting save is done now or dropped
+	 * @throws ModelException if the last background save failed
+	 */
+	void flush(boolean runPending) throws ModelException {
+		boolean save;
+		synchronized(this) {
+			while(running) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new ModelException("Attente de la sauvegarde interrompue");
+				}
+			}
+			save = pending && runPending;
+			if(error != null) {
+				ModelException e = error;
+				error = null;
+				throw e;
+			}
+		}
+		if(save)
+			model.save();
+	}
+
+	/**
+	 * Stop the background thread, after the end of the current save
+	 */
+	void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Serialize a keystore in memory
+	 * @param keystore to serialize
+	 * @param password protecting the keystore
+	 * @return the content of the keystore file
+	 * @throws IOException
+	 * @throws KeyStoreException
+	 * @throws NoSuchAlgorithmException
+	 * @throws CertificateException
+	 */
+	static ByteArrayOutputStream serialize(KeyStore keystore, char[] password)
+			throws IOException, KeyStoreException, NoSuchAlgorithmException, CertificateException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream(BUFFER_SIZE);
+		keystore.store(data, password);
+		return data;
+	}
+
+	/**
+	 * Write the content of a keystore file, atomically.
+	 * The new file is readable and writable by its owner only, whatever the umask and the
+	 * permissions of the previous file.
+	 * @param data content of the file
+	 * @param target file
+	 * @throws IOException
+	 */
+	static void writeAtomically(ByteArrayOutputStream data, File target) throws IOException {
+		File dir = target.getAbsoluteFile().getParentFile();
+		File tmp = File.createTempFile("."+target.getName()+"-", ".tmp", dir);
+		try {
+			ownerOnly(tmp);
+			FileOutputStream fos = new FileOutputStream(tmp);
+			try {
+				data.writeTo(fos);
+				fos.getChannel().force(true);
+			} finally {
+				fos.close();
+			}
+			if(!tmp.renameTo(target)) {
+				// Windows ne remplace pas un fichier existant : le remplacement n'y est pas atomique
+				if(!target.delete() || !tmp.renameTo(target))
+					throw new IOException("Impossible de remplacer "+target.getPath());
+			}
+		} finally {
+			if(tmp.exists())
+				tmp.delete();
+		}
+	}
+
+	/**
+	 * Restrict the permissions of a file to its owner, before writing keys into it
+	 * @param file to restrict
+	 */
+	private static void ownerOnly(File file) {
+		// Sans permissions POSIX (Windows), ces appels échouent et le fichier garde les droits du dossier
+		file.setExecutable(false, false);
+		file.setWritable(false, false);
+		file.setReadable(false, false);
+		file.setReadable(true, true);
+		file.setWritable(true, true);
+	}
+}
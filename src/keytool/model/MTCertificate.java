@@ -8,25 +8,18 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
-import java.math.BigInteger;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
-import java.security.SecureRandom;
 import java.security.SignatureException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
-import java.util.Date;
-
-import javax.security.auth.x500.X500Principal;
 
 import org.bouncycastle.openssl.PEMWriter;
-import org.bouncycastle.x509.X509V3CertificateGenerator;
 
 /**
  * Certificate encapsulation
@@ -117,27 +110,16 @@ public class MTCertificate {
 	 */
 	public MTCertificate(String subject, String issuer) throws CertificateEncodingException, InvalidKeyException, IllegalStateException, NoSuchProviderException, NoSuchAlgorithmException, SignatureException {
 
-		/* Génération d'une paire de clé privée/publique */
-	    KeyPairGenerator kpGen = KeyPairGenerator.getInstance("RSA", "BC");
-	    kpGen.initialize(1024, new SecureRandom());
-	    KeyPair keyPair = kpGen.generateKeyPair();
-
-	    
-	    /* Génération d'un certificat qui encapsule la paire de clé */
-	    X509V3CertificateGenerator certGen = new X509V3CertificateGenerator();
-
-	    certGen.setSerialNumber(BigInteger.valueOf(System.currentTimeMillis()));
-	    certGen.setIssuerDN(new X500Principal(issuer));
-	    // One day before now
-	    certGen.setNotBefore(new Date(System.currentTimeMillis() - (60 * 60 * 24)* 1000 ));
-	    // One year after today
-	    certGen.setNotAfter(new Date(System.currentTimeMillis() + (365 * 60 * 60 * 24)* 1000 ));
-	    certGen.setSubjectDN(new X500Principal(subject));
-	    certGen.setPublicKey(keyPair.getPublic());
-	    certGen.setSignatureAlgorithm("SHA256WithRSAEncryption");
+		KeyAlgorithm algorithm = KeyAlgorithm.DEFAULT;
+	    try {
+			/* Paire de clé privée/publique, générée à l'avance par le pool */
+	    	KeyPair keyPair = KeyPairPool.getDefault().take(algorithm.getAlgorithm(), algorithm.getSize());
 
-	    /* Sauvegarde du certificat */
-	    this.certificate = certGen.generate(keyPair.getPrivate(), "BC");
+		    /* Certificat qui encapsule la paire de clé, valide d'un jour avant à un an après */
+		    this.certificate = new CertificateTemplate().setAlgorithm(algorithm).selfSign(keyPair, subject, issuer);
+	    } catch (ModelException e) {
+	    	throw new NoSuchAlgorithmException(e.getMessage());
+	    }
 	}
 	
 	/**
@@ -171,6 +153,17 @@ public class MTCertificate {
 		keystore.addCertificate(alias, this.certificate);
 	}
 	
+	/**
+	 * add the current certificate to a given keystore, unless the keystore already holds it
+	 * @param keystore 's target
+	 * @param alias for the certificate in the KS
+	 * @return the alias already holding the certificate, or null if it was added
+	 * @throws ModelException
+	 */
+	public String addToKeyStoreIfAbsent(Model keystore, String alias) throws ModelException {
+		return keystore.addCertificateIfAbsent(alias, this.certificate);
+	}
+	
 	/**
 	 * Return details of the certificate
 	 */
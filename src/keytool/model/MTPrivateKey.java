@@ -1,40 +1,27 @@
 package keytool.model;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.math.BigInteger;
-import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.KeyFactory;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
-import java.security.SecureRandom;
-import java.security.SignatureException;
+import java.security.PrivateKey;
 import java.security.cert.Certificate;
-import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.security.spec.DSAPrivateKeySpec;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
+import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.RSAPrivateCrtKeySpec;
-import java.util.Calendar;
-import java.util.GregorianCalendar;
-
-import javax.security.auth.x500.X500Principal;
 
 import org.bouncycastle.asn1.ASN1InputStream;
 import org.bouncycastle.asn1.ASN1Sequence;
 import org.bouncycastle.asn1.DERInteger;
-import org.bouncycastle.util.encoders.Base64;
-import org.bouncycastle.x509.X509V3CertificateGenerator;
 
 /**
  * Private Key encapsulation :
@@ -49,66 +36,58 @@ public class MTPrivateKey extends MTPSKey {
 	 * Create a PrivateKey with a subject
 	 * @param subject
 	 * @throws ModelException 
-	 * @throws CertificateEncodingException
-	 * @throws InvalidKeyException
-	 * @throws IllegalStateException
-	 * @throws NoSuchProviderException
-	 * @throws NoSuchAlgorithmException
-	 * @throws SignatureException
 	 */
 	public MTPrivateKey(String subject) throws ModelException  {
-		try {
-			/* Génération d'une paire de clé privée/publique */
-		    KeyPairGenerator kpGen;
-		    kpGen = KeyPairGenerator.getInstance("RSA", "BC");
-
-	
-		    kpGen.initialize(1024, new SecureRandom());
-		    KeyPair keyPair = kpGen.generateKeyPair();
-		    /* Save the key */
-		    this.key = keyPair.getPrivate();
-		    
-		    /* Génération d'un certificat qui encapsule la paire de clé */
-		    X509V3CertificateGenerator certGen = new X509V3CertificateGenerator();
-	
-		    SecureRandom random = new SecureRandom();
-	
-		    certGen.setSerialNumber(BigInteger.valueOf(random.nextInt(random.nextInt(Integer.MAX_VALUE))));
-		    certGen.setIssuerDN(new X500Principal(subject));
-		    
-		    // Validité : 1 an avant/1 an après
-		    Calendar now = Calendar.getInstance();
-		    Calendar before = new GregorianCalendar(now.get(Calendar.YEAR) -1, now.get(Calendar.MONTH), now.get(Calendar.DAY_OF_MONTH));
-		    Calendar after = new GregorianCalendar(now.get(Calendar.YEAR) +1 , now.get(Calendar.MONTH), now.get(Calendar.DAY_OF_MONTH));
-			certGen.setNotBefore(before.getTime());
-		    certGen.setNotAfter(after.getTime());
-		    
-		    certGen.setSubjectDN(new X500Principal(subject));
-		    certGen.setPublicKey(keyPair.getPublic());
-		    certGen.setSignatureAlgorithm("SHA256WithRSAEncryption");
-	
-		    /* Sauvegarde du certificat */
-			this.certificate = certGen.generate(keyPair.getPrivate(), "BC");
-
-		} catch (CertificateEncodingException e) {
-			throw new ModelException("Problème d'encodage du certificat : "+e.getMessage());
-
-		} catch (InvalidKeyException e) {
-			throw new ModelException("Clé invalide : "+e.getMessage());
+		this(subject, KeyAlgorithm.DEFAULT);
+	}
 
-		} catch (IllegalStateException e) {
-			throw new ModelException("État invalide : "+e.getMessage());
+	/**
+	 * Create a PrivateKey of an algorithm and a size, with a subject
+	 * @param subject
+	 * @param algorithm of the key pair, like RSA or EC
+	 * @param size of the key, in bits
+	 * @throws ModelException
+	 */
+	public MTPrivateKey(String subject, String algorithm, int size) throws ModelException  {
+		this(subject, KeyAlgorithm.of(algorithm, size));
+	}
 
-		} catch (NoSuchProviderException e) {
-			throw new ModelException("Fournisseur de cryptage inconnu : "+e.getMessage());
+	/**
+	 * Create a PrivateKey with a subject
+	 * @param subject
+	 * @param algorithm of the key pair, which also signs the certificate
+	 * @throws ModelException
+	 */
+	public MTPrivateKey(String subject, KeyAlgorithm algorithm) throws ModelException  {
+		this(subject, algorithm, false);
+	}
 
-		} catch (NoSuchAlgorithmException e) {
-			throw new ModelException("Algorithm utilisé inconnu : "+e.getMessage());
+	/**
+	 * Create a PrivateKey with a subject, which can be a certification authority
+	 * @param subject
+	 * @param algorithm of the key pair, which also signs the certificate
+	 * @param authority whether or not the certificate allows to sign other certificates, see {@link CertificateAuthority}
+	 * @throws ModelException
+	 */
+	public MTPrivateKey(String subject, KeyAlgorithm algorithm, boolean authority) throws ModelException  {
+		this(subject, (authority ? CertificateTemplate.authority() : CertificateTemplate.identity()).setAlgorithm(algorithm));
+	}
 
-		} catch (SignatureException e) {
-			throw new ModelException("Problème de signature : "+e.getMessage());
+	/**
+	 * Create a PrivateKey with a subject, and its self-signed certificate made from a template
+	 * @param subject
+	 * @param template of the certificate, giving the algorithm of the key pair
+	 * @throws ModelException
+	 */
+	public MTPrivateKey(String subject, CertificateTemplate template) throws ModelException  {
+		KeyAlgorithm algorithm = template.getAlgorithm();
+		/* Paire de clé privée/publique, générée à l'avance par le pool */
+	    KeyPair keyPair = KeyPairPool.getDefault().take(algorithm.getAlgorithm(), algorithm.getSize());
+	    /* Save the key */
+	    this.key = keyPair.getPrivate();
 
-		}
+	    /* Certificat autosigné qui encapsule la paire de clé */
+		this.certificate = template.selfSign(keyPair, subject, subject);
 	}
 	
 	/**
@@ -128,27 +107,68 @@ public class MTPrivateKey extends MTPSKey {
 	 * @throws ModelException
 	 */
 	public MTPrivateKey(String keypath, String certpath) throws ModelException {
+		this.key = readKey(keypath);
+		this.certificate = readCertificate(certpath);
+	}
+
+	/**
+	 * Read the first private key of a PEM file
+	 * @param keypath path of the file
+	 * @return the private key
+	 * @throws ModelException
+	 */
+	static PrivateKey readKey(String keypath) throws ModelException {
+		PemReader reader = null;
+		try {
+			reader = PemReader.open(keypath);
+			PemReader.PemObject object;
+			while((object = reader.next()) != null) {
+				if(object.isPrivateKey())
+					return parseKey(object);
+			}
+			throw new ModelException("Pas de clé privée dans le fichier "+keypath);
+		} catch (FileNotFoundException e) {
+			throw new ModelException("Fichier non trouvé ! : "+e.getMessage());
+		} catch (IOException e) {
+			throw new ModelException("Problème d'entrée/sortie : "+e.getMessage());
+		} finally {
+			Model.closeQuietly(reader);
+		}
+	}
+
+	/**
+	 * Decode a RSA, DSA or PKCS#8 private key
+	 * From http://www.docjar.com/html/api/org/bouncycastle/openssl/PEMReader.java.html
+	 * @param object read from a PEM file
+	 * @return the private key
+	 * @throws ModelException
+	 */
+	static PrivateKey parseKey(PemReader.PemObject object) throws ModelException {
 		try {
 			String type;
-				
-	        byte[] buffer = new byte[(int) new File(keypath).length()];
-	        BufferedInputStream f = new BufferedInputStream(new FileInputStream(keypath));
-	        f.read(buffer);
-	        String keyfileText = new String(buffer);
-	        String[] strings = keyfileText.split("-----");
-	        if(strings.length < 3)
-	        	throw new CertificateException("Fichier incorrect");
-	        String keyText = strings[2];
-			
-			// extract the key
-			byte[] keyBytes = Base64.decode(keyText);
-	
-			KeySpec                 privSpec;
-			ByteArrayInputStream    bIn = new ByteArrayInputStream(keyBytes);
-			ASN1InputStream         aIn = new ASN1InputStream(bIn);
+			KeySpec privSpec;
+
+			if (object.getType().equals("PRIVATE KEY")) {
+				// PKCS#8 : l'algorithme est dans la structure, on essaie ceux des clés créées
+				privSpec = new PKCS8EncodedKeySpec(object.getContent());
+				for(String algorithm : new String[] {"RSA", "DSA", "EC"}) {
+					try {
+						return KeyFactory.getInstance(algorithm, "BC").generatePrivate(privSpec);
+					} catch (InvalidKeySpecException e) {
+						// algorithme suivant
+					}
+				}
+				try {
+					return KeyFactory.getInstance("Ed25519").generatePrivate(privSpec);
+				} catch (NoSuchAlgorithmException e) {
+					throw new InvalidKeySpecException("algorithme de la clé PKCS#8 non supporté");
+				}
+			}
+
+			ASN1InputStream         aIn = new ASN1InputStream(object.getContent());
 			ASN1Sequence            seq = (ASN1Sequence)aIn.readObject();
 	
-			if (keyfileText.contains("RSA"))
+			if (object.getType().equals("RSA PRIVATE KEY"))
 			{
 				type = "RSA";
 				// DERInteger v = (DERInteger)seq.getObjectAt(0);
@@ -166,7 +186,7 @@ public class MTPrivateKey extends MTPSKey {
 						p1.getValue(), p2.getValue(),
 						exp1.getValue(), exp2.getValue(),
 						crtCoef.getValue());
-			} else if (keyfileText.contains("DSA")) {
+			} else if (object.getType().equals("DSA PRIVATE KEY")) {
 				// "DSA"
 				type = "DSA";
 				// DERInteger v = (DERInteger)seq.getObjectAt(0);
@@ -179,38 +199,55 @@ public class MTPrivateKey extends MTPSKey {
 				privSpec = new DSAPrivateKeySpec(
 						x.getValue(), p.getValue(),
 						q.getValue(), g.getValue());
-			} else throw new CertificateException("Mauvais type de clé !");
+			} else throw new ModelException("Mauvais type de clé : "+object.getType());
 			
 			KeyFactory fact = KeyFactory.getInstance(type, "BC");
-			this.key = fact.generatePrivate(privSpec);
+			return fact.generatePrivate(privSpec);
 			
-			
-	        byte[] certBuffer = new byte[(int) new File(certpath).length()];
-	        BufferedInputStream certBis = new BufferedInputStream(new FileInputStream(certpath));
-	        certBis.read(certBuffer);
-	        String certfileText = new String(certBuffer);
-	        String[] certStrings = certfileText.split("-----");
-	        String certText = certStrings[2];
-			
-	        ByteArrayInputStream certBais = new ByteArrayInputStream(Base64.decode(certText));
-	        CertificateFactory certFact = CertificateFactory.getInstance("X.509", "BC");
+		} catch (IOException e) {
+			throw new ModelException("Problème d'entrée/sortie : "+e.getMessage());
+		} catch (ClassCastException e) {
+			throw new ModelException("Problème de clé privée : structure incorrecte");
+		} catch (NoSuchAlgorithmException e) {
+			throw new ModelException("Algorithme utilisé inconnu : "+e.getMessage());
+		} catch (InvalidKeySpecException e) {
+			throw new ModelException("Problème de clé privée : "+e.getMessage());
 
-	        this.certificate = (X509Certificate)certFact.generateCertificate(certBais);
-			
+		} catch (NoSuchProviderException e) {
+			throw new ModelException("Fournisseur de chiffrement inconnu  : "+e.getMessage());
+
+		}
+	}
+
+	/**
+	 * Read the first certificate of a PEM or DER file
+	 * @param certpath path of the file
+	 * @return the certificate
+	 * @throws ModelException
+	 */
+	static X509Certificate readCertificate(String certpath) throws ModelException {
+		PemReader reader = null;
+		try {
+			reader = PemReader.open(certpath);
+			PemReader.PemObject object;
+			while((object = reader.next()) != null) {
+				if(object.isCertificate()) {
+			        CertificateFactory certFact = CertificateFactory.getInstance("X.509", "BC");
+			        return (X509Certificate)certFact.generateCertificate(new ByteArrayInputStream(object.getContent()));
+				}
+			}
+			throw new ModelException("Pas de certificat dans le fichier "+certpath);
 		} catch (FileNotFoundException e) {
 			throw new ModelException("Fichier non trouvé ! : "+e.getMessage());
 		} catch (IOException e) {
 			throw new ModelException("Problème d'entrée/sortie : "+e.getMessage());
 		} catch (CertificateException e) {
 			throw new ModelException("Problème de certificat : "+e.getMessage());
-		}  catch (NoSuchAlgorithmException e) {
-			throw new ModelException("Algorithme utilisé inconnu : "+e.getMessage());
-		} catch (InvalidKeySpecException e) {
-			throw new ModelException("Problème de clé privée : "+e.getMessage());
-
 		} catch (NoSuchProviderException e) {
 			throw new ModelException("Fournisseur de chiffrement inconnu  : "+e.getMessage());
 
+		} finally {
+			Model.closeQuietly(reader);
 		}
 	}
 
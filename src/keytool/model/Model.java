@@ -1,8 +1,14 @@
 package keytool.model;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -10,7 +16,17 @@ import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.crypto.SecretKey;
 import javax.swing.DefaultListModel;
@@ -19,13 +35,41 @@ import javax.swing.DefaultListModel;
  * Model is an encapsulation of a Java KeyStore
  * This class provides the methods to manipulate the keystore,
  * get a Certificate or a Key, or add it
+ *
+ * A Model can be shared between threads : the entries are read from an immutable
+ * {@link KeyStoreSnapshot} published after each modification, without any lock. The keys
+ * are recovered under a shared lock, the modifications are done one at a time under an
+ * exclusive lock, and a save writes a consistent copy of the keystore taken under the shared lock.
+ * The {@link ModelListener}s are told of each change, once per modification or per batch.
  * @author Michaël Muré & Théophile Helleboid
  *
  */
 public class Model {
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	/* Les sauvegardes se font une par une, dans l'ordre de leurs copies */
+	private final Object saveLock = new Object();
 	private KeyStore keystore;
-	private char[] password;
-	private String currentPath;
+	private volatile char[] password;
+	private volatile String currentPath;
+	private volatile KeyStoreFormat format = KeyStoreFormat.DEFAULT;
+	/* Entrées publiées aux lecteurs, pour lister sans déchiffrer les clés */
+	private volatile KeyStoreSnapshot snapshot = KeyStoreSnapshot.EMPTY;
+	/* Entrées modifiées par le lot en cours, sous le verrou exclusif */
+	private KeyStoreSnapshot batch;
+	private long batchPosition;
+	private volatile KeyCache keyCache = new KeyCache();
+	private volatile KeyStoreWriter writeBehind;
+	private volatile KeyStoreJournal journal;
+	private long journalThreshold;
+	private final List<ModelListener> listeners = new CopyOnWriteArrayList<ModelListener>();
+	/* Clés des entrées modifiées depuis la dernière notification, sous le verrou exclusif */
+	private final SortedSet<String> touched = new TreeSet<String>();
+	/* Entrées à la dernière notification */
+	private KeyStoreSnapshot notified = KeyStoreSnapshot.EMPTY;
+	/* Événements pas encore envoyés, dans l'ordre des modifications : ajoutés sous le verrou exclusif */
+	private final Queue<ModelEvent> events = new ConcurrentLinkedQueue<ModelEvent>();
+	/* Un seul thread envoie les événements à la fois, dans l'ordre de la file */
+	private final ReentrantLock delivery = new ReentrantLock();
 
 	/**
 	 * Create an empty KeyStore 
@@ -41,11 +85,19 @@ public class Model {
 	 * @throws ModelException 
 	 */
 	public void newKeyStore(char[] password) throws ModelException {
+		newKeyStore(password, KeyStoreFormat.DEFAULT);
+	}
+
+	/**
+	 * Create a new KeyStore in the memory, saved in the given format
+	 * @param password of the new KeyStore
+	 * @param format of the new KeyStore
+	 * @throws ModelException 
+	 */
+	public void newKeyStore(char[] password, KeyStoreFormat format) throws ModelException {
+		KeyStore ks = format.newKeyStore();
 		try {
-			this.keystore = KeyStore.getInstance("JCEKS");
-			this.keystore.load(null, password);
-		} catch (KeyStoreException e) {
-			throw new ModelException("Erreur lors de la création du keystore : "+e.getMessage());
+			ks.load(null, password);
 		} catch (NoSuchAlgorithmException e) {
 			throw new ModelException("Erreur lors de la création du keystore : "+e.getMessage());
 		} catch (CertificateException e) {
@@ -55,10 +107,46 @@ public class Model {
 			// cannot happen
 			e.printStackTrace();
 		}
-		this.password = password;
-		this.currentPath = null;
+		lock.writeLock().lock();
+		try {
+			this.keystore = ks;
+			this.format = format;
+			reload(KeyStoreSnapshot.EMPTY, null);
+			this.keyCache.invalidateAll();
+			this.password = password;
+			this.currentPath = null;
+			openJournal();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		deliver();
 	}
 	
+	/**
+	 * Follow and cancel a long operation of the model
+	 */
+	public interface Progress {
+		/**
+		 * Called while the file is read
+		 * @param done number of bytes read
+		 * @param total size of the file
+		 */
+		void progress(long done, long total);
+
+		/**
+		 * Called for each entry indexed while a keystore is opened,
+		 * before the keystore replaces the current one
+		 * @param alias of the entry
+		 * @param type of the entry
+		 */
+		void entry(String alias, EntryType type);
+
+		/**
+		 * @return whether or not the operation has to stop
+		 */
+		boolean isCancelled();
+	}
+
 	/**
 	 * Open a Keytore with its path and its password
 	 * @param path
@@ -66,10 +154,47 @@ public class Model {
 	 * @throws ModelException 
 	 */
 	public void openKeyStore(String path, char[] password) throws ModelException {
+		openKeyStore(path, password, null);
+	}
+
+	/**
+	 * Open a Keytore with its path and its password, reporting the progress.
+	 * If the operation is cancelled, the current keystore is kept.
+	 * @param path
+	 * @param password
+	 * @param progress notified during the opening, or null
+	 * @throws ModelException if the keystore cannot be opened, or the operation is cancelled
+	 */
+	public void openKeyStore(String path, char[] password, Progress progress) throws ModelException {
+		openKeyStore(path, password, null, progress);
+	}
+
+	/**
+	 * Open a Keytore of a given format, reporting the progress.
+	 * If the operation is cancelled, the current keystore is kept.
+	 * @param path
+	 * @param password
+	 * @param format of the file, or null to recognize it, see {@link KeyStoreFormat#detect(File)}
+	 * @param progress notified during the opening, or null
+	 * @throws ModelException if the keystore cannot be opened, or the operation is cancelled
+	 */
+	public void openKeyStore(String path, char[] password, KeyStoreFormat format, Progress progress) throws ModelException {
+		if(format == null)
+			format = KeyStoreFormat.detect(new File(path));
+		InputStream fis = null;
+		KeyStore ks = format.newKeyStore();
+		KeyStoreSnapshot index;
 		try {
-			this.keystore = KeyStore.getInstance("JCEKS");
-			java.io.FileInputStream fis = new java.io.FileInputStream(path);
-			this.keystore.load(fis, password);
+			fis = new FileInputStream(path);
+			if(progress != null)
+				fis = new BufferedInputStream(new ProgressInputStream(fis, new File(path).length(), progress));
+			ks.load(fis, password);
+			if(format.isCaseSensitive())
+				lowerCaseAliases(ks, password);
+			KeyStoreJournal.replay(ks, password, path);
+			index = buildIndex(ks, progress);
+		} catch (InterruptedIOException e) {
+			throw new ModelException("Ouverture du keystore "+path+" annulée");
 		} catch (NoSuchAlgorithmException e) {
 			throw new ModelException("Erreur de l'ouverture du keystore "+path+": "+e.getMessage());
 		} catch (CertificateException e) {
@@ -78,30 +203,197 @@ public class Model {
 			throw new ModelException("Erreur de l'ouverture du keystore "+path+": Mauvais mot de passe ? "+e.getMessage());
 		} catch (KeyStoreException e) {
 			throw new ModelException("Erreur de l'ouverture du keystore "+path+": "+e.getMessage());
+		} catch (GeneralSecurityException e) {
+			throw new ModelException("Erreur de l'ouverture du journal du keystore "+path+": "+e.getMessage());
+		} finally {
+			closeQuietly(fis);
+		}
+		lock.writeLock().lock();
+		try {
+			this.keystore = ks;
+			this.format = format;
+			reload(index, path);
+			this.keyCache.invalidateAll();
+			this.password = password;
+			this.currentPath = path;
+			openJournal();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		deliver();
+	}
+
+	/**
+	 * Rename the entries of a keystore with case sensitive aliases to their lower case alias,
+	 * as they are indexed and as the Keytool writes them. The file changes at the next save.
+	 * @param ks the loaded keystore
+	 * @param password of the keystore and of its keys
+	 * @throws KeyStoreException if a key cannot be recovered
+	 */
+	private static void lowerCaseAliases(KeyStore ks, char[] password) throws KeyStoreException {
+		for(String alias : Collections.list(ks.aliases())) {
+			String lower = indexKey(alias);
+			// Deux alias qui ne diffèrent que par la casse : le second garde la sienne
+			if(lower.equals(alias) || ks.containsAlias(lower))
+				continue;
+			try {
+				if(ks.isCertificateEntry(alias))
+					ks.setCertificateEntry(lower, ks.getCertificate(alias));
+				else
+					ks.setKeyEntry(lower, ks.getKey(alias, password), password, ks.getCertificateChain(alias));
+			} catch (GeneralSecurityException e) {
+				throw new KeyStoreException("clé "+alias+" irrécupérable : "+e.getMessage());
+			}
+			ks.deleteEntry(alias);
+		}
+	}
+
+	/**
+	 * Build the snapshot of the entries of a keystore.
+	 * Only the entry types and certificates are read, the keys are never decrypted.
+	 * @param ks the loaded keystore
+	 * @param progress notified of each entry, or null
+	 * @return the snapshot
+	 * @throws KeyStoreException
+	 * @throws InterruptedIOException if the operation is cancelled
+	 */
+	private static KeyStoreSnapshot buildIndex(KeyStore ks, Progress progress) throws KeyStoreException, InterruptedIOException {
+		KeyStoreSnapshot index = KeyStoreSnapshot.EMPTY;
+		Enumeration<String> aliases = ks.aliases();
+		while(aliases.hasMoreElements()) {
+			String alias = aliases.nextElement();
+			KeyStoreSnapshot.Entry entry = new KeyStoreSnapshot.Entry(alias, typeOf(ks, alias), ks.getCertificate(alias));
+			index = index.with(entry);
+			if(progress != null) {
+				if(progress.isCancelled())
+					throw new InterruptedIOException();
+				progress.entry(entry.getAlias(), entry.getType());
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Stream reporting the bytes read to a Progress, and stopping when it is cancelled
+	 */
+	private static class ProgressInputStream extends FilterInputStream {
+		private final long total;
+		private final Progress progress;
+		private long done;
+
+		ProgressInputStream(InputStream in, long total, Progress progress) {
+			super(in);
+			this.total = total;
+			this.progress = progress;
+		}
+
+		public int read() throws IOException {
+			int b = super.read();
+			if(b >= 0)
+				read(1);
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if(n > 0)
+				read(n);
+			return n;
+		}
+
+		private void read(int n) throws InterruptedIOException {
+			if(progress.isCancelled())
+				throw new InterruptedIOException();
+			done += n;
+			progress.progress(done, total);
+		}
+	}
+
+	/**
+	 * Determine the type of an entry without recovering the key
+	 * @param ks the keystore
+	 * @param alias of the entry
+	 * @return the type of the entry
+	 * @throws KeyStoreException
+	 */
+	private static EntryType typeOf(KeyStore ks, String alias) throws KeyStoreException {
+		if(ks.isCertificateEntry(alias))
+			return EntryType.CERTIFICATE;
+		// Une clé privée est toujours accompagnée de sa chaîne de certificats
+		if(ks.getCertificate(alias) != null)
+			return EntryType.PRIVATE_KEY;
+		return EntryType.SECRET_KEY;
+	}
+
+	/**
+	 * Key of an alias in the index. The JCEKS aliases are case insensitive.
+	 * @param alias
+	 * @return the normalized alias
+	 */
+	static String indexKey(String alias) {
+		return alias.toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Close a stream, ignoring the errors
+	 * @param c stream to close
+	 */
+	public static void closeQuietly(java.io.Closeable c) {
+		if(c == null) return;
+		try {
+			c.close();
+		} catch (IOException e) {
+			// rien à faire
 		}
-		this.password = password;
-		this.currentPath = path;
 	}
 	
 	/**
-	 * Get a key from the alias. It can be a private or secret key
+	 * Get a key from the alias. It can be a private or secret key.
+	 * The key may come from the cache, shared with the other callers : it must not be modified
 	 * @param alias
 	 * @return a key
 	 * @throws ModelException 
 	 */
 	public MTPSKey getKey(String alias) throws ModelException {
+		MTPSKey cached = keyCache.get(indexKey(alias));
+		if(cached != null)
+			return cached;
+		lock.readLock().lock();
 		try {
-			if(keystore.getKey(alias, password) != null) {
-				if(keystore.getCertificate(alias) != null) {
-					// La clé est associée à un certificat, c'est une clé privée
-					return new MTPrivateKey(keystore.getKey(alias, this.password), keystore.getCertificate(alias));
-				} else {
-					//throw new KeyStoreException("pas de certificat associé à la clé");
-					// FIXME : ajouter le mot de passe de la clé secrète
-					return new MTSecretKey(keystore.getKey(alias, this.password), this.password);
-				}
-			} else
+			Key key = recoverKey(alias);
+			MTPSKey result;
+			Certificate certificate = keystore.getCertificate(indexKey(alias));
+			if(certificate != null) {
+				// La clé est associée à un certificat, c'est une clé privée
+				result = new MTPrivateKey(key, certificate);
+			} else {
+				// FIXME : ajouter le mot de passe de la clé secrète
+				result = new MTSecretKey(key, this.password);
+			}
+			// Sous le verrou partagé : aucune modification ne peut invalider la clé entre-temps
+			keyCache.put(indexKey(alias), result);
+			return result;
+		} catch (KeyStoreException e) {
+			throw new ModelException("Problème de KeyStore :"+e.getMessage());
+
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Recover a key, without the cache : the caller gets its own key, kept out of the cache
+	 * @param alias of a private or secret key
+	 * @return the key
+	 * @throws ModelException if there is no such key, or it cannot be recovered
+	 */
+	Key recoverKey(String alias) throws ModelException {
+		lock.readLock().lock();
+		try {
+			Key key = keystore.getKey(indexKey(alias), this.password);
+			if(key == null)
 				throw new KeyStoreException("pas de clé "+alias+" à ce nom");
+			return key;
 		} catch (UnrecoverableKeyException e) {
 			throw new ModelException("Problème avec la clé irrécupérable :"+e.getMessage());
 
@@ -111,6 +403,52 @@ public class Model {
 		} catch (NoSuchAlgorithmException e) {
 			throw new ModelException("Algorithme non connu :"+e.getMessage());
 
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param alias of a private key
+	 * @return the whole chain of its certificates, the certificate of the key first
+	 * @throws ModelException if there is no such private key
+	 */
+	Certificate[] getCertificateChain(String alias) throws ModelException {
+		lock.readLock().lock();
+		try {
+			Certificate[] chain = keystore.getCertificateChain(indexKey(alias));
+			if(chain == null || chain.length == 0)
+				throw new ModelException("Pas de clé privée "+alias);
+			return chain;
+		} catch (KeyStoreException e) {
+			throw new ModelException("Problème de KeyStore :"+e.getMessage());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Get the cache of the recovered keys, and its statistics
+	 * @return the key cache
+	 */
+	public KeyCache getKeyCache() {
+		return this.keyCache;
+	}
+
+	/**
+	 * Replace the cache of the recovered keys
+	 * @param maximumSize maximum number of keys kept, 0 disables the cache
+	 * @param ttlMillis time to live of a key in the cache, in milliseconds
+	 */
+	public void setKeyCacheLimits(int maximumSize, long ttlMillis) {
+		KeyCache cache = new KeyCache(maximumSize, ttlMillis);
+		lock.writeLock().lock();
+		try {
+			KeyCache old = this.keyCache;
+			this.keyCache = cache;
+			old.invalidateAll();
+		} finally {
+			lock.writeLock().unlock();
 		}
 	}
 	
@@ -121,16 +459,10 @@ public class Model {
 	 * @throws ModelException 
 	 */
 	public MTCertificate getCertificate(String alias) throws ModelException {
-		try {
-			if(this.keystore.containsAlias(alias))
-				return new MTCertificate(keystore.getCertificate(alias));
-			else
-				throw new KeyStoreException("Pas de certificat "+alias);
-		} catch (KeyStoreException e) {
-			throw new ModelException("Pas de certificat pour l'alias "+alias+" : "+e.getMessage());
-
-		}
-		
+		KeyStoreSnapshot.Entry entry = current().get(alias);
+		if(entry == null || entry.getCertificate() == null)
+			throw new ModelException("Pas de certificat pour l'alias "+alias);
+		return new MTCertificate(entry.getCertificate());
 	}
 	
 	/**
@@ -141,12 +473,43 @@ public class Model {
 	 * @throws ModelException
 	 */
 	public void addPrivateKey(String alias, Key key, Certificate certificate) throws ModelException {
+		addPrivateKey(alias, key, new Certificate[] { certificate });
+	}
+
+	/**
+	 * Add a Key in the KeyStore, with the chain of its certificates
+	 * @param alias
+	 * @param key
+	 * @param chain the certificate of the key first
+	 * @throws ModelException
+	 */
+	void addPrivateKey(String alias, Key key, Certificate[] chain) throws ModelException {
+		Certificate certificate = chain[0];
+		byte[] record = null;
+		long position = 0;
 		try {
-			keystore.setKeyEntry(alias, key, this.password, new Certificate[] { certificate });
-		} catch (KeyStoreException e) {
-			throw new ModelException("Impossible d'ajouter la clé avec l'alias "+alias+" :"+e.getMessage());
+			if(journal != null)
+				record = KeyStoreJournal.keyRecord(indexKey(alias), key, chain, this.password);
+		} catch (GeneralSecurityException e) {
+			throw journalError(e);
+		} catch (IOException e) {
+			throw journalError(e);
+		}
+		lock.writeLock().lock();
+		try {
+			try {
+				keystore.setKeyEntry(indexKey(alias), key, this.password, chain);
+			} catch (KeyStoreException e) {
+				throw new ModelException("Impossible d'ajouter la clé avec l'alias "+alias+" :"+e.getMessage());
 
+			}
+			publish(alias, working().with(new KeyStoreSnapshot.Entry(alias, EntryType.PRIVATE_KEY, certificate)));
+			keyCache.invalidate(indexKey(alias));
+			position = journal(record);
+		} finally {
+			lock.writeLock().unlock();
 		}
+		modified(position);
 	}
 	
 	/**
@@ -156,14 +519,74 @@ public class Model {
 	 * @throws ModelException
 	 */
 	public void addCertificate(String alias, Certificate cert) throws ModelException {
+		byte[] record = null;
+		long position = 0;
 		try {
-			keystore.setCertificateEntry(alias, cert);
-		} catch (KeyStoreException e) {
-			throw new ModelException("Problème d'ajout du certificat :"+e.getMessage());
+			if(journal != null)
+				record = KeyStoreJournal.certificateRecord(indexKey(alias), cert);
+		} catch (GeneralSecurityException e) {
+			throw journalError(e);
+		} catch (IOException e) {
+			throw journalError(e);
+		}
+		lock.writeLock().lock();
+		try {
+			try {
+				keystore.setCertificateEntry(indexKey(alias), cert);
+			} catch (KeyStoreException e) {
+				throw new ModelException("Problème d'ajout du certificat :"+e.getMessage());
 
+			}
+			publish(alias, working().with(new KeyStoreSnapshot.Entry(alias, EntryType.CERTIFICATE, cert)));
+			keyCache.invalidate(indexKey(alias));
+			position = journal(record);
+		} finally {
+			lock.writeLock().unlock();
 		}
+		modified(position);
 	}
 	
+	/**
+	 * Add a certificate to the keystore, unless the keystore already holds it.
+	 * The certificates are compared by their SHA-256 fingerprint, read in the index of the snapshot.
+	 * @param alias of the new certificate
+	 * @param cert to add
+	 * @return the alias of the entry already holding the certificate, or null if it was added
+	 * @throws ModelException
+	 */
+	public String addCertificateIfAbsent(final String alias, final Certificate cert) throws ModelException {
+		final String[] existing = new String[1];
+		// Le lot garde la recherche et l'ajout sous le même verrou exclusif
+		runBatch(new Batch() {
+			public void run(Model model) throws ModelException {
+				existing[0] = getCertificateAlias(cert);
+				if(existing[0] == null)
+					addCertificate(alias, cert);
+			}
+		});
+		return existing[0];
+	}
+
+	/**
+	 * Find an entry holding a certificate, like {@link KeyStore#getCertificateAlias(Certificate)}
+	 * but without reading every entry.
+	 * @param cert to find
+	 * @return the alias of a trusted certificate, or else of a private key, with this certificate ; null if there is none
+	 */
+	public String getCertificateAlias(Certificate cert) {
+		String fingerprint = CertificateIds.fingerprint(cert);
+		if(fingerprint == null)
+			return null;
+		String alias = null;
+		for(KeyStoreSnapshot.Entry entry : current().find(KeyStoreSnapshot.FINGERPRINT, fingerprint)) {
+			if(entry.getType() == EntryType.CERTIFICATE)
+				return entry.getAlias();
+			if(alias == null)
+				alias = entry.getAlias();
+		}
+		return alias;
+	}
+
 	/**
 	 * Add a secretKey to the keystore
 	 * @param alias of the key to insert
@@ -172,42 +595,381 @@ public class Model {
 	 * @throws ModelException
 	 */
 	public void addSecretKey(String alias, SecretKey key, char[] password ) throws ModelException {
+		if(!format.supportsSecretKeys())
+			throw new ModelException("Le format "+format.getType()+" ne peut pas contenir de clé secrète");
+		byte[] record = null;
+		long position = 0;
 		try {
+			if(journal != null)
+				record = KeyStoreJournal.keyRecord(indexKey(alias), key, null, this.password);
+		} catch (GeneralSecurityException e) {
+			throw journalError(e);
+		} catch (IOException e) {
+			throw journalError(e);
+		}
+		lock.writeLock().lock();
+		try {
+			try {
 
-			KeyStore.SecretKeyEntry skEntry = new KeyStore.SecretKeyEntry(key);
+				KeyStore.SecretKeyEntry skEntry = new KeyStore.SecretKeyEntry(key);
 
-			keystore.setEntry("secretKeyAlias", skEntry, new KeyStore.PasswordProtection(password));
-		} catch (KeyStoreException e) {
-			throw new ModelException("Problème d'ajout du certificat :"+e.getMessage());
+				keystore.setEntry(indexKey(alias), skEntry, new KeyStore.PasswordProtection(password));
+			} catch (KeyStoreException e) {
+				throw new ModelException("Problème d'ajout du certificat :"+e.getMessage());
+			}
+			publish(alias, working().with(new KeyStoreSnapshot.Entry(alias, EntryType.SECRET_KEY, null)));
+			keyCache.invalidate(indexKey(alias));
+			position = journal(record);
+		} finally {
+			lock.writeLock().unlock();
 		}
+		modified(position);
 	}
 	
+	/**
+	 * Add a secret key, protected with the password of the keystore
+	 * @param alias of the key to insert
+	 * @param key to insert
+	 * @throws ModelException
+	 */
+	void addSecretKey(String alias, SecretKey key) throws ModelException {
+		addSecretKey(alias, key, this.password);
+	}
+
+	/**
+	 * Copy an entry of another model. A key is recovered with the password of the other
+	 * keystore, and protected again with the password of this one.
+	 * @param source model holding the entry
+	 * @param alias of the entry in the source
+	 * @param target alias of the copy
+	 * @throws ModelException if there is no such entry, or its key cannot be recovered
+	 */
+	void copyEntry(Model source, String alias, String target) throws ModelException {
+		KeyStoreSnapshot.Entry entry = source.getSnapshot().get(alias);
+		if(entry == null)
+			throw new ModelException("Pas d'alias "+alias);
+		switch(entry.getType()) {
+		case CERTIFICATE:
+			addCertificate(target, entry.getCertificate());
+			break;
+		case PRIVATE_KEY:
+			addPrivateKey(target, source.recoverKey(alias), source.getCertificateChain(alias));
+			break;
+		case SECRET_KEY:
+			addSecretKey(target, (SecretKey) source.recoverKey(alias));
+			break;
+		}
+	}
+
 	/**
 	 * Delete an entry
 	 * @param alias to be deleted
 	 * @throws ModelException 
 	 */
 	public void delEntry(String alias) throws ModelException {
+		if(alias == null) return;
+		long position = 0;
+		lock.writeLock().lock();
 		try {
-			if(alias == null) return;
-			if(! this.keystore.containsAlias(alias))
-				throw new ModelException("Pas d'alias "+alias);
-			this.keystore.deleteEntry(alias);
-		} catch (KeyStoreException e) {
-			throw new ModelException("Pas d'entrée "+alias+"à supprimer :"+e.getMessage());
+			try {
+				if(! this.keystore.containsAlias(indexKey(alias)))
+					throw new ModelException("Pas d'alias "+alias);
+				this.keystore.deleteEntry(indexKey(alias));
+			} catch (KeyStoreException e) {
+				throw new ModelException("Pas d'entrée "+alias+"à supprimer :"+e.getMessage());
+			}
+			publish(alias, working().without(alias));
+			keyCache.invalidate(indexKey(alias));
+			try {
+				position = journal(KeyStoreJournal.deleteRecord(indexKey(alias)));
+			} catch (IOException e) {
+				throw journalError(e);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		modified(position);
+	}
+
+	/**
+	 * A group of modifications published to the readers at once
+	 */
+	public interface Batch {
+		/**
+		 * Apply the modifications, with the add* and delEntry methods of the model
+		 * @param model being modified
+		 * @throws ModelException
+		 */
+		void run(Model model) throws ModelException;
+	}
+
+	/**
+	 * Apply a group of modifications as one change for the readers.
+	 * The other writers wait for the end of the batch, and the readers keep seeing the
+	 * previous snapshot until the whole batch is applied. If the batch fails, the
+	 * modifications already made to the keystore are published anyway.
+	 * The listeners receive only one event, at the end of the outer batch.
+	 * @param batch the modifications
+	 * @throws ModelException
+	 */
+	public void runBatch(Batch batch) throws ModelException {
+		long position;
+		boolean done = false;
+		lock.writeLock().lock();
+		boolean outer = this.batch == null;
+		try {
+			if(outer) {
+				this.batch = this.snapshot;
+				this.batchPosition = 0;
+			}
+			try {
+				batch.run(this);
+			} finally {
+				if(outer) {
+					this.snapshot = this.batch;
+					this.batch = null;
+				}
+			}
+			done = true;
+			if(!outer)
+				return;
+			position = this.batchPosition;
+		} finally {
+			lock.writeLock().unlock();
+			// Les modifications d'un lot en échec sont publiées : elles sont aussi notifiées
+			if(outer && !done)
+				notifyChanges();
+		}
+		modified(position);
+	}
+
+	/**
+	 * @return whether or not the calling thread holds the exclusive lock, as in a batch :
+	 * until it releases it, the other threads wait to read the keystore
+	 */
+	boolean isLockedByCurrentThread() {
+		return lock.isWriteLockedByCurrentThread();
+	}
+
+	/**
+	 * @return the immutable view of the entries, as published after the last modification.
+	 * Inside a batch, the thread running it sees its own modifications.
+	 */
+	public KeyStoreSnapshot getSnapshot() {
+		return current();
+	}
+
+	/**
+	 * @return the entries seen by the calling thread
+	 */
+	private KeyStoreSnapshot current() {
+		// Seul le thread qui exécute un lot voit ses modifications avant leur publication
+		if(this.batch != null && lock.isWriteLockedByCurrentThread())
+			return this.batch;
+		return this.snapshot;
+	}
+
+	/**
+	 * Called under the exclusive lock.
+	 * @return the entries being modified : those of the current batch, or the published ones
+	 */
+	private KeyStoreSnapshot working() {
+		return this.batch != null ? this.batch : this.snapshot;
+	}
+
+	/**
+	 * Publish the modified entries, or keep them for the end of the current batch.
+	 * Called under the exclusive lock.
+	 * @param entries modified
+	 */
+	private void publish(KeyStoreSnapshot entries) {
+		if(this.batch != null)
+			this.batch = entries;
+		else
+			this.snapshot = entries;
+	}
+
+	/**
+	 * Publish the entries modified for an alias, and remember the alias for the listeners.
+	 * Called under the exclusive lock.
+	 * @param alias modified
+	 * @param entries modified
+	 */
+	private void publish(String alias, KeyStoreSnapshot entries) {
+		touched.add(indexKey(alias));
+		publish(entries);
+	}
+
+	/**
+	 * Publish the entries of a new keystore, replacing all the entries, and queue the event
+	 * for the listeners.
+	 * Called under the exclusive lock.
+	 * @param entries of the new keystore
+	 * @param path of the new keystore
+	 */
+	private void reload(KeyStoreSnapshot entries, String path) {
+		// Les modifications pas encore notifiées sont envoyées avant le rechargement
+		queueChanges();
+		if(!listeners.isEmpty())
+			events.add(ModelEvent.reloaded(this, this.snapshot, entries, path));
+		publish(entries);
+		notified = entries;
+	}
+
+	/**
+	 * Add a listener of the changes of the model
+	 * @param listener
+	 */
+	public void addModelListener(ModelListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Remove a listener of the changes of the model
+	 * @param listener
+	 */
+	public void removeModelListener(ModelListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Send the changes published since the last notification to the listeners.
+	 * Called out of the lock : the modifications of several threads made meanwhile
+	 * are sent in the same event, and the following calls have nothing to send.
+	 */
+	private void notifyChanges() {
+		lock.writeLock().lock();
+		try {
+			queueChanges();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		deliver();
+	}
+
+	/**
+	 * Queue the event of the changes published since the last notification.
+	 * Called under the exclusive lock, so the events are queued in the order of the changes.
+	 */
+	private void queueChanges() {
+		if(touched.isEmpty())
+			return;
+		if(!listeners.isEmpty()) {
+			ModelEvent event = ModelEvent.changes(this, notified, this.snapshot, touched, this.currentPath);
+			if(event != null)
+				events.add(event);
 		}
+		touched.clear();
+		notified = this.snapshot;
+	}
+
+	/**
+	 * Send the queued events to the listeners, in the order of the queue.
+	 * The events queued by the other threads meanwhile are sent too : a thread may
+	 * send the event of a later change, never before the events of the earlier ones.
+	 */
+	private void deliver() {
+		// Sous le verrou exclusif, attendre l'envoi en cours bloquerait un listener qui lit le modèle ;
+		// pendant un envoi, un listener qui modifie le modèle laisse ses événements à la boucle en cours
+		if(lock.isWriteLockedByCurrentThread() || delivery.isHeldByCurrentThread())
+			return;
+		while(!events.isEmpty()) {
+			delivery.lock();
+			try {
+				ModelEvent event;
+				while((event = events.poll()) != null) {
+					for(ModelListener listener : listeners) {
+						switch(event.getKind()) {
+						case CHANGED:
+							listener.entriesChanged(event);
+							break;
+						case RELOADED:
+							listener.storeReloaded(event);
+							break;
+						case SAVED:
+							listener.storeSaved(event);
+							break;
+						}
+					}
+				}
+			} finally {
+				delivery.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Append a record to the journal, if the journal mode is enabled.
+	 * Called under the exclusive lock.
+	 * @param record built before taking the lock, or null if the mode was disabled
+	 * @return the position to commit, 0 if nothing was journaled
+	 * @throws ModelException
+	 */
+	private long journal(byte[] record) throws ModelException {
+		if(journal == null)
+			return 0;
+		if(record == null)
+			throw journalError(new IOException("journal activé pendant la modification"));
+		try {
+			return journal.append(record);
+		} catch (IOException e) {
+			throw journalError(e);
+		}
+	}
+
+	/**
+	 * Build the error of a failed journal append.
+	 * The modification is done in memory, but it will only be on the disk after a full save.
+	 * @param e cause
+	 * @return the exception to throw
+	 */
+	private ModelException journalError(Exception e) {
+		return new ModelException("Modification non journalisée, enregistrez le keystore : "+e.getMessage());
 	}
 	
 	/**
-	 * Save the KeyStore to a path
+	 * Save the KeyStore to a path.
+	 * The file is replaced atomically : a crash during the save leaves the previous file intact.
+	 * The new file is readable by its owner only.
 	 * @param path of the file
 	 * @throws ModelException
 	 */
 	public void saveAs(String path) throws ModelException {
+		if(path == null)
+			throw new ModelException("Pas de fichier pour enregistrer le keystore");
 		try {
-			FileOutputStream fos = new FileOutputStream(new File(path));
-			this.keystore.store(fos, this.password);
-			this.currentPath = path;
+			synchronized(saveLock) {
+				ByteArrayOutputStream data;
+				KeyStoreJournal saved;
+				long mark = 0;
+				// Copie cohérente : aucune modification pendant la sérialisation
+				lock.readLock().lock();
+				try {
+					data = KeyStoreWriter.serialize(this.keystore, this.password);
+					saved = this.journal;
+					if(saved != null)
+						mark = saved.size();
+				} finally {
+					lock.readLock().unlock();
+				}
+
+				KeyStoreWriter.writeAtomically(data, new File(path));
+
+				lock.writeLock().lock();
+				try {
+					// Le fichier contient maintenant les modifications journalisées avant la copie
+					if(saved != null && saved == this.journal && path.equals(this.currentPath))
+						saved.discard(mark);
+					else
+						KeyStoreJournal.fileFor(path).delete();
+					if(!path.equals(this.currentPath)) {
+						this.currentPath = path;
+						openJournal();
+					}
+				} finally {
+					lock.writeLock().unlock();
+				}
+			}
 		} catch (NoSuchAlgorithmException e) {
 			throw new ModelException("Erreur lors de l'enregistrement du keystore "+path+": "+e.getMessage());
 		} catch (CertificateException e) {
@@ -218,6 +980,9 @@ public class Model {
 			throw new ModelException("Erreur lors de l'enregistrement du keystore "+path+": "+e.getMessage());
 		}
 		System.out.println("Save the keystore to: "+path);
+		if(!listeners.isEmpty())
+			events.add(ModelEvent.saved(this, this.snapshot, path));
+		deliver();
 	}
 	
 	/**
@@ -227,25 +992,120 @@ public class Model {
 	public void save() throws ModelException {
 		saveAs(this.currentPath);
 	}
-	
+
+	/**
+	 * Enable or disable the write-behind mode.
+	 * In this mode, each modification of a keystore which has a file asks for a save,
+	 * done by a background thread after the given delay. All the modifications
+	 * made during the delay are saved at once.
+	 * @param delayMillis delay before the save, 0 or less to disable the mode
+	 * @throws ModelException if a pending background save failed
+	 */
+	public void setWriteBehind(long delayMillis) throws ModelException {
+		KeyStoreWriter old;
+		lock.writeLock().lock();
+		try {
+			old = this.writeBehind;
+			this.writeBehind = delayMillis > 0 ? new KeyStoreWriter(this, delayMillis) : null;
+		} finally {
+			lock.writeLock().unlock();
+		}
+		if(old != null) {
+			old.shutdown();
+			old.flush(true);
+		}
+	}
+
+	/**
+	 * Wait for the background save of the write-behind mode, and save now
+	 * the modifications still waiting for it.
+	 * @throws ModelException if the background save failed
+	 */
+	public void flush() throws ModelException {
+		KeyStoreWriter writer = this.writeBehind;
+		if(writer != null)
+			writer.flush(true);
+	}
+
+	/**
+	 * Enable or disable the journal mode.
+	 * In this mode, each modification of a keystore which has a file is appended to
+	 * a journal next to the file, and forced to the disk before the method returns.
+	 * The journal is folded in the keystore file by a background save once it is
+	 * bigger than the threshold.
+	 * The journal of a file is always applied when the file is opened.
+	 * @param compactionThreshold size of the journal in bytes triggering a full save, 0 or less to disable the mode
+	 * @throws ModelException
+	 */
+	public void setJournal(long compactionThreshold) throws ModelException {
+		synchronized(saveLock) {
+			lock.writeLock().lock();
+			try {
+				this.journalThreshold = compactionThreshold;
+				openJournal();
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Open the journal of the current file, or close it when the mode is disabled.
+	 * Called under the exclusive lock.
+	 * @throws ModelException
+	 */
+	private void openJournal() throws ModelException {
+		if(journal != null) {
+			journal.close();
+			journal = null;
+		}
+		if(journalThreshold <= 0 || currentPath == null)
+			return;
+		try {
+			journal = new KeyStoreJournal(this, currentPath, journalThreshold);
+		} catch (IOException e) {
+			throw new ModelException("Impossible d'ouvrir le journal de "+currentPath+" : "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Called after each modification of the keystore, out of the lock or at the end of a batch
+	 * @param position of the modification in the journal, 0 if it is not journaled
+	 * @throws ModelException
+	 */
+	private void modified(long position) throws ModelException {
+		if(lock.isWriteLockedByCurrentThread()) {
+			// Dans un lot : le journal est forcé une seule fois, à la fin du lot
+			this.batchPosition = Math.max(this.batchPosition, position);
+			return;
+		}
+		try {
+			KeyStoreJournal j = this.journal;
+			if(j != null && position > 0) {
+				try {
+					j.commit(position);
+				} catch (IOException e) {
+					throw journalError(e);
+				}
+			}
+			KeyStoreWriter writer = this.writeBehind;
+			if(writer != null && this.currentPath != null)
+				writer.schedule();
+		} finally {
+			notifyChanges();
+		}
+	}
+
     /**
      * @return the keys list
      * @throws ModelException
      */
     public DefaultListModel getKeys() throws ModelException{
     	DefaultListModel list = new DefaultListModel();
-		try {
-	    	Enumeration<String> aliases = keystore.aliases();
-			String alias;
-			while(aliases.hasMoreElements()) {
-				alias = aliases.nextElement();
-				if(keystore.isKeyEntry(alias)) {
-					list.addElement(alias);
-				}
-			}
-		} catch (KeyStoreException e) {
-			throw new ModelException("Erreur lors de l'accès à la liste des clés "+e.getMessage());
-		}
+    	for(KeyStoreSnapshot.Entry entry : current()) {
+    		if(entry.getType().isKey())
+    			list.addElement(entry.getAlias());
+    	}
         return list;
     }
     
@@ -255,36 +1115,40 @@ public class Model {
      */
     public DefaultListModel getCertificates() throws ModelException {
     	DefaultListModel list = new DefaultListModel();
-    	try {
-    		Enumeration<String> aliases = keystore.aliases();
-			String alias;
-			while(aliases.hasMoreElements()) {
-				alias = aliases.nextElement();
-				// On teste d'abord si c'est un vrai certificat.
-				// Sinon, si c'est une clé privée (pas l'inverse !)
-				if(keystore.isCertificateEntry(alias) || isPrivateKey(alias)) {
-					list.addElement(alias);
-				}
-			}
-		} catch (KeyStoreException e) {
-			throw new ModelException("Erreur lors de l'accès à la liste des certificats "+e.getMessage());
-		}
+    	// Les certificats de confiance et ceux des clés privées
+    	for(KeyStoreSnapshot.Entry entry : current()) {
+    		if(entry.getType().hasCertificate())
+    			list.addElement(entry.getAlias());
+    	}
         return list;
     }
 
+    /**
+     * Get the type of an entry, from the index
+     * @param alias of the entry
+     * @return the type, or null if there is no such entry
+     */
+    public EntryType getEntryType(String alias) {
+    	KeyStoreSnapshot.Entry entry = current().get(alias);
+    	return entry == null ? null : entry.getType();
+    }
+
     /**
      * Détermine si le keystore est initialisé
      * @return whether or not the keystore is initialized
      */
 	public boolean isInitialized() {
-		if(this.keystore == null) return false;
-		
-	    // Attention : keystore peut-être différent de null, mais non initialisé !
+		lock.readLock().lock();
 		try {
+			if(this.keystore == null) return false;
+			
+		    // Attention : keystore peut-être différent de null, mais non initialisé !
 			this.keystore.size();
 			return true;
 		} catch (KeyStoreException e) {
 			return false;
+		} finally {
+			lock.readLock().unlock();
 		}
 	}
 
@@ -296,6 +1160,13 @@ public class Model {
 		return this.currentPath;
 	}
 	
+	/**
+	 * @return the format of the keystore, in which it is saved
+	 */
+	public KeyStoreFormat getFormat() {
+		return this.format;
+	}
+
 	/**
 	 * determine if the key is a private key
 	 * @param alias of the key
@@ -303,7 +1174,7 @@ public class Model {
 	 * @throws ModelException
 	 */
 	protected boolean isPrivateKey(String alias) throws ModelException {
-		return (getKey(alias) instanceof MTPrivateKey);		
+		return getEntryType(alias) == EntryType.PRIVATE_KEY;
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,169 @@
+package keytool.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Change of a {@link Model}, sent to its {@link ModelListener}s.
+ * An event holds the snapshots before and after the change, and the aliases of the
+ * entries it added, removed or replaced, sorted like the snapshots.
+ * @author Michaël Muré & Théophile Helleboid
+ *
+ */
+public final class ModelEvent {
+	/**
+	 * Method of the listeners receiving an event
+	 */
+	enum Kind { CHANGED, RELOADED, SAVED }
+
+	private final Kind kind;
+	private final Model model;
+	private final KeyStoreSnapshot previous;
+	private final KeyStoreSnapshot snapshot;
+	private final List<String> added;
+	private final List<String> removed;
+	private final List<String> replaced;
+	private final List<String> changed;
+	private final String path;
+
+	private ModelEvent(Kind kind, Model model, KeyStoreSnapshot previous, KeyStoreSnapshot snapshot,
+			List<String> added, List<String> removed, List<String> replaced, List<String> changed, String path) {
+		this.kind = kind;
+		this.model = model;
+		this.previous = previous;
+		this.snapshot = snapshot;
+		this.added = Collections.unmodifiableList(added);
+		this.removed = Collections.unmodifiableList(removed);
+		this.replaced = Collections.unmodifiableList(replaced);
+		this.changed = Collections.unmodifiableList(changed);
+		this.path = path;
+	}
+
+	/**
+	 * Build the event of a modification, from the entries it touched
+	 * @param model changed
+	 * @param previous entries before the modification
+	 * @param snapshot entries after the modification
+	 * @param touched keys of the touched entries, in the order of the snapshots
+	 * @param path of the keystore
+	 * @return the event, or null if the entries did not change
+	 */
+	static ModelEvent changes(Model model, KeyStoreSnapshot previous, KeyStoreSnapshot snapshot,
+			Collection<String> touched, String path) {
+		List<String> added = new ArrayList<String>();
+		List<String> removed = new ArrayList<String>();
+		List<String> replaced = new ArrayList<String>();
+		List<String> changed = new ArrayList<String>();
+		for(String key : touched) {
+			KeyStoreSnapshot.Entry before = previous.get(key);
+			KeyStoreSnapshot.Entry after = snapshot.get(key);
+			// Une entrée ajoutée puis supprimée dans le même lot n'a pas changé
+			if(before == after)
+				continue;
+			changed.add(after == null ? before.getAlias() : after.getAlias());
+			if(before == null)
+				added.add(after.getAlias());
+			else if(after == null)
+				removed.add(before.getAlias());
+			else
+				replaced.add(after.getAlias());
+		}
+		if(changed.isEmpty())
+			return null;
+		return new ModelEvent(Kind.CHANGED, model, previous, snapshot, added, removed, replaced, changed, path);
+	}
+
+	/**
+	 * Build the event of a new or opened keystore
+	 */
+	static ModelEvent reloaded(Model model, KeyStoreSnapshot previous, KeyStoreSnapshot snapshot, String path) {
+		List<String> none = Collections.emptyList();
+		return new ModelEvent(Kind.RELOADED, model, previous, snapshot, none, none, none, none, path);
+	}
+
+	/**
+	 * Build the event of a save
+	 */
+	static ModelEvent saved(Model model, KeyStoreSnapshot snapshot, String path) {
+		List<String> none = Collections.emptyList();
+		return new ModelEvent(Kind.SAVED, model, snapshot, snapshot, none, none, none, none, path);
+	}
+
+	/**
+	 * @return the method of the listeners receiving this event
+	 */
+	Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * @return the model which changed
+	 */
+	public Model getModel() {
+		return model;
+	}
+
+	/**
+	 * @return the entries before the change
+	 */
+	public KeyStoreSnapshot getPrevious() {
+		return previous;
+	}
+
+	/**
+	 * @return the entries after the change
+	 */
+	public KeyStoreSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * @return the aliases of the new entries
+	 */
+	public List<String> getAdded() {
+		return added;
+	}
+
+	/**
+	 * @return the aliases of the deleted entries
+	 */
+	public List<String> getRemoved() {
+		return removed;
+	}
+
+	/**
+	 * @return the aliases of the entries which were replaced by a new one
+	 */
+	public List<String> getReplaced() {
+		return replaced;
+	}
+
+	/**
+	 * @return the aliases of all the entries added, removed or replaced, in the order of the snapshots
+	 */
+	public List<String> getChanged() {
+		return changed;
+	}
+
+	/**
+	 * @param alias of an entry
+	 * @return whether or not the event added, removed or replaced this entry
+	 */
+	public boolean isChanged(String alias) {
+		String key = Model.indexKey(alias);
+		return added.contains(key) || removed.contains(key) || replaced.contains(key);
+	}
+
+	/**
+	 * @return the path of the keystore, null if it has no file yet
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	public String toString() {
+		return "ModelEvent[ajoutées="+added+", supprimées="+removed+", remplacées="+replaced+", fichier="+path+"]";
+	}
+}
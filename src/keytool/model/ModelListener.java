@@ -0,0 +1,31 @@
+package keytool.model;
+
+/**
+ * Listener of the changes of a {@link Model}.
+ * The listeners are called after the change is published and out of the locks of the model,
+ * by one thread at a time and in the order of the changes : the thread which made a change,
+ * or the one which made a later change and sends the events queued meanwhile. A listener can
+ * read the model, but a Swing listener has to pass the event to the event dispatch thread itself.
+ * @author Michaël Muré & Théophile Helleboid
+ *
+ */
+public interface ModelListener {
+	/**
+	 * Called after entries are added, removed or replaced.
+	 * A batch sends only one event, at its end, with all the entries it changed.
+	 * @param event the changed entries
+	 */
+	void entriesChanged(ModelEvent event);
+
+	/**
+	 * Called after a keystore is created or opened : all the entries may have changed.
+	 * @param event the previous and the new entries
+	 */
+	void storeReloaded(ModelEvent event);
+
+	/**
+	 * Called after the keystore is saved, by the user or by a background save.
+	 * @param event the path of the file
+	 */
+	void storeSaved(ModelEvent event);
+}
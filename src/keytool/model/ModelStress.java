@@ -0,0 +1,326 @@
+package keytool.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.Key;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stress test of the concurrency of the {@link Model} : many threads read, modify, run batches,
+ * convert and save the same keystore at the same time, then the keystore is checked against
+ * the file saved last.
+ * The readers only read the identities created at the start, which are never modified ; each
+ * writer only touches its own aliases, so it knows which of them exist. Any error is then a
+ * bug of the Model. A thread still running long after the end of the test is reported as
+ * blocked, with its stack.
+ * @author Michaël Muré & Théophile Helleboid
+ *
+ */
+public class ModelStress {
+	/* Identités lues par les lecteurs */
+	private static final int IDENTITIES = 8;
+	/* Alias de chaque écrivain */
+	private static final int ALIASES = 16;
+	/* Délai au-delà de la fin du test après lequel un thread est considéré bloqué */
+	private static final long BLOCKED_MILLIS = 60000;
+
+	private final int threads;
+	private final long durationMillis;
+
+	/**
+	 * Create a stress test
+	 * @param threads number of threads working on the model
+	 * @param durationMillis duration of the test
+	 */
+	public ModelStress(int threads, long durationMillis) {
+		if(threads <= 0)
+			throw new IllegalArgumentException("Nombre de threads invalide");
+		if(durationMillis <= 0)
+			throw new IllegalArgumentException("Durée invalide");
+		this.threads = threads;
+		this.durationMillis = durationMillis;
+	}
+
+	/**
+	 * Run the test on a new keystore, saved in the temporary directory
+	 * @return the counts of operations and the errors
+	 * @throws ModelException if the keystore cannot be prepared
+	 */
+	public Report run() throws ModelException {
+		final File file;
+		try {
+			file = File.createTempFile("keytool-stress-", ".ks");
+		} catch (IOException e) {
+			throw new ModelException("Impossible de créer un fichier temporaire : "+e.getMessage());
+		}
+		final char[] password = "stress".toCharArray();
+		final Report report = new Report();
+		try {
+			final Model model = new Model();
+			model.newKeyStore(password);
+			IdentityGenerator.Report generated = new IdentityGenerator(model).generate("stress-%02d", "CN=stress-%02d", 0, IDENTITIES);
+			if(!generated.getErrors().isEmpty())
+				throw new ModelException("Identités non créées : "+generated.getErrors());
+			final Certificate certificate = model.getSnapshot().get("stress-00").getCertificate();
+			final Key key = model.recoverKey("stress-00");
+
+			final long deadline = System.currentTimeMillis() + durationMillis;
+			long start = System.nanoTime();
+			ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "model-stress");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			for(int i = 0; i < threads; i++) {
+				final int worker = i;
+				pool.execute(new Runnable() {
+					public void run() {
+						new Worker(model, worker, certificate, key, file, deadline, report).run();
+					}
+				});
+			}
+			pool.shutdown();
+			try {
+				if(!pool.awaitTermination(durationMillis + BLOCKED_MILLIS, TimeUnit.MILLISECONDS)) {
+					report.blocked(Thread.getAllStackTraces());
+					pool.shutdownNow();
+					return report;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ModelException("Test interrompu");
+			}
+			report.elapsedNanos = System.nanoTime() - start;
+
+			// Le fichier enregistré en dernier contient exactement les entrées publiées
+			model.saveAs(file.getPath());
+			Model saved = new Model();
+			saved.openKeyStore(file.getPath(), password);
+			KeyStoreDiff diff = KeyStoreDiff.compare(model, saved);
+			if(!diff.isEmpty())
+				report.error("fichier", "différences après réouverture : "+diff);
+			for(KeyStoreSnapshot.Entry entry : model.getSnapshot()) {
+				if(model.getEntryType(entry.getAlias()) != entry.getType())
+					report.error(entry.getAlias(), "index différent du keystore");
+			}
+			return report;
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Thread of the test, mixing the operations at random
+	 */
+	private static class Worker {
+		private final Model model;
+		private final int id;
+		private final Certificate certificate;
+		private final Key key;
+		private final File file;
+		private final long deadline;
+		private final Report report;
+		private final Random random;
+		/* Alias de ce thread présents dans le keystore */
+		private final Set<String> present = new HashSet<String>();
+
+		Worker(Model model, int id, Certificate certificate, Key key, File file, long deadline, Report report) {
+			this.model = model;
+			this.id = id;
+			this.certificate = certificate;
+			this.key = key;
+			this.file = file;
+			this.deadline = deadline;
+			this.report = report;
+			this.random = new Random(id);
+		}
+
+		void run() {
+			while(System.currentTimeMillis() < deadline) {
+				int op = random.nextInt(100);
+				String operation = "lecture";
+				try {
+					if(op < 60) {
+						read();
+						report.reads.incrementAndGet();
+					} else if(op < 85) {
+						operation = "écriture";
+						write(random.nextInt(ALIASES));
+						report.writes.incrementAndGet();
+					} else if(op < 97) {
+						operation = "lot";
+						batch();
+						report.batches.incrementAndGet();
+					} else if(op < 99) {
+						operation = "enregistrement";
+						model.saveAs(file.getPath());
+						report.saves.incrementAndGet();
+					} else {
+						operation = "conversion";
+						convert();
+						report.conversions.incrementAndGet();
+					}
+				} catch (ModelException e) {
+					report.error(Thread.currentThread().getName()+"-"+id, operation+" : "+e.getMessage());
+				} catch (RuntimeException e) {
+					report.error(Thread.currentThread().getName()+"-"+id, operation+" : "+e);
+				}
+			}
+		}
+
+		private String alias(int n) {
+			return "w"+id+"-"+n;
+		}
+
+		private void read() throws ModelException {
+			String alias = String.format("stress-%02d", random.nextInt(IDENTITIES));
+			KeyStoreSnapshot snapshot = model.getSnapshot();
+			if(snapshot.get(alias) == null || model.getEntryType(alias) != EntryType.PRIVATE_KEY)
+				throw new ModelException("identité "+alias+" perdue");
+			if(model.getKey(alias).key == null || model.getCertificate(alias) == null)
+				throw new ModelException("identité "+alias+" illisible");
+			// Un instantané ne change pas après sa publication
+			int size = snapshot.size();
+			int count = 0;
+			for(KeyStoreSnapshot.Entry entry : snapshot) {
+				if(entry.getType() == null)
+					throw new ModelException("entrée sans type "+entry.getAlias());
+				count++;
+			}
+			if(count != size)
+				throw new ModelException("instantané modifié : "+count+" entrées pour "+size);
+		}
+
+		/**
+		 * Add or delete an alias of this thread, and check the result
+		 */
+		private void write(int n) throws ModelException {
+			String alias = alias(n);
+			if(present.remove(alias)) {
+				model.delEntry(alias);
+				if(model.getSnapshot().contains(alias))
+					throw new ModelException("alias "+alias+" toujours présent");
+			} else {
+				if(random.nextBoolean())
+					model.addCertificate(alias, certificate);
+				else
+					model.addPrivateKey(alias, key, certificate);
+				present.add(alias);
+				if(!model.getSnapshot().contains(alias))
+					throw new ModelException("alias "+alias+" absent");
+			}
+		}
+
+		/**
+		 * Modify several aliases in one batch : the thread sees its modifications during the
+		 * batch, the others see none of them until the end
+		 */
+		private void batch() throws ModelException {
+			final int first = random.nextInt(ALIASES);
+			final int count = 1 + random.nextInt(4);
+			model.runBatch(new Model.Batch() {
+				public void run(Model model) throws ModelException {
+					for(int i = 0; i < count; i++)
+						write((first + i) % ALIASES);
+				}
+			});
+		}
+
+		/**
+		 * Convert the keystore inside a batch, as the convert command of a script :
+		 * the conversion runs while the thread holds the exclusive lock
+		 */
+		private void convert() throws ModelException {
+			model.runBatch(new Model.Batch() {
+				public void run(Model model) throws ModelException {
+					write(random.nextInt(ALIASES));
+					Model target = new Model();
+					target.newKeyStore("converti".toCharArray(), KeyStoreFormat.PKCS12);
+					KeyStoreConverter.Report converted = new KeyStoreConverter(2, 4).convert(model, target);
+					if(!converted.getErrors().isEmpty())
+						throw new ModelException("conversion : "+converted.getErrors());
+					if(target.getSnapshot().size() != model.getSnapshot().size())
+						throw new ModelException("conversion incomplète : "+converted);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Result of a stress test
+	 */
+	public static class Report {
+		private final AtomicLong reads = new AtomicLong();
+		private final AtomicLong writes = new AtomicLong();
+		private final AtomicLong batches = new AtomicLong();
+		private final AtomicLong saves = new AtomicLong();
+		private final AtomicLong conversions = new AtomicLong();
+		private long elapsedNanos;
+		private final SortedMap<String, String> errors = new TreeMap<String, String>();
+		private final List<String> blocked = new ArrayList<String>();
+
+		Report() {
+		}
+
+		synchronized void error(String where, String message) {
+			// Seule la première erreur de chaque thread est gardée
+			if(!errors.containsKey(where))
+				errors.put(where, message);
+		}
+
+		void blocked(Map<Thread, StackTraceElement[]> stacks) {
+			for(Map.Entry<Thread, StackTraceElement[]> stack : stacks.entrySet()) {
+				if(!stack.getKey().getName().startsWith("model-stress"))
+					continue;
+				StringBuilder trace = new StringBuilder(stack.getKey().getName());
+				for(StackTraceElement element : stack.getValue())
+					trace.append("\n\tat ").append(element);
+				blocked.add(trace.toString());
+			}
+		}
+
+		/**
+		 * @return the first error of each thread, and the errors found after the test
+		 */
+		public synchronized Map<String, String> getErrors() {
+			return Collections.unmodifiableMap(new TreeMap<String, String>(errors));
+		}
+
+		/**
+		 * @return the stacks of the threads still running long after the end of the test
+		 */
+		public List<String> getBlocked() {
+			return Collections.unmodifiableList(blocked);
+		}
+
+		/**
+		 * @return whether or not the test ended without error nor blocked thread
+		 */
+		public boolean isSuccess() {
+			return blocked.isEmpty() && getErrors().isEmpty();
+		}
+
+		public String toString() {
+			long operations = reads.get() + writes.get() + batches.get() + saves.get() + conversions.get();
+			return operations+" opérations ("+reads+" lectures, "+writes+" écritures, "+batches+" lots, "
+					+saves+" enregistrements, "+conversions+" conversions) en "+elapsedNanos / 1000000+" ms, "
+					+getErrors().size()+" erreurs, "+blocked.size()+" threads bloqués";
+		}
+	}
+}
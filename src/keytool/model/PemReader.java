@@ -0,0 +1,272 @@
+package keytool.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import org.bouncycastle.util.encoders.Base64;
+
+/**
+ * Streaming reader of the objects of a PEM or DER file.
+ * The file is read through a channel with a fixed buffer, and the objects are returned
+ * one at a time, so a bundle of any size (a certificate chain, a bundle of hundreds of
+ * root certificates, concatenated keys...) is read with a bounded memory : the buffer
+ * and the object being read.
+ *
+ * A file starting with a DER SEQUENCE is read as a series of DER objects, whose type is
+ * unknown. Otherwise the text between the PEM blocks is ignored, like the output of
+ * "openssl x509 -text", and the headers of a block are skipped.
+ * @author Michaël Muré & Théophile Helleboid
+ *
+ */
+public class PemReader implements Closeable {
+	/** Maximum size of an object, in bytes */
+	public static final int MAX_OBJECT_SIZE = 1024 * 1024;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_LINE_LENGTH = 64 * 1024;
+	private static final int DER_SEQUENCE = 0x30;
+	private static final String BEGIN = "-----BEGIN ";
+	private static final String END = "-----END ";
+	private static final String DASHES = "-----";
+
+	private final ReadableByteChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private boolean eof;
+	private Boolean der;
+	private long line;
+
+	/**
+	 * Create a reader over a channel
+	 * @param channel to read, closed with the reader
+	 */
+	public PemReader(ReadableByteChannel channel) {
+		this.channel = channel;
+		this.buffer.flip();
+	}
+
+	/**
+	 * Open a file
+	 * @param path of the file
+	 * @return the reader of the file
+	 * @throws IOException
+	 */
+	public static PemReader open(String path) throws IOException {
+		return new PemReader(new FileInputStream(path).getChannel());
+	}
+
+	/**
+	 * Read the next object
+	 * @return the object, or null at the end of the file
+	 * @throws IOException if the file is malformed
+	 */
+	public PemObject next() throws IOException {
+		if(der == null) {
+			int first = peek();
+			if(first < 0)
+				return null;
+			der = Boolean.valueOf(first == DER_SEQUENCE);
+		}
+		return der.booleanValue() ? nextDer() : nextPem();
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private PemObject nextPem() throws IOException {
+		String text;
+		// Recherche du début d'un bloc
+		do {
+			text = readLine();
+			if(text == null)
+				return null;
+		} while(!text.startsWith(BEGIN));
+		String type = label(text, BEGIN);
+		long start = line;
+
+		StringBuilder base64 = new StringBuilder();
+		while(true) {
+			text = readLine();
+			if(text == null)
+				throw new IOException("Bloc "+type+" de la ligne "+start+" non terminé");
+			if(text.startsWith(END))
+				break;
+			// En-têtes du bloc (Proc-Type, DEK-Info...)
+			if(text.indexOf(':') >= 0)
+				continue;
+			base64.append(text.trim());
+			if(base64.length() > MAX_OBJECT_SIZE / 3 * 4)
+				throw new IOException("Bloc "+type+" de la ligne "+start+" trop grand");
+		}
+		if(!label(text, END).equals(type))
+			throw new IOException("Fin du bloc "+type+" de la ligne "+start+" incorrecte");
+		try {
+			return new PemObject(type, Base64.decode(base64.toString()));
+		} catch (RuntimeException e) {
+			throw new IOException("Bloc "+type+" de la ligne "+start+" mal encodé");
+		}
+	}
+
+	private PemObject nextDer() throws IOException {
+		int tag = read();
+		if(tag < 0)
+			return null;
+		if(tag != DER_SEQUENCE)
+			throw new IOException("Objet DER incorrect");
+		int first = read();
+		if(first < 0)
+			throw new IOException("Objet DER tronqué");
+		int length;
+		int headerLength;
+		if(first < 0x80) {
+			length = first;
+			headerLength = 2;
+		} else {
+			int count = first & 0x7f;
+			if(count == 0 || count > 3)
+				throw new IOException("Longueur DER non supportée");
+			length = 0;
+			for(int i = 0; i < count; i++) {
+				int b = read();
+				if(b < 0)
+					throw new IOException("Objet DER tronqué");
+				length = (length << 8) | b;
+			}
+			headerLength = 2 + count;
+		}
+		if(length > MAX_OBJECT_SIZE)
+			throw new IOException("Objet DER trop grand");
+
+		ByteArrayOutputStream content = new ByteArrayOutputStream(headerLength + length);
+		content.write(tag);
+		content.write(first);
+		if(first >= 0x80) {
+			for(int shift = 8 * ((first & 0x7f) - 1); shift >= 0; shift -= 8)
+				content.write(length >>> shift);
+		}
+		int remaining = length;
+		while(remaining > 0) {
+			if(!fill())
+				throw new IOException("Objet DER tronqué");
+			int n = Math.min(remaining, buffer.remaining());
+			content.write(buffer.array(), buffer.arrayOffset() + buffer.position(), n);
+			buffer.position(buffer.position() + n);
+			remaining -= n;
+		}
+		return new PemObject(null, content.toByteArray());
+	}
+
+	/**
+	 * @param text line of a delimiter
+	 * @param prefix of the delimiter
+	 * @return the type between the prefix and the final dashes
+	 */
+	private static String label(String text, String prefix) {
+		String label = text.substring(prefix.length()).trim();
+		if(label.endsWith(DASHES))
+			label = label.substring(0, label.length() - DASHES.length());
+		return label.trim();
+	}
+
+	/**
+	 * @return the next line without its end, or null at the end of the file
+	 * @throws IOException if the line is too long
+	 */
+	private String readLine() throws IOException {
+		StringBuilder text = new StringBuilder();
+		int c = read();
+		if(c < 0)
+			return null;
+		while(c >= 0 && c != '\n') {
+			if(c != '\r')
+				text.append((char) c);
+			if(text.length() > MAX_LINE_LENGTH)
+				throw new IOException("Ligne "+(line + 1)+" trop longue");
+			c = read();
+		}
+		line++;
+		return text.toString();
+	}
+
+	private int read() throws IOException {
+		if(!fill())
+			return -1;
+		return buffer.get() & 0xff;
+	}
+
+	private int peek() throws IOException {
+		if(!fill())
+			return -1;
+		return buffer.get(buffer.position()) & 0xff;
+	}
+
+	/**
+	 * Refill the buffer once it is empty
+	 * @return false at the end of the file
+	 * @throws IOException
+	 */
+	private boolean fill() throws IOException {
+		while(!buffer.hasRemaining()) {
+			if(eof)
+				return false;
+			buffer.clear();
+			int n = channel.read(buffer);
+			buffer.flip();
+			if(n < 0)
+				eof = true;
+		}
+		return true;
+	}
+
+	/**
+	 * An object read from a PEM or DER file
+	 */
+	public static class PemObject {
+		private final String type;
+		private final byte[] content;
+
+		PemObject(String type, byte[] content) {
+			this.type = type;
+			this.content = content;
+		}
+
+		/**
+		 * @return the type of a PEM block, like "CERTIFICATE" or "RSA PRIVATE KEY", null for a DER object
+		 */
+		public String getType() {
+			return type;
+		}
+
+		/**
+		 * @return the DER encoding of the object
+		 */
+		public byte[] getContent() {
+			return content;
+		}
+
+		/**
+		 * @return whether or not the object is a private key : RSA, DSA, EC or PKCS#8
+		 */
+		public boolean isPrivateKey() {
+			return type != null && type.endsWith("PRIVATE KEY");
+		}
+
+		/**
+		 * @return whether or not the object may be a PKCS#10 request : a PEM request or a DER object
+		 */
+		public boolean isCertificateRequest() {
+			return type == null || type.equals("CERTIFICATE REQUEST") || type.equals("NEW CERTIFICATE REQUEST");
+		}
+
+		/**
+		 * @return whether or not the object may be a certificate : a PEM certificate or a DER object
+		 */
+		public boolean isCertificate() {
+			return type == null || type.equals("CERTIFICATE") || type.equals("X509 CERTIFICATE");
+		}
+	}
+}
@@ -0,0 +1,291 @@
+package keytool.model;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable sorted map of strings, with structural sharing.
+ * It is an AVL tree whose nodes are never modified : an insertion or a removal
+ * copies only the path from the root to the changed node, O(log n) nodes,
+ * and shares all the other nodes with the previous map.
+ * @author Michaël Muré & Théophile Helleboid
+ *
+ * @param <V> type of the values
+ */
+final class PersistentSortedMap<V> implements Iterable<Map.Entry<String, V>> {
+	@SuppressWarnings("rawtypes")
+	private static final PersistentSortedMap EMPTY = new PersistentSortedMap<Object>(null);
+
+	private final Node<V> root;
+
+	private PersistentSortedMap(Node<V> root) {
+		this.root = root;
+	}
+
+	/**
+	 * @return the empty map
+	 */
+	@SuppressWarnings("unchecked")
+	static <V> PersistentSortedMap<V> empty() {
+		return EMPTY;
+	}
+
+	/**
+	 * @param key
+	 * @return the value of the key, or null
+	 */
+	V get(String key) {
+		Node<V> node = root;
+		while(node != null) {
+			int c = key.compareTo(node.key);
+			if(c == 0)
+				return node.value;
+			node = c < 0 ? node.left : node.right;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the number of keys
+	 */
+	int size() {
+		return root == null ? 0 : root.size;
+	}
+
+	/**
+	 * Positional access, in O(log n) thanks to the size of the subtrees
+	 * @param index position in the order of the keys
+	 * @return the entry at this position
+	 */
+	Map.Entry<String, V> getAt(int index) {
+		if(index < 0 || index >= size())
+			throw new IndexOutOfBoundsException("Index : "+index+", taille : "+size());
+		Node<V> node = root;
+		while(true) {
+			int left = node.left == null ? 0 : node.left.size;
+			if(index == left)
+				return node;
+			if(index < left) {
+				node = node.left;
+			} else {
+				index -= left + 1;
+				node = node.right;
+			}
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return the position of the key, or (-(insertion point) - 1) if the key is not in the map
+	 */
+	int rank(String key) {
+		Node<V> node = root;
+		int before = 0;
+		while(node != null) {
+			int left = node.left == null ? 0 : node.left.size;
+			int c = key.compareTo(node.key);
+			if(c == 0)
+				return before + left;
+			if(c < 0) {
+				node = node.left;
+			} else {
+				before += left + 1;
+				node = node.right;
+			}
+		}
+		return -before - 1;
+	}
+
+	/**
+	 * @param key
+	 * @param value
+	 * @return a map where the key has the value, sharing the other nodes with this one
+	 */
+	PersistentSortedMap<V> put(String key, V value) {
+		Node<V> r = put(root, key, value);
+		return r == root ? this : new PersistentSortedMap<V>(r);
+	}
+
+	/**
+	 * @param key
+	 * @return a map without the key, sharing the other nodes with this one
+	 */
+	PersistentSortedMap<V> remove(String key) {
+		Node<V> r = remove(root, key);
+		return r == root ? this : new PersistentSortedMap<V>(r);
+	}
+
+	/**
+	 * Iterate over the entries, in the order of the keys
+	 */
+	public Iterator<Map.Entry<String, V>> iterator() {
+		return iterator(null);
+	}
+
+	/**
+	 * Iterate over the entries from a key, in the order of the keys.
+	 * Finding the first entry costs O(log n), then each entry costs O(1) on average.
+	 * @param from first key, included, or null to start at the first entry
+	 */
+	Iterator<Map.Entry<String, V>> iterator(final String from) {
+		return new Iterator<Map.Entry<String, V>>() {
+			// Pile des noeuds dont il reste à visiter la racine et le sous-arbre droit
+			private final List<Node<V>> stack = new ArrayList<Node<V>>();
+			{
+				if(from == null) {
+					pushLeft(root);
+				} else {
+					// Seuls les noeuds à partir de la clé sont empilés
+					for(Node<V> node = root; node != null; ) {
+						if(from.compareTo(node.key) <= 0) {
+							stack.add(node);
+							node = node.left;
+						} else {
+							node = node.right;
+						}
+					}
+				}
+			}
+
+			private void pushLeft(Node<V> node) {
+				for(; node != null; node = node.left)
+					stack.add(node);
+			}
+
+			public boolean hasNext() {
+				return !stack.isEmpty();
+			}
+
+			public Map.Entry<String, V> next() {
+				if(stack.isEmpty())
+					throw new NoSuchElementException();
+				Node<V> node = stack.remove(stack.size() - 1);
+				pushLeft(node.right);
+				return node;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private static <V> Node<V> put(Node<V> node, String key, V value) {
+		if(node == null)
+			return new Node<V>(key, value, null, null);
+		int c = key.compareTo(node.key);
+		if(c == 0)
+			return node.value == value ? node : new Node<V>(key, value, node.left, node.right);
+		if(c < 0) {
+			Node<V> left = put(node.left, key, value);
+			return left == node.left ? node : balance(node.key, node.value, left, node.right);
+		}
+		Node<V> right = put(node.right, key, value);
+		return right == node.right ? node : balance(node.key, node.value, node.left, right);
+	}
+
+	private static <V> Node<V> remove(Node<V> node, String key) {
+		if(node == null)
+			return null;
+		int c = key.compareTo(node.key);
+		if(c < 0) {
+			Node<V> left = remove(node.left, key);
+			return left == node.left ? node : balance(node.key, node.value, left, node.right);
+		}
+		if(c > 0) {
+			Node<V> right = remove(node.right, key);
+			return right == node.right ? node : balance(node.key, node.value, node.left, right);
+		}
+		if(node.left == null)
+			return node.right;
+		if(node.right == null)
+			return node.left;
+		// Le successeur prend la place du noeud supprimé
+		Node<V> min = node.right;
+		while(min.left != null)
+			min = min.left;
+		return balance(min.key, min.value, node.left, removeMin(node.right));
+	}
+
+	private static <V> Node<V> removeMin(Node<V> node) {
+		if(node.left == null)
+			return node.right;
+		return balance(node.key, node.value, removeMin(node.left), node.right);
+	}
+
+	private static int height(Node<?> node) {
+		return node == null ? 0 : node.height;
+	}
+
+	/**
+	 * Build a node, with at most one rotation to restore the AVL balance
+	 */
+	private static <V> Node<V> balance(String key, V value, Node<V> left, Node<V> right) {
+		int diff = height(left) - height(right);
+		if(diff > 1) {
+			if(height(left.left) < height(left.right))
+				left = rotateLeft(left);
+			return rotateRight(key, value, left, right);
+		}
+		if(diff < -1) {
+			if(height(right.right) < height(right.left))
+				right = rotateRight(right);
+			return rotateLeft(key, value, left, right);
+		}
+		return new Node<V>(key, value, left, right);
+	}
+
+	private static <V> Node<V> rotateLeft(Node<V> n) {
+		return rotateLeft(n.key, n.value, n.left, n.right);
+	}
+
+	private static <V> Node<V> rotateRight(Node<V> n) {
+		return rotateRight(n.key, n.value, n.left, n.right);
+	}
+
+	private static <V> Node<V> rotateLeft(String key, V value, Node<V> left, Node<V> right) {
+		return new Node<V>(right.key, right.value,
+				new Node<V>(key, value, left, right.left), right.right);
+	}
+
+	private static <V> Node<V> rotateRight(String key, V value, Node<V> left, Node<V> right) {
+		return new Node<V>(left.key, left.value,
+				left.left, new Node<V>(key, value, left.right, right));
+	}
+
+	/**
+	 * Immutable node of the tree
+	 */
+	private static final class Node<V> implements Map.Entry<String, V> {
+		final String key;
+		final V value;
+		final Node<V> left;
+		final Node<V> right;
+		final int height;
+		final int size;
+
+		Node(String key, V value, Node<V> left, Node<V> right) {
+			this.key = key;
+			this.value = value;
+			this.left = left;
+			this.right = right;
+			this.height = Math.max(height(left), height(right)) + 1;
+			this.size = (left == null ? 0 : left.size) + (right == null ? 0 : right.size) + 1;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public V getValue() {
+			return value;
+		}
+
+		public V setValue(V value) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
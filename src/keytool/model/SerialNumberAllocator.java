@@ -0,0 +1,68 @@
+package keytool.model;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocator of the serial numbers of the certificates, without lock.
+ * A serial is made of a random prefix of 63 bits, drawn once per allocator, and a
+ * sequence of 64 bits : the serials of an allocator never collide, and two allocators,
+ * in this process or in another one, only collide if they draw the same prefix.
+ * The serials are positive and fit the 20 octets allowed by RFC 5280.
+ *
+ * Each thread reserves a block of the sequence at once and allocates from it alone, so
+ * the threads of a bulk issuance do not contend on the shared counter.
+ * @author Michaël Muré & Théophile Helleboid
+ *
+ */
+public final class SerialNumberAllocator {
+	/* Numéros réservés d'un coup par thread */
+	private static final int BLOCK = 1024;
+
+	private static final SerialNumberAllocator DEFAULT = new SerialNumberAllocator(new SecureRandom());
+
+	private final BigInteger prefix;
+	private final AtomicLong sequence = new AtomicLong();
+	/* Prochain numéro et fin du bloc réservé par le thread */
+	private final ThreadLocal<long[]> blocks = new ThreadLocal<long[]>() {
+		protected long[] initialValue() {
+			return new long[2];
+		}
+	};
+
+	/**
+	 * Create an allocator with its own prefix
+	 * @param random drawing the prefix
+	 */
+	public SerialNumberAllocator(SecureRandom random) {
+		// Bit de poids fort fixé : tous les numéros ont la même longueur
+		this.prefix = new BigInteger(62, random).setBit(62).shiftLeft(64);
+	}
+
+	/**
+	 * @return the allocator shared by the Keytool
+	 */
+	public static SerialNumberAllocator getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * @return a serial number never returned before by this allocator
+	 */
+	public BigInteger next() {
+		long[] block = blocks.get();
+		if(block[0] == block[1]) {
+			block[0] = sequence.getAndAdd(BLOCK);
+			block[1] = block[0] + BLOCK;
+		}
+		return prefix.or(BigInteger.valueOf(block[0]++));
+	}
+
+	/**
+	 * @return the number of serials reserved by the threads, allocated or not yet
+	 */
+	public long getReservedCount() {
+		return sequence.get();
+	}
+}
@@ -4,10 +4,13 @@ import java.awt.event.ActionListener;
 import java.awt.event.WindowListener;
 
 import javax.swing.JButton;
+import javax.swing.JComboBox;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JTextField;
 
+import keytool.model.KeyAlgorithm;
+
 /**
  * This class is the window for creating a key.
  * It holds a list of text field to configure the new key.
@@ -32,6 +35,8 @@ public class CreateKeyWindow extends JFrame {
 	private JTextField FldCity;
 	private JTextField FldState;
 	private JTextField FldCountry;
+	private JLabel LblAlgorithm;
+	private JComboBox CbAlgorithm;
 	
 	public CreateKeyWindow() {
 		initComponents();
@@ -55,11 +60,13 @@ public class CreateKeyWindow extends JFrame {
 		FldState = new JTextField();
 		LblCountry = new JLabel();
 		FldCountry = new JTextField();
+		LblAlgorithm = new JLabel();
+		CbAlgorithm = new JComboBox();
 		BtnCancel = new JButton();
 		BtnValidate = new JButton();
 
 		setTitle("Creation d'une clé");
-		getContentPane().setLayout(new java.awt.GridLayout(8, 2, 10, 10));
+		getContentPane().setLayout(new java.awt.GridLayout(9, 2, 10, 10));
 
 		LblAlias.setText("Nom de la clé");
 		getContentPane().add(LblAlias);
@@ -89,6 +96,16 @@ public class CreateKeyWindow extends JFrame {
 		getContentPane().add(LblCountry);
 		getContentPane().add(FldCountry);
 
+		LblAlgorithm.setText("Algorithme");
+		getContentPane().add(LblAlgorithm);
+		// Seuls les algorithmes du runtime sont proposés (Ed25519 demande Java 15)
+		for(KeyAlgorithm algorithm : KeyAlgorithm.values()) {
+			if(algorithm.isAvailable())
+				CbAlgorithm.addItem(algorithm);
+		}
+		CbAlgorithm.setSelectedItem(KeyAlgorithm.DEFAULT);
+		getContentPane().add(CbAlgorithm);
+
 		BtnCancel.setText("Annuler");
 		getContentPane().add(BtnCancel);
 		BtnValidate.setText("Valider");
@@ -108,6 +125,7 @@ public class CreateKeyWindow extends JFrame {
 		this.FldCity.setText("");
 		this.FldState.setText("");
 		this.FldCountry.setText("");
+		this.CbAlgorithm.setSelectedItem(KeyAlgorithm.DEFAULT);
 	}
 	
 	/**
@@ -190,4 +208,12 @@ public class CreateKeyWindow extends JFrame {
 		return this.FldCountry.getText();
 	}
 	
+	/**
+	 * 
+	 * @return the algorithm of the key.
+	 */
+	public KeyAlgorithm getAlgorithmField() {
+		return (KeyAlgorithm) this.CbAlgorithm.getSelectedItem();
+	}
+	
 }
@@ -0,0 +1,204 @@
+package keytool.view;
+
+import java.util.Iterator;
+import java.util.List;
+
+import javax.swing.AbstractListModel;
+
+import keytool.model.KeyStoreSnapshot;
+import keytool.model.ModelEvent;
+
+/**
+ * List of aliases shown by the main window, read directly from a snapshot of the Model.
+ * The model does not copy the aliases : it reads the persistent tree of the snapshot,
+ * with positional access in O(log n). When a new snapshot is shown, only the added, removed
+ * or replaced entries are notified to the list, so its selection and layout are kept.
+ * After a change of the Model, the lines of the entries it touched are found in O(log n) each ;
+ * the whole lists are compared only after a large batch, or to catch up with a skipped change.
+ *
+ * Must be used from the event dispatch thread, like the JList it feeds.
+ */
+public class EntryListModel extends AbstractListModel {
+
+	private static final long serialVersionUID = -4164725719836087515L;
+	/* Au-delà, les listes entières sont comparées : les changements sont notifiés par intervalles */
+	private static final int BULK_CHANGES = 256;
+
+	private final boolean keys;
+	private KeyStoreSnapshot.EntryList entries;
+
+	/**
+	 * @param keys whether the model lists the keys, or the certificates
+	 */
+	private EntryListModel(boolean keys) {
+		this.keys = keys;
+	}
+
+	/**
+	 * @return an empty list of the keys of the keystore
+	 */
+	public static EntryListModel keys() {
+		return new EntryListModel(true);
+	}
+
+	/**
+	 * @return an empty list of the certificates of the keystore
+	 */
+	public static EntryListModel certificates() {
+		return new EntryListModel(false);
+	}
+
+	public int getSize() {
+		return entries == null ? 0 : entries.size();
+	}
+
+	/**
+	 * @return the alias at this position
+	 */
+	public Object getElementAt(int index) {
+		return entries.get(index).getAlias();
+	}
+
+	/**
+	 * @param alias of an entry
+	 * @return the position of the entry, or -1 if it is not in the list
+	 */
+	public int indexOf(String alias) {
+		return entries == null ? -1 : entries.indexOf(alias);
+	}
+
+	/**
+	 * Empty the list
+	 */
+	public void clear() {
+		int size = getSize();
+		entries = null;
+		if(size > 0)
+			fireIntervalRemoved(this, 0, size - 1);
+	}
+
+	/**
+	 * Show the entries of a snapshot, notifying the differences with the entries shown
+	 * @param snapshot of the Model
+	 */
+	public void update(KeyStoreSnapshot snapshot) {
+		KeyStoreSnapshot.EntryList next = list(snapshot);
+		KeyStoreSnapshot.EntryList previous = this.entries;
+		this.entries = next;
+		if(next.isSameAs(previous))
+			return;
+		if(previous == null || previous.isEmpty()) {
+			if(!next.isEmpty())
+				fireIntervalAdded(this, 0, next.size() - 1);
+			return;
+		}
+		diff(previous, next);
+	}
+
+	/**
+	 * Show the entries after a change of the Model, notifying only the lines it touched.
+	 * If the list does not show the entries before the change, the whole lists are compared.
+	 * @param event of the Model
+	 */
+	public void update(ModelEvent event) {
+		KeyStoreSnapshot.EntryList before = list(event.getPrevious());
+		List<String> changed = event.getChanged();
+		if(!before.isSameAs(this.entries) || changed.size() > BULK_CHANGES) {
+			update(event.getSnapshot());
+			return;
+		}
+		KeyStoreSnapshot.EntryList next = list(event.getSnapshot());
+		this.entries = next;
+		// Les alias sont dans l'ordre de la liste : avant chacun, la liste affichée est déjà la nouvelle
+		int shift = 0;
+		for(String alias : changed) {
+			int from = before.indexOf(alias);
+			int to = next.indexOf(alias);
+			if(from >= 0 && to >= 0) {
+				if(before.get(from) != next.get(to))
+					fireContentsChanged(this, to, to);
+			} else if(to >= 0) {
+				fireIntervalAdded(this, to, to);
+				shift++;
+			} else if(from >= 0) {
+				fireIntervalRemoved(this, from + shift, from + shift);
+				shift--;
+			}
+		}
+	}
+
+	private KeyStoreSnapshot.EntryList list(KeyStoreSnapshot snapshot) {
+		return keys ? snapshot.keys() : snapshot.certificates();
+	}
+
+	/**
+	 * Notify the differences of two lists, both sorted by alias.
+	 * The events are sent in the order of the list, each index counted after the events
+	 * before it, and consecutive changes of the same kind are sent as one interval.
+	 */
+	private void diff(KeyStoreSnapshot.EntryList previous, KeyStoreSnapshot.EntryList next) {
+		Iterator<KeyStoreSnapshot.Entry> before = previous.iterator();
+		Iterator<KeyStoreSnapshot.Entry> after = next.iterator();
+		KeyStoreSnapshot.Entry a = before.hasNext() ? before.next() : null;
+		KeyStoreSnapshot.Entry b = after.hasNext() ? after.next() : null;
+		Interval interval = new Interval();
+		int index = 0;
+		while(a != null || b != null) {
+			int c = a == null ? 1 : b == null ? -1 : a.getAlias().compareTo(b.getAlias());
+			if(c < 0) {
+				// Retirée : l'élément suivant prend sa place
+				interval.extend(Interval.REMOVED, index);
+				a = before.hasNext() ? before.next() : null;
+			} else if(c > 0) {
+				interval.extend(Interval.ADDED, index++);
+				b = after.hasNext() ? after.next() : null;
+			} else {
+				if(a != b)
+					interval.extend(Interval.CHANGED, index);
+				else
+					interval.flush();
+				index++;
+				a = before.hasNext() ? before.next() : null;
+				b = after.hasNext() ? after.next() : null;
+			}
+		}
+		interval.flush();
+	}
+
+	/**
+	 * Consecutive changes of the same kind, waiting to be notified
+	 */
+	private class Interval {
+		static final int NONE = 0;
+		static final int ADDED = 1;
+		static final int REMOVED = 2;
+		static final int CHANGED = 3;
+
+		private int kind = NONE;
+		private int first;
+		private int last;
+
+		void extend(int kind, int index) {
+			// Les retraits successifs ont tous lieu au même index
+			boolean follows = kind == REMOVED ? index == first : index == last + 1;
+			if(this.kind == kind && follows) {
+				last++;
+				return;
+			}
+			flush();
+			this.kind = kind;
+			this.first = index;
+			this.last = index;
+		}
+
+		void flush() {
+			if(kind == ADDED)
+				fireIntervalAdded(EntryListModel.this, first, last);
+			else if(kind == REMOVED)
+				fireIntervalRemoved(EntryListModel.this, first, last);
+			else if(kind == CHANGED)
+				fireContentsChanged(EntryListModel.this, first, last);
+			kind = NONE;
+		}
+	}
+}
@@ -4,7 +4,6 @@ import java.awt.event.ActionListener;
 import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
 
-import javax.swing.DefaultListModel;
 import javax.swing.GroupLayout;
 import javax.swing.JButton;
 import javax.swing.JFrame;
@@ -12,12 +11,14 @@ import javax.swing.JList;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
+import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
 import javax.swing.JSplitPane;
 import javax.swing.JTabbedPane;
 import javax.swing.JTextArea;
 import javax.swing.KeyStroke;
 import javax.swing.LayoutStyle;
+import javax.swing.ListModel;
 import javax.swing.ListSelectionModel;
 import javax.swing.WindowConstants;
 import javax.swing.event.ChangeListener;
@@ -37,6 +38,8 @@ public class MainWindow extends JFrame {
     private JButton BtnImport;
     private JButton BtnDelete;
     private JButton BtnNewKey;
+    private JButton BtnCancelTask;
+    private JProgressBar ProgressTask;
     private JMenuItem ItemNewKeyStore;
     private JMenuItem ItemOpen;
     private JMenuItem ItemSave;
@@ -70,6 +73,8 @@ public class MainWindow extends JFrame {
         this.BtnExport = new JButton();
         this.BtnDelete = new JButton();
         this.BtnNewKey = new JButton();
+        this.BtnCancelTask = new JButton();
+        this.ProgressTask = new JProgressBar();
         this.SplitPanel = new JSplitPane();
         this.TabbedPanel = new JTabbedPane();
         this.ScrollKeyPanel = new JScrollPane();
@@ -94,14 +99,23 @@ public class MainWindow extends JFrame {
         BtnExport.setText("Exporter");
         BtnDelete.setText("Supprimer");
         BtnNewKey.setText("Créer une nouvelle clé");
+        BtnCancelTask.setText("Annuler");
+
+        /* Progression des opérations en arrière-plan */
+        ProgressTask.setStringPainted(true);
+        ProgressTask.setVisible(false);
+        BtnCancelTask.setVisible(false);
 
         /* Liste Clés */
         ScrollKeyPanel.setViewportView(ListKeys);
         ListKeys.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        // Hauteur fixe : les lignes ne sont mesurées que pour la largeur, qui suit l'alias le plus long
+        fixCellHeight(ListKeys);
         
         /* Liste Certificats */
         ScrollCertificatPanel.setViewportView(ListCertificates);
         ListCertificates.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        fixCellHeight(ListCertificates);
         
         /* TabbedPanel */
         TabbedPanel.addTab("Clés", ScrollKeyPanel);
@@ -160,7 +174,11 @@ public class MainWindow extends JFrame {
                 .addComponent(BtnDelete)
                 .addPreferredGap(LayoutStyle.ComponentPlacement.RELATED)
                 .addComponent(BtnNewKey)
-                .addContainerGap(451, Short.MAX_VALUE))
+                .addPreferredGap(LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(ProgressTask, GroupLayout.DEFAULT_SIZE, GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                .addPreferredGap(LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(BtnCancelTask)
+                .addContainerGap())
             .addComponent(SplitPanel, GroupLayout.DEFAULT_SIZE, 590, Short.MAX_VALUE)
         );
         layout.setVerticalGroup(
@@ -172,12 +190,23 @@ public class MainWindow extends JFrame {
                     .addComponent(BtnImport)
                     .addComponent(BtnExport)
                     .addComponent(BtnDelete)
-                    .addComponent(BtnNewKey)))
+                    .addComponent(BtnNewKey)
+                    .addComponent(ProgressTask)
+                    .addComponent(BtnCancelTask)))
         );
 
         pack();
     }
 
+    /**
+     * Give all the cells of a list the height of one line of its renderer
+     * @param list whose cells are all one line high
+     */
+    private static void fixCellHeight(JList list) {
+        list.setFixedCellHeight(list.getCellRenderer()
+                .getListCellRendererComponent(list, "Alias", 0, false, false).getPreferredSize().height);
+    }
+
     /**
      * Add an action listener to the quit item
      * @param actLst
@@ -275,19 +304,64 @@ public class MainWindow extends JFrame {
     }
 
     /**
-     * Set the key list
+     * Add an action listener to the cancel button of the background operations
+     * @param actLst
+     */
+    public void addBtnCancelTaskListener(ActionListener actLst) {
+    	this.BtnCancelTask.addActionListener(actLst);
+    }
+
+    /**
+     * Show the progress of a background operation, not yet measured.
+     * The keystore cannot be replaced until the progress is hidden.
+     * @param message describing the operation
+     * @param cancellable whether or not the cancel button is enabled
+     */
+    public void showProgress(String message, boolean cancellable) {
+    	this.ProgressTask.setIndeterminate(true);
+    	this.ProgressTask.setString(message);
+    	this.ProgressTask.setVisible(true);
+    	this.BtnCancelTask.setEnabled(cancellable);
+    	this.BtnCancelTask.setVisible(true);
+    	this.ItemNewKeyStore.setEnabled(false);
+    	this.ItemOpen.setEnabled(false);
+    }
+
+    /**
+     * Set the progress of the background operation
+     * @param percent done
+     */
+    public void setProgress(int percent) {
+    	this.ProgressTask.setIndeterminate(false);
+    	this.ProgressTask.setValue(percent);
+    }
+
+    /**
+     * Hide the progress, at the end of the background operation
+     */
+    public void hideProgress() {
+    	this.ProgressTask.setVisible(false);
+    	this.BtnCancelTask.setVisible(false);
+    	this.ItemNewKeyStore.setEnabled(true);
+    	this.ItemOpen.setEnabled(true);
+    }
+
+    /**
+     * Set the key list ; setting the list already shown keeps the selection
      * @param keysList
      */
-    public void setKeysList(DefaultListModel keysList) {
-    	this.ListKeys.setModel(keysList);
+    public void setKeysList(ListModel keysList) {
+    	if(this.ListKeys.getModel() != keysList)
+    		this.ListKeys.setModel(keysList);
     }
     
     /**
-     * Set the certificate list
+     * Set the certificate list ; setting the list already shown keeps the selection
      * @param certList
      */
-    public void setCertificatesList(DefaultListModel certList) {
-    	this.ListCertificates.setModel(certList);
+    public void setCertificatesList(ListModel certList) {
+    	if(this.ListCertificates.getModel() != certList)
+    		this.ListCertificates.setModel(certList);
     }
     
     /**